@@ -0,0 +1,58 @@
+package sq.flutter.tflite;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Recycles heap arrays by length for outputs that are sent back as {@code byte[]}, which must be
+ * exactly as long as the payload. Works like {@link DirectBufferPool}.
+ */
+class ByteArrayPool {
+  private final int maxIdlePerLength;
+  private final Map<Integer, ArrayDeque<byte[]>> idleArrays = new HashMap<>();
+
+  private long allocations = 0;
+  private long reuses = 0;
+  private int inUse = 0;
+
+  ByteArrayPool(int maxIdlePerLength) {
+    this.maxIdlePerLength = maxIdlePerLength;
+  }
+
+  /** Returns an array of exactly {@code length} bytes. Recycled arrays are not cleared. */
+  synchronized byte[] acquire(int length) {
+    inUse++;
+    ArrayDeque<byte[]> arrays = idleArrays.get(length);
+    if (arrays != null && !arrays.isEmpty()) {
+      reuses++;
+      return arrays.pop();
+    }
+    allocations++;
+    return new byte[length];
+  }
+
+  synchronized void release(byte[] array) {
+    if (array == null) return;
+    inUse--;
+    ArrayDeque<byte[]> arrays = idleArrays.get(array.length);
+    if (arrays == null) {
+      arrays = new ArrayDeque<>();
+      idleArrays.put(array.length, arrays);
+    }
+    if (arrays.size() < maxIdlePerLength) arrays.push(array);
+  }
+
+  synchronized Map<String, Object> getStats() {
+    int idle = 0;
+    for (ArrayDeque<byte[]> arrays : idleArrays.values())
+      idle += arrays.size();
+
+    Map<String, Object> stats = new HashMap<>();
+    stats.put("allocations", allocations);
+    stats.put("reuses", reuses);
+    stats.put("inUse", inUse);
+    stats.put("idle", idle);
+    return stats;
+  }
+}
@@ -0,0 +1,153 @@
+package sq.flutter.tflite;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Detection candidates kept in parallel primitive arrays. Boxes are stored as normalized
+ * {@code x, y, w, h}, and result maps are only built for the detections that are returned.
+ */
+class Detections {
+  int count = 0;
+  float[] boxes = new float[4 * 16];
+  float[] scores = new float[16];
+  int[] classes = new int[16];
+  // Candidate indices by descending score, filled by sortByScore(). Only the first ordered
+  // entries are returned, which non-max suppression may lower.
+  int[] order = new int[16];
+  int ordered = 0;
+  private long[] keys = new long[16];
+
+  void clear() {
+    count = 0;
+    ordered = 0;
+  }
+
+  /**
+   * Adds a candidate. Candidates sorted before stay in {@link #order}, and new ones are only
+   * ordered by the next {@link #sortByScore()}.
+   */
+  void add(float x, float y, float w, float h, float score, int detectedClass) {
+    if (count == scores.length) {
+      int capacity = count * 2;
+      boxes = Arrays.copyOf(boxes, 4 * capacity);
+      scores = Arrays.copyOf(scores, capacity);
+      classes = Arrays.copyOf(classes, capacity);
+      order = Arrays.copyOf(order, capacity);
+      keys = new long[capacity];
+    }
+    int i = 4 * count;
+    boxes[i] = x;
+    boxes[i + 1] = y;
+    boxes[i + 2] = w;
+    boxes[i + 3] = h;
+    scores[count] = score;
+    classes[count] = detectedClass;
+    count++;
+  }
+
+  /** Adds the sorted candidates of {@code other}. */
+  void addAll(Detections other) {
+    for (int k = 0; k < other.ordered; ++k) {
+      int i = other.order[k];
+      add(other.boxes[4 * i], other.boxes[4 * i + 1], other.boxes[4 * i + 2], other.boxes[4 * i + 3],
+          other.scores[i], other.classes[i]);
+    }
+  }
+
+  /** Orders all candidates by descending score. Scores must not be negative. */
+  void sortByScore() {
+    for (int i = 0; i < count; ++i)
+      order[i] = i;
+    ordered = count;
+    sortOrder();
+  }
+
+  /** Re-sorts the first {@link #ordered} entries of {@link #order} by descending score. */
+  void sortOrder() {
+    // The bits of non-negative floats sort like the floats, so score and index pack into one
+    // long and the sort needs no comparator or boxing.
+    for (int k = 0; k < ordered; ++k)
+      keys[k] = ((long) Float.floatToIntBits(scores[order[k]]) << 32) | order[k];
+    Arrays.sort(keys, 0, ordered);
+    for (int k = 0; k < ordered; ++k)
+      order[k] = (int) keys[ordered - 1 - k];
+  }
+
+  /**
+   * Maps the boxes of the sorted candidates from the input tensor to the source image of
+   * {@code region}, clipping them to the sampled region first. Does nothing for a null region.
+   */
+  void mapToSource(InputRegion region) {
+    if (region == null) return;
+    for (int k = 0; k < ordered; ++k) {
+      int i = 4 * order[k];
+      float xmin = Math.max(boxes[i], region.contentX);
+      float ymin = Math.max(boxes[i + 1], region.contentY);
+      float xmax = Math.min(boxes[i] + boxes[i + 2], region.contentX + region.contentWidth);
+      float ymax = Math.min(boxes[i + 1] + boxes[i + 3], region.contentY + region.contentHeight);
+      boxes[i] = region.mapX(xmin);
+      boxes[i + 1] = region.mapY(ymin);
+      boxes[i + 2] = Math.max(0, region.mapX(xmax) - boxes[i]);
+      boxes[i + 3] = Math.max(0, region.mapY(ymax) - boxes[i + 1]);
+    }
+  }
+
+  /**
+   * Maps the sorted candidates from the input tensor to the source image of {@code region} without
+   * clipping them to the region, only to the image, and keeps the ones whose center lies in
+   * {@code [left, right) x [top, bottom)} of the image.
+   */
+  void mapToSource(InputRegion region, float left, float top, float right, float bottom) {
+    int kept = 0;
+    for (int k = 0; k < ordered; ++k) {
+      int i = 4 * order[k];
+      float xmin = Math.max(region.mapX(boxes[i]), 0);
+      float ymin = Math.max(region.mapY(boxes[i + 1]), 0);
+      float xmax = Math.min(region.mapX(boxes[i] + boxes[i + 2]), 1);
+      float ymax = Math.min(region.mapY(boxes[i + 1] + boxes[i + 3]), 1);
+      float centerX = (xmin + xmax) / 2;
+      float centerY = (ymin + ymax) / 2;
+      if (centerX < left || centerX >= right || centerY < top || centerY >= bottom) continue;
+      boxes[i] = xmin;
+      boxes[i + 1] = ymin;
+      boxes[i + 2] = Math.max(0, xmax - xmin);
+      boxes[i + 3] = Math.max(0, ymax - ymin);
+      order[kept++] = order[k];
+    }
+    ordered = kept;
+  }
+
+  /**
+   * Builds the result maps for the sorted candidates, keeping at most {@code numResultsPerClass}
+   * detections of each class.
+   */
+  List<Map<String, Object>> toResults(String[] labels, int numResultsPerClass) {
+    int[] counters = new int[labels.length];
+    List<Map<String, Object>> results = new ArrayList<>();
+
+    for (int k = 0; k < ordered; ++k) {
+      int i = order[k];
+      int detectedClass = classes[i];
+      if (counters[detectedClass] >= numResultsPerClass) continue;
+      counters[detectedClass]++;
+
+      Map<String, Object> rect = new HashMap<>();
+      rect.put("x", boxes[4 * i]);
+      rect.put("y", boxes[4 * i + 1]);
+      rect.put("w", boxes[4 * i + 2]);
+      rect.put("h", boxes[4 * i + 3]);
+
+      Map<String, Object> ret = new HashMap<>();
+      ret.put("rect", rect);
+      ret.put("confidenceInClass", scores[i]);
+      ret.put("detectedClass", labels[detectedClass]);
+
+      results.add(ret);
+    }
+    return results;
+  }
+}
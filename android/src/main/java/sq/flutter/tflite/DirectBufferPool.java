@@ -0,0 +1,80 @@
+package sq.flutter.tflite;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Recycles native-order direct buffers by capacity, so steady-state inference does not allocate
+ * native memory for every request.
+ */
+class DirectBufferPool {
+  private final int maxIdlePerCapacity;
+  private final Map<Integer, ArrayDeque<ByteBuffer>> idleBuffers = new HashMap<>();
+
+  private long allocations = 0;
+  private long reuses = 0;
+  private long allocatedBytes = 0;
+  private int inUse = 0;
+
+  DirectBufferPool(int maxIdlePerCapacity) {
+    this.maxIdlePerCapacity = maxIdlePerCapacity;
+  }
+
+  /** Returns a cleared direct buffer of exactly {@code capacity} bytes in native byte order. */
+  synchronized ByteBuffer acquire(int capacity) {
+    inUse++;
+    ArrayDeque<ByteBuffer> buffers = idleBuffers.get(capacity);
+    if (buffers != null && !buffers.isEmpty()) {
+      reuses++;
+      ByteBuffer buffer = buffers.pop();
+      buffer.clear();
+      return buffer;
+    }
+    allocations++;
+    allocatedBytes += capacity;
+    ByteBuffer buffer = ByteBuffer.allocateDirect(capacity);
+    buffer.order(ByteOrder.nativeOrder());
+    return buffer;
+  }
+
+  /** Hands a buffer obtained from {@link #acquire(int)} back to the pool. Other buffers are ignored. */
+  synchronized void release(ByteBuffer buffer) {
+    if (buffer == null || !buffer.isDirect()) return;
+    inUse--;
+    ArrayDeque<ByteBuffer> buffers = idleBuffers.get(buffer.capacity());
+    if (buffers == null) {
+      buffers = new ArrayDeque<>();
+      idleBuffers.put(buffer.capacity(), buffers);
+    }
+    if (buffers.size() < maxIdlePerCapacity) {
+      buffers.push(buffer);
+    } else {
+      allocatedBytes -= buffer.capacity();
+    }
+  }
+
+  synchronized void clear() {
+    for (ArrayDeque<ByteBuffer> buffers : idleBuffers.values()) {
+      for (ByteBuffer buffer : buffers)
+        allocatedBytes -= buffer.capacity();
+    }
+    idleBuffers.clear();
+  }
+
+  synchronized Map<String, Object> getStats() {
+    int idle = 0;
+    for (ArrayDeque<ByteBuffer> buffers : idleBuffers.values())
+      idle += buffers.size();
+
+    Map<String, Object> stats = new HashMap<>();
+    stats.put("allocations", allocations);
+    stats.put("reuses", reuses);
+    stats.put("allocatedBytes", allocatedBytes);
+    stats.put("inUse", inUse);
+    stats.put("idle", idle);
+    return stats;
+  }
+}
@@ -0,0 +1,116 @@
+package sq.flutter.tflite;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs camera frames through three stages, each on its own threads: preprocessing (YUV
+ * conversion and resize), inference, and decoding of the outputs. The stages are connected by
+ * small blocking queues, so while frame N is in inference, frame N+1 is already being
+ * preprocessed and frame N-1 decoded. Sustained throughput is then bounded by the slowest stage
+ * rather than by the sum of all three.
+ *
+ * <p>Frames entering the pipeline are coalesced per key like in
+ * {@link InferenceExecutor#executeFrame(String, InferenceExecutor.Job)}: while the preprocessing
+ * stage is busy, a newer frame replaces the one that is waiting.
+ */
+class FramePipeline {
+  interface Stages {
+    void preprocess() throws Exception;
+
+    void infer();
+
+    void decode();
+
+    void fail(Exception e);
+
+    void onDropped();
+  }
+
+  private static final int STAGE_QUEUE_CAPACITY = 1;
+
+  private final InferenceExecutor preprocessStage;
+  private final InferenceExecutor inferenceStage;
+  private final InferenceExecutor decodeStage;
+
+  FramePipeline(int numInferenceWorkers) {
+    preprocessStage = new InferenceExecutor("preprocess", 1);
+    preprocessStage.configure(STAGE_QUEUE_CAPACITY, InferenceExecutor.OverflowPolicy.DROP_OLDEST);
+    inferenceStage = new InferenceExecutor("inference", numInferenceWorkers);
+    inferenceStage.configure(STAGE_QUEUE_CAPACITY, InferenceExecutor.OverflowPolicy.BLOCK);
+    decodeStage = new InferenceExecutor("decode", 1);
+    decodeStage.configure(STAGE_QUEUE_CAPACITY, InferenceExecutor.OverflowPolicy.BLOCK);
+  }
+
+  void setNumInferenceWorkers(int numWorkers) {
+    inferenceStage.setNumWorkers(numWorkers);
+  }
+
+  void execute(String key, final Stages stages) {
+    preprocessStage.executeFrame(key, new StageJob(stages) {
+      @Override
+      public void run() {
+        try {
+          stages.preprocess();
+        } catch (Exception e) {
+          stages.fail(e);
+          return;
+        }
+        inferenceStage.execute(new StageJob(stages) {
+          @Override
+          public void run() {
+            try {
+              stages.infer();
+            } catch (Exception e) {
+              stages.fail(e);
+              return;
+            }
+            decodeStage.execute(new StageJob(stages) {
+              @Override
+              public void run() {
+                try {
+                  stages.decode();
+                } catch (Exception e) {
+                  stages.fail(e);
+                }
+              }
+            });
+          }
+        });
+      }
+    });
+  }
+
+  Map<String, Object> getStats() {
+    Map<String, Object> stats = new HashMap<>();
+    stats.put("preprocess", preprocessStage.getStats());
+    stats.put("inference", inferenceStage.getStats());
+    stats.put("decode", decodeStage.getStats());
+    return stats;
+  }
+
+  void shutdown() {
+    preprocessStage.shutdown();
+    inferenceStage.shutdown();
+    decodeStage.shutdown();
+  }
+
+  private abstract static class StageJob implements InferenceExecutor.Job {
+    final Stages stages;
+
+    StageJob(Stages stages) {
+      this.stages = stages;
+    }
+
+    @Override
+    public void onDropped() {
+      stages.onDropped();
+    }
+
+    @Override
+    public void onRejected(RejectedExecutionException e) {
+      stages.fail(e);
+    }
+  }
+}
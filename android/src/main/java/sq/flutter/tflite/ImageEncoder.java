@@ -0,0 +1,96 @@
+package sq.flutter.tflite;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Encodes output bitmaps in the format picked by a request's {@code outputType}. Each thread
+ * reuses one output stream that keeps the capacity of its largest image, so steady-state encoding
+ * only allocates the returned array. Encode times and sizes are kept per format for getStats.
+ */
+class ImageEncoder {
+  enum Format {
+    PNG("png", Bitmap.CompressFormat.PNG),
+    // Lossless from Android 10. WEBP_LOSSLESS needs API 30, above the compile SDK.
+    WEBP("webp", Bitmap.CompressFormat.WEBP),
+    WEBP_LOSSY("webpLossy", Bitmap.CompressFormat.WEBP),
+    JPEG("jpeg", Bitmap.CompressFormat.JPEG);
+
+    final String name;
+    final Bitmap.CompressFormat compressFormat;
+
+    Format(String name, Bitmap.CompressFormat compressFormat) {
+      this.name = name;
+      this.compressFormat = compressFormat;
+    }
+
+    /** Returns the format of an encoded {@code outputType}, or null for raw output types. */
+    static Format fromString(String outputType) {
+      for (Format format : values())
+        if (format.name.equals(outputType)) return format;
+      return null;
+    }
+  }
+
+  static final int DEFAULT_QUALITY = 90;
+
+  private static final class ReusableStream extends ByteArrayOutputStream {
+    void reset(int capacity) {
+      reset();
+      if (buf.length < capacity) buf = new byte[capacity];
+    }
+  }
+
+  private static final ThreadLocal<ReusableStream> STREAM = new ThreadLocal<ReusableStream>() {
+    @Override
+    protected ReusableStream initialValue() {
+      return new ReusableStream();
+    }
+  };
+
+  private final long[] counts = new long[Format.values().length];
+  private final long[] totalTimes = new long[Format.values().length];
+  private final long[] totalBytes = new long[Format.values().length];
+  private final long[] lastTimes = new long[Format.values().length];
+
+  /** Encodes {@code bitmap}. {@code quality} only applies to the lossy formats. */
+  byte[] encode(Bitmap bitmap, Format format, int quality) {
+    long startTime = SystemClock.uptimeMillis();
+    ReusableStream stream = STREAM.get();
+    // Roughly one byte per pixel for lossless and a quarter for lossy, grown as needed.
+    boolean lossless = format == Format.PNG || format == Format.WEBP;
+    int pixels = bitmap.getWidth() * bitmap.getHeight();
+    stream.reset(lossless ? pixels : pixels / 4);
+    bitmap.compress(format.compressFormat, lossless ? 100 : quality, stream);
+    byte[] bytes = stream.toByteArray();
+
+    long time = SystemClock.uptimeMillis() - startTime;
+    synchronized (this) {
+      int i = format.ordinal();
+      counts[i]++;
+      totalTimes[i] += time;
+      totalBytes[i] += bytes.length;
+      lastTimes[i] = time;
+    }
+    return bytes;
+  }
+
+  synchronized Map<String, Object> getStats() {
+    Map<String, Object> stats = new HashMap<>();
+    for (Format format : Format.values()) {
+      int i = format.ordinal();
+      if (counts[i] == 0) continue;
+      Map<String, Object> stat = new HashMap<>();
+      stat.put("count", counts[i]);
+      stat.put("lastTime", lastTimes[i]);
+      stat.put("averageTime", (double) totalTimes[i] / counts[i]);
+      stat.put("averageBytes", (double) totalBytes[i] / counts[i]);
+      stats.put(format.name, stat);
+    }
+    return stats;
+  }
+}
@@ -0,0 +1,287 @@
+package sq.flutter.tflite;
+
+import android.os.Looper;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs inference requests on dedicated worker threads behind a bounded queue.
+ *
+ * <p>When the queue is full the {@link OverflowPolicy} decides whether the oldest queued request
+ * is dropped, the new request is dropped, or the caller blocks until there is room. The platform
+ * thread is never blocked: there a full queue under {@code BLOCK} rejects the new request instead.
+ * Camera frames
+ * submitted through {@link #executeFrame(String, Job)} are coalesced per key: a new frame
+ * replaces a frame that is still waiting, so inference always runs on the freshest image.
+ */
+class InferenceExecutor {
+  enum OverflowPolicy {
+    DROP_OLDEST, DROP_NEWEST, BLOCK;
+
+    static OverflowPolicy fromString(String policy) {
+      if (policy == null) return DROP_NEWEST;
+      switch (policy) {
+        case "dropOldest":
+          return DROP_OLDEST;
+        case "dropNewest":
+          return DROP_NEWEST;
+        case "block":
+          return BLOCK;
+        default:
+          throw new IllegalArgumentException("Unknown overflow policy " + policy);
+      }
+    }
+
+    @Override
+    public String toString() {
+      switch (this) {
+        case DROP_OLDEST:
+          return "dropOldest";
+        case BLOCK:
+          return "block";
+        default:
+          return "dropNewest";
+      }
+    }
+  }
+
+  interface Job extends Runnable {
+    /** Called instead of {@link #run()} when the job is discarded by the overflow policy. */
+    void onDropped();
+
+    /**
+     * Called instead of {@link #run()} when the queue is full under {@code BLOCK} and the job was
+     * submitted on the platform thread, which must not wait for room.
+     */
+    void onRejected(RejectedExecutionException e);
+  }
+
+  static final int DEFAULT_QUEUE_CAPACITY = 128;
+
+  private final String name;
+  private ThreadPoolExecutor executor;
+  private OverflowPolicy policy = OverflowPolicy.DROP_NEWEST;
+  private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+  private int numWorkers;
+  private final Map<String, Job> pendingFrames = new HashMap<>();
+
+  private final AtomicLong submitted = new AtomicLong();
+  private final AtomicLong completed = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong droppedFrames = new AtomicLong();
+
+  InferenceExecutor(int numWorkers) {
+    this("inference", numWorkers);
+  }
+
+  InferenceExecutor(String name, int numWorkers) {
+    this.name = name;
+    this.numWorkers = Math.max(1, numWorkers);
+    this.executor = createExecutor();
+  }
+
+  private ThreadPoolExecutor createExecutor() {
+    final AtomicInteger threadCount = new AtomicInteger();
+    ThreadFactory threadFactory = new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "tflite-" + name + "-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+    RejectedExecutionHandler rejectedExecutionHandler = new RejectedExecutionHandler() {
+      @Override
+      public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+        onQueueFull((QueuedJob) runnable, executor);
+      }
+    };
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(
+        numWorkers, numWorkers, 30, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(queueCapacity), threadFactory, rejectedExecutionHandler);
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /**
+   * Changes the queue and overflow policy. Requests already queued keep running on the previous
+   * queue.
+   */
+  synchronized void configure(int queueCapacity, OverflowPolicy policy) {
+    this.policy = policy;
+    if (queueCapacity != this.queueCapacity) {
+      this.queueCapacity = Math.max(1, queueCapacity);
+      ThreadPoolExecutor previous = executor;
+      executor = createExecutor();
+      previous.shutdown();
+    }
+  }
+
+  synchronized void setNumWorkers(int numWorkers) {
+    numWorkers = Math.max(1, numWorkers);
+    if (numWorkers == this.numWorkers) return;
+    this.numWorkers = numWorkers;
+    if (numWorkers > executor.getMaximumPoolSize()) {
+      executor.setMaximumPoolSize(numWorkers);
+      executor.setCorePoolSize(numWorkers);
+    } else {
+      executor.setCorePoolSize(numWorkers);
+      executor.setMaximumPoolSize(numWorkers);
+    }
+  }
+
+  void execute(Job job) {
+    submitted.incrementAndGet();
+    ThreadPoolExecutor executor;
+    synchronized (this) {
+      executor = this.executor;
+    }
+    executor.execute(new QueuedJob(job));
+  }
+
+  /**
+   * Queues a camera frame. If a frame with the same key is still waiting it is dropped and
+   * replaced by {@code job}, which then runs in its place.
+   */
+  void executeFrame(final String key, Job job) {
+    Job previous;
+    synchronized (pendingFrames) {
+      previous = pendingFrames.put(key, job);
+    }
+    if (previous != null) {
+      droppedFrames.incrementAndGet();
+      previous.onDropped();
+      return;
+    }
+    execute(new Job() {
+      @Override
+      public void run() {
+        Job frame = takePendingFrame(key);
+        if (frame != null) frame.run();
+      }
+
+      @Override
+      public void onDropped() {
+        Job frame = takePendingFrame(key);
+        if (frame != null) {
+          droppedFrames.incrementAndGet();
+          frame.onDropped();
+        }
+      }
+
+      @Override
+      public void onRejected(RejectedExecutionException e) {
+        Job frame = takePendingFrame(key);
+        if (frame != null) frame.onRejected(e);
+      }
+    });
+  }
+
+  private Job takePendingFrame(String key) {
+    synchronized (pendingFrames) {
+      return pendingFrames.remove(key);
+    }
+  }
+
+  private void onQueueFull(QueuedJob job, ThreadPoolExecutor executor) {
+    if (executor.isShutdown()) {
+      drop(job);
+      return;
+    }
+    OverflowPolicy policy;
+    int capacity;
+    synchronized (this) {
+      policy = this.policy;
+      capacity = queueCapacity;
+    }
+    BlockingQueue<Runnable> queue = executor.getQueue();
+    switch (policy) {
+      case DROP_OLDEST:
+        Runnable oldest = queue.poll();
+        if (oldest != null) drop((QueuedJob) oldest);
+        executor.execute(job);
+        break;
+      case BLOCK:
+        Looper mainLooper = Looper.getMainLooper();
+        if (mainLooper != null && Looper.myLooper() == mainLooper) {
+          dropped.incrementAndGet();
+          job.job.onRejected(new RejectedExecutionException(
+              "The " + name + " queue is full (" + capacity + " requests)"));
+          break;
+        }
+        try {
+          queue.put(job);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          drop(job);
+          break;
+        }
+        // configure() may have replaced and shut down the executor while we waited, and its workers
+        // may be gone. A job still in its queue is handed to the current executor instead, or
+        // dropped if that one is shut down as well.
+        if (executor.isShutdown() && queue.remove(job)) {
+          ThreadPoolExecutor current;
+          synchronized (this) {
+            current = this.executor;
+          }
+          if (current == executor) drop(job);
+          else current.execute(job);
+        }
+        break;
+      default:
+        drop(job);
+    }
+  }
+
+  private void drop(QueuedJob job) {
+    dropped.incrementAndGet();
+    job.job.onDropped();
+  }
+
+  Map<String, Object> getStats() {
+    Map<String, Object> stats = new HashMap<>();
+    synchronized (this) {
+      stats.put("numWorkers", numWorkers);
+      stats.put("queueCapacity", queueCapacity);
+      stats.put("overflowPolicy", policy.toString());
+      stats.put("queued", executor.getQueue().size());
+      stats.put("active", executor.getActiveCount());
+    }
+    stats.put("submitted", submitted.get());
+    stats.put("completed", completed.get());
+    stats.put("dropped", dropped.get());
+    stats.put("droppedFrames", droppedFrames.get());
+    return stats;
+  }
+
+  synchronized void shutdown() {
+    executor.shutdown();
+  }
+
+  private class QueuedJob implements Runnable {
+    final Job job;
+
+    QueuedJob(Job job) {
+      this.job = job;
+    }
+
+    @Override
+    public void run() {
+      try {
+        job.run();
+      } finally {
+        completed.incrementAndGet();
+      }
+    }
+  }
+}
@@ -0,0 +1,89 @@
+package sq.flutter.tflite;
+
+import android.graphics.Matrix;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The part of a source image that is sampled into the input tensor, and where it lands. The source
+ * region ({@code roi}) is normalized to the image, after rotation for camera frames. With
+ * {@code maintainAspectRatio} the region is scaled uniformly and centered, leaving black bars
+ * (letterbox), otherwise it is stretched over the whole tensor.
+ *
+ * <p>Outputs normalized to the tensor are mapped back to the source image with {@link #mapX} and
+ * {@link #mapY}, so results do not depend on how the input was sampled.
+ */
+class InputRegion {
+  final float x, y, width, height;
+  final boolean maintainAspectRatio;
+  // Normalized rectangle of the tensor covered by the region, set by resolve().
+  float contentX = 0, contentY = 0, contentWidth = 1, contentHeight = 1;
+
+  InputRegion(float x, float y, float width, float height, boolean maintainAspectRatio) {
+    this.x = x;
+    this.y = y;
+    this.width = width;
+    this.height = height;
+    this.maintainAspectRatio = maintainAspectRatio;
+  }
+
+  /** Reads {@code roi} and {@code maintainAspectRatio}, or returns null when neither is set. */
+  static InputRegion fromArgs(HashMap args) {
+    Map<String, Number> roi = (Map<String, Number>) args.get("roi");
+    boolean maintainAspectRatio = Boolean.TRUE.equals(args.get("maintainAspectRatio"));
+    if (roi == null && !maintainAspectRatio) return null;
+    if (roi == null) return new InputRegion(0, 0, 1, 1, true);
+
+    float x = clamp(roi.get("x").floatValue());
+    float y = clamp(roi.get("y").floatValue());
+    float width = Math.min(roi.get("w").floatValue(), 1 - x);
+    float height = Math.min(roi.get("h").floatValue(), 1 - y);
+    if (width <= 0 || height <= 0)
+      throw new IllegalArgumentException("Empty roi " + roi);
+    return new InputRegion(x, y, width, height, maintainAspectRatio);
+  }
+
+  /** Places the region in a {@code dstWidth x dstHeight} tensor for a source of the given size. */
+  void resolve(int srcWidth, int srcHeight, int dstWidth, int dstHeight) {
+    if (!maintainAspectRatio) return;
+    float regionWidth = width * srcWidth;
+    float regionHeight = height * srcHeight;
+    float scale = Math.min(dstWidth / regionWidth, dstHeight / regionHeight);
+    contentWidth = regionWidth * scale / dstWidth;
+    contentHeight = regionHeight * scale / dstHeight;
+    contentX = (1 - contentWidth) / 2;
+    contentY = (1 - contentHeight) / 2;
+  }
+
+  /** Transform from source pixels to tensor pixels, once resolved. */
+  Matrix toMatrix(int srcWidth, int srcHeight, int dstWidth, int dstHeight) {
+    Matrix matrix = new Matrix();
+    matrix.postTranslate(-x * srcWidth, -y * srcHeight);
+    matrix.postScale(contentWidth * dstWidth / (width * srcWidth), contentHeight * dstHeight / (height * srcHeight));
+    matrix.postTranslate(contentX * dstWidth, contentY * dstHeight);
+    return matrix;
+  }
+
+  /** Source coordinate, normalized to the image, of a coordinate normalized to the tensor. */
+  float mapX(float tensorX) {
+    return x + (tensorX - contentX) / contentWidth * width;
+  }
+
+  float mapY(float tensorY) {
+    return y + (tensorY - contentY) / contentHeight * height;
+  }
+
+  /** Whether a normalized tensor coordinate falls on the letterbox bars. */
+  boolean isPaddingX(float tensorX) {
+    return tensorX < contentX || tensorX >= contentX + contentWidth;
+  }
+
+  boolean isPaddingY(float tensorY) {
+    return tensorY < contentY || tensorY >= contentY + contentHeight;
+  }
+
+  private static float clamp(float value) {
+    return value < 0 ? 0 : value > 1 ? 1 : value;
+  }
+}
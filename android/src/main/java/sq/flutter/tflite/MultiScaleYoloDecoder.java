@@ -0,0 +1,174 @@
+package sq.flutter.tflite;
+
+import static sq.flutter.tflite.YoloDecoder.sigmoid;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Decodes the raw output heads of YOLOv3/v4 and YOLOv5 style models, one output tensor per scale.
+ * A head is either {@code [1, grid, grid, anchors * (numClasses + 5)]} or
+ * {@code [1, anchors, grid, grid, numClasses + 5]}. Every head is decoded with its own stride,
+ * taken from its grid size, and its own anchors, given in input pixels and assigned to the heads
+ * from the finest to the coarsest grid.
+ *
+ * <p>Objectness and classes are scored with independent sigmoids. As in {@link YoloDecoder}, a box
+ * is rejected on its objectness logit alone when it cannot beat the threshold, and only the best
+ * class goes through a sigmoid. Candidates of all heads go into one {@link Detections}, so a single
+ * NMS pass runs over all scales.
+ */
+class MultiScaleYoloDecoder {
+  enum BoxEncoding {
+    // x = (cx + sigmoid(tx)) * stride, w = exp(tw) * anchor
+    YOLOV3,
+    // x = (cx + 2 * sigmoid(tx) - 0.5) * stride, w = (2 * sigmoid(tw))^2 * anchor
+    YOLOV5
+  }
+
+  static final class Head {
+    int output;
+    int gridHeight, gridWidth;
+    int numAnchors;
+    boolean anchorsFirst;
+    float strideX, strideY;
+    float[] anchors;
+
+    int size(int numClasses) {
+      return gridHeight * gridWidth * numAnchors * (numClasses + 5);
+    }
+  }
+
+  final Head[] heads;
+  final int inputHeight, inputWidth;
+  final int numClasses;
+  final BoxEncoding encoding;
+  final float threshold;
+  private final float objectnessThreshold;
+
+  MultiScaleYoloDecoder(int[][] outputShapes,
+                        int inputHeight,
+                        int inputWidth,
+                        int numClasses,
+                        List<Number> anchors,
+                        BoxEncoding encoding,
+                        float threshold) {
+    this.inputHeight = inputHeight;
+    this.inputWidth = inputWidth;
+    this.numClasses = numClasses;
+    this.encoding = encoding;
+    this.threshold = threshold;
+    this.objectnessThreshold = (float) Math.log(threshold / (1 - threshold));
+
+    int stride = numClasses + 5;
+    heads = new Head[outputShapes.length];
+    int totalAnchors = 0;
+    for (int i = 0; i < outputShapes.length; ++i) {
+      int[] shape = outputShapes[i];
+      Head head = new Head();
+      head.output = i;
+      if (shape.length == 5 && shape[4] == stride) {
+        head.anchorsFirst = true;
+        head.numAnchors = shape[1];
+        head.gridHeight = shape[2];
+        head.gridWidth = shape[3];
+      } else if (shape.length == 4 && shape[3] % stride == 0) {
+        head.gridHeight = shape[1];
+        head.gridWidth = shape[2];
+        head.numAnchors = shape[3] / stride;
+      } else {
+        throw new IllegalArgumentException("Unexpected output shape " + Arrays.toString(shape)
+            + " for " + numClasses + " classes");
+      }
+      head.strideX = (float) inputWidth / head.gridWidth;
+      head.strideY = (float) inputHeight / head.gridHeight;
+      totalAnchors += head.numAnchors;
+      heads[i] = head;
+    }
+
+    if (anchors.size() != 2 * totalAnchors)
+      throw new IllegalArgumentException("Expected " + 2 * totalAnchors + " anchor values, got " + anchors.size());
+    Head[] byStride = heads.clone();
+    Arrays.sort(byStride, new Comparator<Head>() {
+      @Override
+      public int compare(Head lhs, Head rhs) {
+        return Float.compare(lhs.strideX, rhs.strideX);
+      }
+    });
+    int a = 0;
+    for (Head head : byStride) {
+      head.anchors = new float[2 * head.numAnchors];
+      for (int k = 0; k < head.anchors.length; ++k)
+        head.anchors[k] = anchors.get(a++).floatValue();
+    }
+  }
+
+  /** Number of floats in output {@code output} for one image. */
+  int outputSize(int output) {
+    return heads[output].size(numClasses);
+  }
+
+  /** Reads head {@code output} from the start of {@code buffer} and adds the boxes above the threshold. */
+  void decode(int output, FloatBuffer buffer, Detections detections) {
+    Head head = heads[output];
+    int size = head.size(numClasses);
+    float[] values = TensorImageUtils.scratch().floats(size);
+    buffer.get(values, 0, size);
+    decode(head, values, detections);
+  }
+
+  void decode(Head head, float[] values, Detections detections) {
+    final int stride = numClasses + 5;
+    final int gridHeight = head.gridHeight;
+    final int gridWidth = head.gridWidth;
+    final int numAnchors = head.numAnchors;
+    final boolean yolov5 = encoding == BoxEncoding.YOLOV5;
+
+    for (int y = 0; y < gridHeight; ++y) {
+      for (int x = 0; x < gridWidth; ++x) {
+        for (int a = 0; a < numAnchors; ++a) {
+          int offset = head.anchorsFirst
+              ? ((a * gridHeight + y) * gridWidth + x) * stride
+              : ((y * gridWidth + x) * numAnchors + a) * stride;
+
+          final float objectness = values[offset + 4];
+          if (objectness <= objectnessThreshold) continue;
+
+          // Sigmoid is monotonic, so the best class is the largest logit.
+          int detectedClass = 0;
+          float maxLogit = values[offset + 5];
+          for (int c = 1; c < numClasses; ++c) {
+            if (values[offset + 5 + c] > maxLogit) {
+              maxLogit = values[offset + 5 + c];
+              detectedClass = c;
+            }
+          }
+          final float score = sigmoid(objectness) * sigmoid(maxLogit);
+          if (score <= threshold) continue;
+
+          float xPos, yPos, w, h;
+          if (yolov5) {
+            xPos = (x + 2 * sigmoid(values[offset]) - 0.5f) * head.strideX;
+            yPos = (y + 2 * sigmoid(values[offset + 1]) - 0.5f) * head.strideY;
+            float sw = 2 * sigmoid(values[offset + 2]);
+            float sh = 2 * sigmoid(values[offset + 3]);
+            w = sw * sw * head.anchors[2 * a];
+            h = sh * sh * head.anchors[2 * a + 1];
+          } else {
+            xPos = (x + sigmoid(values[offset])) * head.strideX;
+            yPos = (y + sigmoid(values[offset + 1])) * head.strideY;
+            w = (float) Math.exp(values[offset + 2]) * head.anchors[2 * a];
+            h = (float) Math.exp(values[offset + 3]) * head.anchors[2 * a + 1];
+          }
+
+          final float xmin = Math.max(0, (xPos - w / 2) / inputWidth);
+          final float ymin = Math.max(0, (yPos - h / 2) / inputHeight);
+          detections.add(xmin, ymin,
+              Math.min(1 - xmin, w / inputWidth), Math.min(1 - ymin, h / inputHeight),
+              score, detectedClass);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,146 @@
+package sq.flutter.tflite;
+
+import java.util.Arrays;
+
+/**
+ * IoU based non-max suppression over sorted {@link Detections}.
+ *
+ * <p>Kept boxes are indexed in a uniform grid over the normalized image, so each candidate is only
+ * compared against kept boxes in the cells it overlaps instead of against every kept box. This
+ * keeps suppression close to linear for the thousands of candidates of large YOLO heads.
+ *
+ * <p>With {@code softNmsSigma > 0}, overlapping boxes are not removed but their score is decayed
+ * by {@code exp(-iou^2 / sigma)} for every higher scoring kept box (Gaussian soft-NMS), and they
+ * are dropped once the decayed score falls to the threshold. Candidates are visited in order of
+ * their original score.
+ */
+class NonMaxSuppression {
+  enum Mode {
+    NONE, PER_CLASS, AGNOSTIC;
+
+    static Mode fromString(String mode) {
+      if (mode == null) return NONE;
+      switch (mode) {
+        case "none":
+          return NONE;
+        case "perClass":
+          return PER_CLASS;
+        case "agnostic":
+          return AGNOSTIC;
+        default:
+          throw new IllegalArgumentException("Unknown NMS mode " + mode);
+      }
+    }
+  }
+
+  private static final int MAX_GRID_SIZE = 32;
+
+  final Mode mode;
+  final float iouThreshold;
+  final float softNmsSigma;
+  final float scoreThreshold;
+
+  private int gridSize;
+  private int[] cellHeads = new int[0];
+  private int[] entryBoxes = new int[64];
+  private int[] entryNext = new int[64];
+  private int numEntries;
+  // Last candidate each kept box was compared with, so boxes spanning several cells count once.
+  private int[] visited = new int[0];
+
+  NonMaxSuppression(Mode mode, float iouThreshold, float softNmsSigma, float scoreThreshold) {
+    this.mode = mode;
+    this.iouThreshold = iouThreshold;
+    this.softNmsSigma = softNmsSigma;
+    this.scoreThreshold = scoreThreshold;
+  }
+
+  /** Suppresses overlapping boxes of {@code detections}, which must be sorted by score. */
+  void apply(Detections detections) {
+    if (mode == Mode.NONE || detections.ordered < 2) return;
+
+    int count = detections.ordered;
+    gridSize = Math.max(1, Math.min(MAX_GRID_SIZE, (int) Math.sqrt(count)));
+    if (cellHeads.length < gridSize * gridSize) cellHeads = new int[gridSize * gridSize];
+    Arrays.fill(cellHeads, 0, gridSize * gridSize, -1);
+    if (visited.length < detections.count) visited = new int[detections.count];
+    Arrays.fill(visited, 0, detections.count, -1);
+    numEntries = 0;
+
+    float[] boxes = detections.boxes;
+    float[] scores = detections.scores;
+    int[] classes = detections.classes;
+    int[] order = detections.order;
+    boolean soft = softNmsSigma > 0;
+    int kept = 0;
+
+    for (int k = 0; k < count; ++k) {
+      int i = order[k];
+      int x0 = cell(boxes[4 * i]);
+      int y0 = cell(boxes[4 * i + 1]);
+      int x1 = cell(boxes[4 * i] + boxes[4 * i + 2]);
+      int y1 = cell(boxes[4 * i + 1] + boxes[4 * i + 3]);
+
+      boolean suppressed = false;
+      float score = scores[i];
+      search:
+      for (int cy = y0; cy <= y1; ++cy) {
+        for (int cx = x0; cx <= x1; ++cx) {
+          for (int e = cellHeads[cy * gridSize + cx]; e != -1; e = entryNext[e]) {
+            int j = entryBoxes[e];
+            if (visited[j] == i) continue;
+            visited[j] = i;
+            if (mode == Mode.PER_CLASS && classes[j] != classes[i]) continue;
+
+            float iou = iou(boxes, i, j);
+            if (soft) {
+              score *= (float) Math.exp(-iou * iou / softNmsSigma);
+              if (score <= scoreThreshold) {
+                suppressed = true;
+                break search;
+              }
+            } else if (iou > iouThreshold) {
+              suppressed = true;
+              break search;
+            }
+          }
+        }
+      }
+      if (suppressed) continue;
+
+      scores[i] = score;
+      order[kept++] = i;
+      for (int cy = y0; cy <= y1; ++cy)
+        for (int cx = x0; cx <= x1; ++cx)
+          insert(cy * gridSize + cx, i);
+    }
+
+    detections.ordered = kept;
+    if (soft) detections.sortOrder();
+  }
+
+  private int cell(float coordinate) {
+    int cell = (int) (coordinate * gridSize);
+    return cell < 0 ? 0 : cell >= gridSize ? gridSize - 1 : cell;
+  }
+
+  private void insert(int cell, int box) {
+    if (numEntries == entryBoxes.length) {
+      entryBoxes = Arrays.copyOf(entryBoxes, numEntries * 2);
+      entryNext = Arrays.copyOf(entryNext, numEntries * 2);
+    }
+    entryBoxes[numEntries] = box;
+    entryNext[numEntries] = cellHeads[cell];
+    cellHeads[cell] = numEntries++;
+  }
+
+  static float iou(float[] boxes, int a, int b) {
+    float ax = boxes[4 * a], ay = boxes[4 * a + 1], aw = boxes[4 * a + 2], ah = boxes[4 * a + 3];
+    float bx = boxes[4 * b], by = boxes[4 * b + 1], bw = boxes[4 * b + 2], bh = boxes[4 * b + 3];
+    float w = Math.min(ax + aw, bx + bw) - Math.max(ax, bx);
+    float h = Math.min(ay + ah, by + bh) - Math.max(ay, by);
+    if (w <= 0 || h <= 0) return 0;
+    float intersection = w * h;
+    return intersection / (aw * ah + bw * bh - intersection);
+  }
+}
@@ -0,0 +1,303 @@
+package sq.flutter.tflite;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Multi-pose decoder for PoseNet outputs: a {@code [height, width, numParts]} heatmap,
+ * {@code [height, width, 2 * numParts]} offsets and forward and backward
+ * {@code [height, width, 2 * numEdges]} displacements.
+ *
+ * <p>The heatmap is passed through the sigmoid once into a reused per-thread array. Local maxima
+ * come from one horizontal max-filter pass, whose vertical half is only evaluated for parts above
+ * the threshold. Candidates are sorted as packed primitive keys and poses are grown in flat arrays,
+ * so maps are only built for the returned poses.
+ */
+class PoseNetDecoder {
+  static final String[] PART_NAMES = {
+      "nose", "leftEye", "rightEye", "leftEar", "rightEar", "leftShoulder",
+      "rightShoulder", "leftElbow", "rightElbow", "leftWrist", "rightWrist",
+      "leftHip", "rightHip", "leftKnee", "rightKnee", "leftAnkle", "rightAnkle"
+  };
+
+  static final String[][] POSE_CHAIN = {
+      {"nose", "leftEye"}, {"leftEye", "leftEar"}, {"nose", "rightEye"},
+      {"rightEye", "rightEar"}, {"nose", "leftShoulder"},
+      {"leftShoulder", "leftElbow"}, {"leftElbow", "leftWrist"},
+      {"leftShoulder", "leftHip"}, {"leftHip", "leftKnee"},
+      {"leftKnee", "leftAnkle"}, {"nose", "rightShoulder"},
+      {"rightShoulder", "rightElbow"}, {"rightElbow", "rightWrist"},
+      {"rightShoulder", "rightHip"}, {"rightHip", "rightKnee"},
+      {"rightKnee", "rightAnkle"}
+  };
+
+  // Part ids at the child and parent end of every edge of the pose chain.
+  static final int[] PARENT_TO_CHILD_EDGES = new int[POSE_CHAIN.length];
+  static final int[] CHILD_TO_PARENT_EDGES = new int[POSE_CHAIN.length];
+
+  static {
+    List<String> parts = Arrays.asList(PART_NAMES);
+    for (int i = 0; i < POSE_CHAIN.length; ++i) {
+      PARENT_TO_CHILD_EDGES[i] = parts.indexOf(POSE_CHAIN[i][1]);
+      CHILD_TO_PARENT_EDGES[i] = parts.indexOf(POSE_CHAIN[i][0]);
+    }
+  }
+
+  private static final class Workspace {
+    float[] scores = new float[0];
+    float[] rowMax = new float[0];
+    long[] candidates = new long[0];
+    float[] poses = new float[0];
+    boolean[] found = new boolean[0];
+  }
+
+  private static final ThreadLocal<Workspace> WORKSPACE = new ThreadLocal<Workspace>() {
+    @Override
+    protected Workspace initialValue() {
+      return new Workspace();
+    }
+  };
+
+  final int height, width, numParts;
+  final int outputStride;
+  final int inputSize;
+  final int localMaximumRadius;
+
+  PoseNetDecoder(int height, int width, int numParts, int outputStride, int inputSize, int localMaximumRadius) {
+    this.height = height;
+    this.width = width;
+    this.numParts = numParts;
+    this.outputStride = outputStride;
+    this.inputSize = inputSize;
+    this.localMaximumRadius = localMaximumRadius;
+  }
+
+  /**
+   * Decodes up to {@code numResults} poses whose root part scores at least {@code threshold} and
+   * which are not within {@code nmsRadius} pixels of the same part of a better pose.
+   */
+  List<Map<String, Object>> decode(FloatBuffer heatmaps, FloatBuffer offsets,
+                                   FloatBuffer displacementsFwd, FloatBuffer displacementsBwd,
+                                   float threshold, int nmsRadius, int numResults) {
+    int numPoses = decodePoses(heatmaps, offsets, displacementsFwd, displacementsBwd,
+        threshold, nmsRadius, numResults);
+    float[] poses = poses();
+    toFrame(poses, numPoses, null);
+    return toResults(poses, numPoses, null);
+  }
+
+  /**
+   * Decodes poses like {@link #decode} into {@link #poses()} and returns how many were found. Each
+   * pose holds {@code y, x, score} of every part, in input pixels.
+   */
+  int decodePoses(FloatBuffer heatmaps, FloatBuffer offsets,
+                  FloatBuffer displacementsFwd, FloatBuffer displacementsBwd,
+                  float threshold, int nmsRadius, int numResults) {
+    Workspace workspace = WORKSPACE.get();
+    float[] scores = sigmoidScores(heatmaps, workspace);
+    int numCandidates = findCandidates(scores, threshold, workspace);
+    long[] candidates = workspace.candidates;
+
+    // Every pose holds y, x and score of each part, in input pixels.
+    final int poseSize = 3 * numParts;
+    if (workspace.poses.length < numResults * poseSize) workspace.poses = new float[numResults * poseSize];
+    if (workspace.found.length < numParts) workspace.found = new boolean[numParts];
+    float[] poses = workspace.poses;
+    boolean[] found = workspace.found;
+    int numPoses = 0;
+    float squaredNmsRadius = nmsRadius * nmsRadius;
+    int numEdges = PARENT_TO_CHILD_EDGES.length;
+
+    for (int c = numCandidates - 1; c >= 0 && numPoses < numResults; --c) {
+      int index = (int) candidates[c];
+      int partId = index % numParts;
+      int cell = index / numParts;
+      int heatmapY = cell / width;
+      int heatmapX = cell % width;
+      float rootY = heatmapY * outputStride + offsets.get(cell * 2 * numParts + partId);
+      float rootX = heatmapX * outputStride + offsets.get(cell * 2 * numParts + partId + numParts);
+
+      if (withinNmsRadius(poses, numPoses, squaredNmsRadius, rootY, rootX, partId)) continue;
+
+      int pose = numPoses * poseSize;
+      Arrays.fill(found, 0, numParts, false);
+      poses[pose + 3 * partId] = rootY;
+      poses[pose + 3 * partId + 1] = rootX;
+      poses[pose + 3 * partId + 2] = scores[index];
+      found[partId] = true;
+
+      for (int edge = numEdges - 1; edge >= 0; --edge) {
+        int source = PARENT_TO_CHILD_EDGES[edge];
+        int target = CHILD_TO_PARENT_EDGES[edge];
+        if (found[source] && !found[target]) {
+          traverse(edge, poses, pose, source, target, scores, offsets, displacementsBwd);
+          found[target] = true;
+        }
+      }
+      for (int edge = 0; edge < numEdges; ++edge) {
+        int source = CHILD_TO_PARENT_EDGES[edge];
+        int target = PARENT_TO_CHILD_EDGES[edge];
+        if (found[source] && !found[target]) {
+          traverse(edge, poses, pose, source, target, scores, offsets, displacementsFwd);
+          found[target] = true;
+        }
+      }
+      numPoses++;
+    }
+    return numPoses;
+  }
+
+  /** Poses of the last {@link #decodePoses} call on this thread. */
+  float[] poses() {
+    return WORKSPACE.get().poses;
+  }
+
+  /**
+   * Converts poses from input pixels to coordinates normalized to the source image, given the
+   * region of the image the input was sampled from, or null for all of it.
+   */
+  void toFrame(float[] poses, int numPoses, InputRegion region) {
+    for (int i = 0; i < numPoses * numParts; ++i) {
+      float y = poses[3 * i] / inputSize;
+      float x = poses[3 * i + 1] / inputSize;
+      poses[3 * i] = region == null ? y : region.mapY(y);
+      poses[3 * i + 1] = region == null ? x : region.mapX(x);
+    }
+  }
+
+  private float[] sigmoidScores(FloatBuffer heatmaps, Workspace workspace) {
+    int size = height * width * numParts;
+    if (workspace.scores.length < size) workspace.scores = new float[size];
+    float[] scores = workspace.scores;
+    heatmaps.get(scores, 0, size);
+    for (int i = 0; i < size; ++i)
+      scores[i] = (float) (1. / (1. + Math.exp(-scores[i])));
+    return scores;
+  }
+
+  /**
+   * Collects the parts above the threshold that are the maximum of their local window, as packed
+   * {@code score bits << 32 | index} keys sorted by ascending score.
+   */
+  private int findCandidates(float[] scores, float threshold, Workspace workspace) {
+    final int size = height * width * numParts;
+    final int radius = localMaximumRadius;
+    if (workspace.rowMax.length < size) workspace.rowMax = new float[size];
+    float[] rowMax = workspace.rowMax;
+
+    // Horizontal pass: the maximum of each part over x - radius .. x + radius.
+    for (int y = 0; y < height; ++y) {
+      for (int x = 0; x < width; ++x) {
+        int xStart = Math.max(x - radius, 0);
+        int xEnd = Math.min(x + radius + 1, width);
+        int out = (y * width + x) * numParts;
+        for (int k = 0; k < numParts; ++k) {
+          float max = scores[(y * width + xStart) * numParts + k];
+          for (int xi = xStart + 1; xi < xEnd; ++xi)
+            max = Math.max(max, scores[(y * width + xi) * numParts + k]);
+          rowMax[out + k] = max;
+        }
+      }
+    }
+
+    int count = 0;
+    for (int y = 0; y < height; ++y) {
+      int yStart = Math.max(y - radius, 0);
+      int yEnd = Math.min(y + radius + 1, height);
+      for (int x = 0; x < width; ++x) {
+        for (int k = 0; k < numParts; ++k) {
+          int index = (y * width + x) * numParts + k;
+          float score = scores[index];
+          if (score < threshold) continue;
+
+          // Vertical pass over the row maxima, only for parts above the threshold.
+          boolean localMaximum = true;
+          for (int yi = yStart; yi < yEnd && localMaximum; ++yi)
+            localMaximum = rowMax[(yi * width + x) * numParts + k] <= score;
+          if (!localMaximum) continue;
+
+          if (count == workspace.candidates.length)
+            workspace.candidates = Arrays.copyOf(workspace.candidates, Math.max(64, count * 2));
+          workspace.candidates[count++] = ((long) Float.floatToIntBits(score) << 32) | index;
+        }
+      }
+    }
+    // Sigmoid scores are positive, so their bits sort like the scores.
+    Arrays.sort(workspace.candidates, 0, count);
+    return count;
+  }
+
+  private boolean withinNmsRadius(float[] poses, int numPoses, float squaredNmsRadius,
+                                  float y, float x, int partId) {
+    for (int p = 0; p < numPoses; ++p) {
+      int keypoint = p * 3 * numParts + 3 * partId;
+      float dy = poses[keypoint] - y;
+      float dx = poses[keypoint + 1] - x;
+      if (dy * dy + dx * dx <= squaredNmsRadius) return true;
+    }
+    return false;
+  }
+
+  // Follows the displacement of an edge from a found part and refines the target on its offsets.
+  private void traverse(int edge, float[] poses, int pose, int source, int target, float[] scores,
+                        FloatBuffer offsets, FloatBuffer displacements) {
+    int numEdges = PARENT_TO_CHILD_EDGES.length;
+    float sourceY = poses[pose + 3 * source];
+    float sourceX = poses[pose + 3 * source + 1];
+
+    int cell = nearestCell(sourceY, sourceX);
+    float y = sourceY + displacements.get(cell * 2 * numEdges + edge);
+    float x = sourceX + displacements.get(cell * 2 * numEdges + edge + numEdges);
+
+    final int offsetRefineStep = 2;
+    for (int i = 0; i < offsetRefineStep; i++) {
+      cell = nearestCell(y, x);
+      y = (cell / width) * outputStride + offsets.get(cell * 2 * numParts + target);
+      x = (cell % width) * outputStride + offsets.get(cell * 2 * numParts + target + numParts);
+    }
+
+    cell = nearestCell(y, x);
+    poses[pose + 3 * target] = y;
+    poses[pose + 3 * target + 1] = x;
+    poses[pose + 3 * target + 2] = scores[cell * numParts + target];
+  }
+
+  // Heatmap cell nearest to a point in input pixels, clamped to the map.
+  private int nearestCell(float y, float x) {
+    int cellY = Math.round(y / outputStride);
+    int cellX = Math.round(x / outputStride);
+    cellY = cellY < 0 ? 0 : cellY > height - 1 ? height - 1 : cellY;
+    cellX = cellX < 0 ? 0 : cellX > width - 1 ? width - 1 : cellX;
+    return cellY * width + cellX;
+  }
+
+  /** Result maps of normalized poses, with an {@code id} each when {@code ids} is given. */
+  List<Map<String, Object>> toResults(float[] poses, int numPoses, int[] ids) {
+    List<Map<String, Object>> results = new ArrayList<>(numPoses);
+    for (int p = 0; p < numPoses; ++p) {
+      Map<Integer, Map<String, Object>> keypoints = new HashMap<>();
+      float totalScore = 0;
+      for (int k = 0; k < numParts; ++k) {
+        int keypoint = p * 3 * numParts + 3 * k;
+        Map<String, Object> ret = new HashMap<>();
+        ret.put("score", poses[keypoint + 2]);
+        ret.put("part", PART_NAMES[k]);
+        ret.put("y", poses[keypoint]);
+        ret.put("x", poses[keypoint + 1]);
+        keypoints.put(k, ret);
+        totalScore += poses[keypoint + 2];
+      }
+
+      Map<String, Object> result = new HashMap<>();
+      result.put("keypoints", keypoints);
+      result.put("score", totalScore / numParts);
+      if (ids != null) result.put("id", ids[p]);
+      results.add(result);
+    }
+    return results;
+  }
+}
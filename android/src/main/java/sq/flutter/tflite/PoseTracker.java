@@ -0,0 +1,193 @@
+package sq.flutter.tflite;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Follows the poses of a camera stream from frame to frame. Poses get a persistent id by matching
+ * them to the tracked poses of the previous frames, and their keypoints are smoothed with an
+ * exponential moving average.
+ *
+ * <p>While poses are tracked, the next frame is only sampled around them: a square crop of the
+ * padded bounding box of their keypoints. A full frame is decoded every {@code redetectInterval}
+ * frames, to pick up people entering the frame, and whenever a cropped frame loses every pose.
+ *
+ * <p>Frames take a number from {@link #nextFrame()} when they are submitted, and only update the
+ * tracks in that order. A frame that finishes after a later frame has already updated them is
+ * matched against the tracks without changing them, and its poses without a track get id -1, so
+ * ids do not depend on the order in which concurrent frames complete.
+ */
+class PoseTracker {
+  // Matched poses are at most this far from a track, relative to the size of the track.
+  private static final float MAX_MATCH_DISTANCE = 0.5f;
+  // Tracks that are not seen for this many frames are dropped.
+  private static final int MAX_MISSED_FRAMES = 3;
+
+  private static final class Track {
+    final int id;
+    // y, x and score of every part, normalized to the frame.
+    final float[] keypoints;
+    int missed;
+
+    Track(int id, float[] keypoints) {
+      this.id = id;
+      this.keypoints = keypoints;
+    }
+  }
+
+  private final int numParts;
+  private final List<Track> tracks = new ArrayList<>();
+  private int nextId = 0;
+  private long nextFrame = 0;
+  private long lastUpdatedFrame = -1;
+  private int framesSinceFullFrame = 0;
+  private boolean lost = true;
+
+  private int redetectInterval = 10;
+  private float smoothing = 0.5f;
+  private float cropPadding = 0.25f;
+  private float keypointThreshold = 0.5f;
+
+  PoseTracker(int numParts) {
+    this.numParts = numParts;
+  }
+
+  /** Number of the next submitted frame, to be passed to {@link #update}. */
+  synchronized long nextFrame() {
+    return nextFrame++;
+  }
+
+  synchronized void configure(int redetectInterval, float smoothing, float cropPadding, float keypointThreshold) {
+    this.redetectInterval = redetectInterval;
+    this.smoothing = smoothing;
+    this.cropPadding = cropPadding;
+    this.keypointThreshold = keypointThreshold;
+  }
+
+  /**
+   * Returns the crop of the rotated frame to sample the next frame from, or null to decode the
+   * full frame.
+   */
+  synchronized InputRegion nextCrop(int frameWidth, int frameHeight) {
+    if (lost || tracks.isEmpty() || ++framesSinceFullFrame >= redetectInterval) {
+      framesSinceFullFrame = 0;
+      return null;
+    }
+
+    float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE;
+    float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+    for (Track track : tracks) {
+      for (int k = 0; k < numParts; ++k) {
+        if (track.keypoints[3 * k + 2] < keypointThreshold) continue;
+        minY = Math.min(minY, track.keypoints[3 * k] * frameHeight);
+        minX = Math.min(minX, track.keypoints[3 * k + 1] * frameWidth);
+        maxY = Math.max(maxY, track.keypoints[3 * k] * frameHeight);
+        maxX = Math.max(maxX, track.keypoints[3 * k + 1] * frameWidth);
+      }
+    }
+    if (minX > maxX) {
+      framesSinceFullFrame = 0;
+      return null;
+    }
+
+    // A square in frame pixels, so the person keeps its aspect ratio in the model input.
+    float side = Math.max(maxX - minX, maxY - minY) * (1 + 2 * cropPadding);
+    if (side >= Math.min(frameWidth, frameHeight)) {
+      framesSinceFullFrame = 0;
+      return null;
+    }
+    float x = clamp((minX + maxX - side) / 2, frameWidth - side);
+    float y = clamp((minY + maxY - side) / 2, frameHeight - side);
+    return new InputRegion(x / frameWidth, y / frameHeight, side / frameWidth, side / frameHeight, false);
+  }
+
+  /**
+   * Matches the normalized {@code poses} decoded from frame {@code frame} against the tracks,
+   * smooths them into the tracks and writes the smoothed keypoints back. Returns the track id of
+   * every pose.
+   */
+  synchronized int[] update(float[] poses, int numPoses, boolean cropped, long frame) {
+    // Later frames already moved the tracks on, so this one only reads them.
+    boolean stale = frame < lastUpdatedFrame;
+    if (!stale) lastUpdatedFrame = frame;
+    int poseSize = 3 * numParts;
+    int[] ids = new int[numPoses];
+    int numTracks = tracks.size();
+    boolean[] matched = new boolean[numTracks];
+
+    // Greedy matching: every pose, best first, takes the nearest free track of earlier frames.
+    for (int p = 0; p < numPoses; ++p) {
+      int best = -1;
+      float bestDistance = MAX_MATCH_DISTANCE;
+      for (int t = 0; t < numTracks; ++t) {
+        if (matched[t]) continue;
+        float distance = distance(tracks.get(t).keypoints, poses, p * poseSize);
+        if (distance < bestDistance) {
+          best = t;
+          bestDistance = distance;
+        }
+      }
+
+      if (best == -1 && stale) {
+        ids[p] = -1;
+        continue;
+      }
+      if (best == -1) {
+        Track track = new Track(nextId++, Arrays.copyOfRange(poses, p * poseSize, (p + 1) * poseSize));
+        tracks.add(track);
+        ids[p] = track.id;
+        continue;
+      }
+
+      matched[best] = true;
+      Track track = tracks.get(best);
+      ids[p] = track.id;
+      if (stale) continue;
+      track.missed = 0;
+      for (int k = 0; k < numParts; ++k) {
+        int i = p * poseSize + 3 * k;
+        track.keypoints[3 * k] = smoothing * track.keypoints[3 * k] + (1 - smoothing) * poses[i];
+        track.keypoints[3 * k + 1] = smoothing * track.keypoints[3 * k + 1] + (1 - smoothing) * poses[i + 1];
+        track.keypoints[3 * k + 2] = poses[i + 2];
+        poses[i] = track.keypoints[3 * k];
+        poses[i + 1] = track.keypoints[3 * k + 1];
+      }
+    }
+    if (stale) return ids;
+
+    for (int t = matched.length - 1; t >= 0; --t) {
+      if (!matched[t] && ++tracks.get(t).missed > MAX_MISSED_FRAMES) tracks.remove(t);
+    }
+    // A crop that shows nobody means the people moved out of it.
+    if (cropped && numPoses == 0) lost = true;
+    else if (numPoses > 0) lost = false;
+    return ids;
+  }
+
+  // Mean distance between confident keypoints, relative to the size of the track.
+  private float distance(float[] track, float[] poses, int offset) {
+    float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE;
+    float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+    float sum = 0;
+    int count = 0;
+    for (int k = 0; k < numParts; ++k) {
+      if (track[3 * k + 2] < keypointThreshold || poses[offset + 3 * k + 2] < keypointThreshold) continue;
+      float dy = track[3 * k] - poses[offset + 3 * k];
+      float dx = track[3 * k + 1] - poses[offset + 3 * k + 1];
+      sum += (float) Math.sqrt(dx * dx + dy * dy);
+      count++;
+      minY = Math.min(minY, track[3 * k]);
+      minX = Math.min(minX, track[3 * k + 1]);
+      maxY = Math.max(maxY, track[3 * k]);
+      maxX = Math.max(maxX, track[3 * k + 1]);
+    }
+    if (count == 0) return Float.MAX_VALUE;
+    float size = Math.max(Math.max(maxX - minX, maxY - minY), 1e-3f);
+    return sum / count / size;
+  }
+
+  private static float clamp(float value, float max) {
+    return value < 0 ? 0 : value > max ? max : value;
+  }
+}
@@ -0,0 +1,38 @@
+package sq.flutter.tflite;
+
+import android.os.Handler;
+
+import io.flutter.plugin.common.EventChannel;
+
+/**
+ * The {@code tflite/results} event channel, carrying the results of frames pushed into frame
+ * streams. Events are delivered on the platform thread while Dart listens and discarded otherwise.
+ */
+class ResultStream implements EventChannel.StreamHandler {
+  private final Handler mainHandler;
+  // Only touched on the platform thread.
+  private EventChannel.EventSink sink;
+
+  ResultStream(Handler mainHandler) {
+    this.mainHandler = mainHandler;
+  }
+
+  @Override
+  public void onListen(Object arguments, EventChannel.EventSink events) {
+    sink = events;
+  }
+
+  @Override
+  public void onCancel(Object arguments) {
+    sink = null;
+  }
+
+  void send(final Object event) {
+    mainHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        if (sink != null) sink.success(event);
+      }
+    });
+  }
+}
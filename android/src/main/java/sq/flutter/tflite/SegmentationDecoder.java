@@ -0,0 +1,272 @@
+package sq.flutter.tflite;
+
+import org.tensorflow.lite.DataType;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Turns a {@code [1, height, width, numClasses]} segmentation output into one ARGB pixel per
+ * location, colored by the palette entry of its highest scoring class, or into the class indices
+ * themselves when there is no palette. Index maps can be packed into a byte mask or run lengths
+ * and summarized per class, which is far smaller to send over the channel than an image.
+ *
+ * <p>Each row is read with one bulk copy into a per-thread array, and large outputs are split into
+ * bands of rows decoded in parallel. UINT8 scores are compared unsigned.
+ */
+class SegmentationDecoder {
+  // Below this many scores a single thread is faster than handing out bands.
+  private static final int MIN_PARALLEL_SCORES = 1 << 16;
+
+  private static ThreadPoolExecutor rowExecutor;
+
+  final int height, width, numClasses;
+  final DataType dataType;
+  // Null when decoding class indices.
+  final int[] palette;
+
+  SegmentationDecoder(int height, int width, int numClasses, DataType dataType, List<Number> labelColors) {
+    this.height = height;
+    this.width = width;
+    this.numClasses = numClasses;
+    this.dataType = dataType;
+    if (labelColors == null) {
+      this.palette = null;
+    } else {
+      // Classes without a color are left transparent.
+      this.palette = new int[numClasses];
+      for (int c = 0; c < numClasses && c < labelColors.size(); ++c)
+        palette[c] = labelColors.get(c).intValue();
+    }
+  }
+
+  /**
+   * Writes {@code height * width} ARGB pixels, or class indices without a palette, decoded from
+   * {@code output} starting at its position.
+   */
+  void decode(final ByteBuffer output, final int[] pixels) {
+    int numBands = 1;
+    if ((long) height * width * numClasses >= MIN_PARALLEL_SCORES)
+      numBands = Math.min(height, Runtime.getRuntime().availableProcessors());
+    if (numBands <= 1) {
+      decodeRows(output, 0, height, pixels);
+      return;
+    }
+
+    final CountDownLatch done = new CountDownLatch(numBands - 1);
+    final RuntimeException[] failure = new RuntimeException[1];
+    ThreadPoolExecutor executor = rowExecutor();
+    for (int band = 1; band < numBands; ++band) {
+      final int start = height * band / numBands;
+      final int end = height * (band + 1) / numBands;
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            decodeRows(output, start, end, pixels);
+          } catch (RuntimeException e) {
+            failure[0] = e;
+          } finally {
+            done.countDown();
+          }
+        }
+      });
+    }
+    // The calling thread decodes the first band itself.
+    decodeRows(output, 0, height / numBands, pixels);
+    try {
+      done.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while decoding segmentation", e);
+    }
+    if (failure[0] != null) throw failure[0];
+  }
+
+  private void decodeRows(ByteBuffer output, int start, int end, int[] pixels) {
+    final int rowSize = width * numClasses;
+    // Every band reads through its own view, so positions are never shared between threads.
+    ByteBuffer view = output.duplicate().order(output.order());
+    int base = output.position();
+
+    if (dataType == DataType.FLOAT32) {
+      FloatBuffer scores = view.asFloatBuffer();
+      float[] row = TensorImageUtils.scratch().floats(rowSize);
+      for (int y = start; y < end; ++y) {
+        scores.position(base / 4 + y * rowSize);
+        scores.get(row, 0, rowSize);
+        for (int x = 0, offset = 0; x < width; ++x, offset += numClasses) {
+          int maxIndex = 0;
+          float maxValue = Float.NEGATIVE_INFINITY;
+          for (int c = 0; c < numClasses; ++c) {
+            if (row[offset + c] > maxValue) {
+              maxIndex = c;
+              maxValue = row[offset + c];
+            }
+          }
+          pixels[y * width + x] = palette != null ? palette[maxIndex] : maxIndex;
+        }
+      }
+    } else {
+      boolean signed = dataType != DataType.UINT8;
+      byte[] row = TensorImageUtils.scratch().bytes(rowSize);
+      for (int y = start; y < end; ++y) {
+        view.position(base + y * rowSize);
+        view.get(row, 0, rowSize);
+        for (int x = 0, offset = 0; x < width; ++x, offset += numClasses) {
+          int maxIndex = 0;
+          int maxValue = Integer.MIN_VALUE;
+          for (int c = 0; c < numClasses; ++c) {
+            int value = signed ? row[offset + c] : row[offset + c] & 0xff;
+            if (value > maxValue) {
+              maxIndex = c;
+              maxValue = value;
+            }
+          }
+          pixels[y * width + x] = palette != null ? palette[maxIndex] : maxIndex;
+        }
+      }
+    }
+  }
+
+  /** One byte per pixel holding its class index. */
+  byte[] mask(int[] classes) {
+    if (numClasses > 256)
+      throw new IllegalArgumentException("A mask holds at most 256 classes, the model has " + numClasses);
+    byte[] mask = new byte[height * width];
+    for (int i = 0; i < mask.length; ++i)
+      mask[i] = (byte) classes[i];
+    return mask;
+  }
+
+  /** Class index and length of each run of equal pixels, in row-major order across rows. */
+  int[] runLengths(int[] classes) {
+    int count = height * width;
+    int[] runs = new int[64];
+    int numRuns = 0;
+    for (int start = 0; start < count; ) {
+      int cls = classes[start];
+      int end = start + 1;
+      while (end < count && classes[end] == cls) end++;
+      if (2 * numRuns + 2 > runs.length) runs = Arrays.copyOf(runs, runs.length * 2);
+      runs[2 * numRuns] = cls;
+      runs[2 * numRuns + 1] = end - start;
+      numRuns++;
+      start = end;
+    }
+    return Arrays.copyOf(runs, 2 * numRuns);
+  }
+
+  /** Same as above for a byte {@link #mask}. */
+  int[] runLengths(byte[] mask) {
+    int count = height * width;
+    int[] runs = new int[64];
+    int numRuns = 0;
+    for (int start = 0; start < count; ) {
+      byte cls = mask[start];
+      int end = start + 1;
+      while (end < count && mask[end] == cls) end++;
+      if (2 * numRuns + 2 > runs.length) runs = Arrays.copyOf(runs, runs.length * 2);
+      runs[2 * numRuns] = cls & 0xFF;
+      runs[2 * numRuns + 1] = end - start;
+      numRuns++;
+      start = end;
+    }
+    return Arrays.copyOf(runs, 2 * numRuns);
+  }
+
+  /** Pixel count and normalized bounding box of every class present in {@code classes}. */
+  List<Map<String, Object>> classStats(int[] classes, String[] labels) {
+    int[] pixelCounts = new int[numClasses];
+    int[] bounds = emptyBounds();
+    for (int y = 0, i = 0; y < height; ++y) {
+      for (int x = 0; x < width; ++x, ++i) {
+        int c = classes[i];
+        pixelCounts[c]++;
+        if (x < bounds[4 * c]) bounds[4 * c] = x;
+        if (y < bounds[4 * c + 1]) bounds[4 * c + 1] = y;
+        if (x > bounds[4 * c + 2]) bounds[4 * c + 2] = x;
+        if (y > bounds[4 * c + 3]) bounds[4 * c + 3] = y;
+      }
+    }
+    return classStats(pixelCounts, bounds, labels);
+  }
+
+  /** Same as above for a byte {@link #mask}. */
+  List<Map<String, Object>> classStats(byte[] mask, String[] labels) {
+    int[] pixelCounts = new int[numClasses];
+    int[] bounds = emptyBounds();
+    for (int y = 0, i = 0; y < height; ++y) {
+      for (int x = 0; x < width; ++x, ++i) {
+        int c = mask[i] & 0xFF;
+        pixelCounts[c]++;
+        if (x < bounds[4 * c]) bounds[4 * c] = x;
+        if (y < bounds[4 * c + 1]) bounds[4 * c + 1] = y;
+        if (x > bounds[4 * c + 2]) bounds[4 * c + 2] = x;
+        if (y > bounds[4 * c + 3]) bounds[4 * c + 3] = y;
+      }
+    }
+    return classStats(pixelCounts, bounds, labels);
+  }
+
+  private int[] emptyBounds() {
+    int[] bounds = new int[4 * numClasses];
+    for (int c = 0; c < numClasses; ++c) {
+      bounds[4 * c] = width;
+      bounds[4 * c + 1] = height;
+      bounds[4 * c + 2] = -1;
+      bounds[4 * c + 3] = -1;
+    }
+    return bounds;
+  }
+
+  private List<Map<String, Object>> classStats(int[] pixelCounts, int[] bounds, String[] labels) {
+    List<Map<String, Object>> stats = new ArrayList<>();
+    for (int c = 0; c < numClasses; ++c) {
+      if (pixelCounts[c] == 0) continue;
+      Map<String, Object> rect = new HashMap<>();
+      rect.put("x", (float) bounds[4 * c] / width);
+      rect.put("y", (float) bounds[4 * c + 1] / height);
+      rect.put("w", (float) (bounds[4 * c + 2] - bounds[4 * c] + 1) / width);
+      rect.put("h", (float) (bounds[4 * c + 3] - bounds[4 * c + 1] + 1) / height);
+
+      Map<String, Object> ret = new HashMap<>();
+      ret.put("index", c);
+      if (labels != null) ret.put("label", labels.length > c ? labels[c] : "unknown");
+      ret.put("pixelCount", pixelCounts[c]);
+      ret.put("rect", rect);
+      stats.add(ret);
+    }
+    return stats;
+  }
+
+  private static synchronized ThreadPoolExecutor rowExecutor() {
+    if (rowExecutor == null) {
+      final AtomicInteger threadCount = new AtomicInteger();
+      ThreadFactory threadFactory = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "tflite-argmax-" + threadCount.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      };
+      int numThreads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+      rowExecutor = new ThreadPoolExecutor(numThreads, numThreads, 30, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(), threadFactory);
+      rowExecutor.allowCoreThreadTimeOut(true);
+    }
+    return rowExecutor;
+  }
+}
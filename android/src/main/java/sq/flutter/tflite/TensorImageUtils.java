@@ -0,0 +1,286 @@
+package sq.flutter.tflite;
+
+import org.tensorflow.lite.DataType;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * Bulk conversions between ARGB pixel arrays and input/output tensors. Pixels are read and
+ * written as whole arrays instead of one {@code Bitmap.getPixel} call per pixel, and tensors are
+ * filled in a single pass.
+ */
+final class TensorImageUtils {
+  private TensorImageUtils() {
+  }
+
+  /** Per-thread scratch arrays, grown on demand and reused across requests. */
+  static final class Scratch {
+    int[] pixels = new int[0];
+    float[] floats = new float[0];
+    byte[] bytes = new byte[0];
+
+    int[] pixels(int size) {
+      if (pixels.length < size) pixels = new int[size];
+      return pixels;
+    }
+
+    float[] floats(int size) {
+      if (floats.length < size) floats = new float[size];
+      return floats;
+    }
+
+    byte[] bytes(int size) {
+      if (bytes.length < size) bytes = new byte[size];
+      return bytes;
+    }
+  }
+
+  private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+    @Override
+    protected Scratch initialValue() {
+      return new Scratch();
+    }
+  };
+
+  static Scratch scratch() {
+    return SCRATCH.get();
+  }
+
+  /**
+   * Writes {@code count} ARGB pixels into {@code tensor} starting at its current position. RGB
+   * tensors get three channels per pixel, grayscale tensors ({@code channels == 1}) one. FLOAT32
+   * values are normalized with {@code (value - mean) / std}, UINT8 values are copied as is.
+   */
+  static void pixelsToTensor(int[] pixels, int count, int channels, DataType dataType,
+                             float mean, float std, ByteBuffer tensor) {
+    int size = count * (channels > 1 ? 3 : 1);
+
+    if (dataType == DataType.FLOAT32) {
+      // Normalized values go straight into a float view of the tensor, without a pass through an
+      // intermediate float[].
+      FloatBuffer floatBuffer = tensor.asFloatBuffer();
+      if (channels > 1) {
+        for (int i = 0; i < count; ++i) {
+          int pixelValue = pixels[i];
+          floatBuffer.put((((pixelValue >> 16) & 0xFF) - mean) / std);
+          floatBuffer.put((((pixelValue >> 8) & 0xFF) - mean) / std);
+          floatBuffer.put(((pixelValue & 0xFF) - mean) / std);
+        }
+      } else {
+        for (int i = 0; i < count; ++i) {
+          int pixelValue = pixels[i];
+          floatBuffer.put((((pixelValue >> 16 | pixelValue >> 8 | pixelValue) & 0xFF) - mean) / std);
+        }
+      }
+      tensor.position(tensor.position() + size * 4);
+    } else {
+      byte[] values = scratch().bytes(size);
+      int k = 0;
+      if (channels > 1) {
+        for (int i = 0; i < count; ++i) {
+          int pixelValue = pixels[i];
+          values[k++] = (byte) ((pixelValue >> 16) & 0xFF);
+          values[k++] = (byte) ((pixelValue >> 8) & 0xFF);
+          values[k++] = (byte) (pixelValue & 0xFF);
+        }
+      } else {
+        for (int i = 0; i < count; ++i) {
+          int pixelValue = pixels[i];
+          values[k++] = (byte) ((pixelValue >> 16 | pixelValue >> 8 | pixelValue) & 0xFF);
+        }
+      }
+      tensor.put(values, 0, size);
+    }
+  }
+
+  /**
+   * Samples a YUV_420_888 camera frame straight into {@code tensor} in one pass: the frame is
+   * rotated clockwise by {@code rotation} (0, 90, 180 or 270 degrees), scaled to
+   * {@code dstWidth x dstHeight} with nearest-neighbour sampling, converted to RGB (or luminance
+   * when {@code channels == 1}) and normalized like {@link #pixelsToTensor}. Only the pixels that
+   * end up in the tensor are read, and no intermediate frame or bitmap is created.
+   */
+  static void yuvToTensor(byte[] yPlane, byte[] uPlane, byte[] vPlane,
+                          int yRowStride, int uvRowStride, int uvPixelStride,
+                          int imageWidth, int imageHeight, int rotation,
+                          int dstWidth, int dstHeight, int channels, DataType dataType,
+                          float mean, float std, ByteBuffer tensor) {
+    yuvToTensor(yPlane, uPlane, vPlane, yRowStride, uvRowStride, uvPixelStride,
+        imageWidth, imageHeight, rotation, null, dstWidth, dstHeight, channels, dataType,
+        mean, std, tensor);
+  }
+
+  /**
+   * Same as above, sampling only {@code region} of the rotated frame. Tensor pixels outside its
+   * content rectangle (letterbox bars) are black, and parts of the region outside the frame repeat
+   * its edge pixels.
+   */
+  static void yuvToTensor(byte[] yPlane, byte[] uPlane, byte[] vPlane,
+                          int yRowStride, int uvRowStride, int uvPixelStride,
+                          int imageWidth, int imageHeight, int rotation, InputRegion region,
+                          int dstWidth, int dstHeight, int channels, DataType dataType,
+                          float mean, float std, ByteBuffer tensor) {
+    boolean swapAxes = rotation == 90 || rotation == 270;
+    int rotatedWidth = swapAxes ? imageHeight : imageWidth;
+    int rotatedHeight = swapAxes ? imageWidth : imageHeight;
+    if (region != null) region.resolve(rotatedWidth, rotatedHeight, dstWidth, dstHeight);
+
+    Scratch scratch = scratch();
+    int count = dstWidth * dstHeight;
+    int[] pixels = scratch.pixels(count + dstWidth + dstHeight);
+    // Nearest rotated-frame column/row for every tensor column/row, stored after the pixels, or -1
+    // on the letterbox bars.
+    int columns = count;
+    int rows = count + dstWidth;
+    for (int x = 0; x < dstWidth; ++x)
+      pixels[columns + x] = sourceIndex((x + 0.5f) / dstWidth, region, false, rotatedWidth);
+    for (int y = 0; y < dstHeight; ++y)
+      pixels[rows + y] = sourceIndex((y + 0.5f) / dstHeight, region, true, rotatedHeight);
+
+    int i = 0;
+    for (int y = 0; y < dstHeight; ++y) {
+      int ry = pixels[rows + y];
+      for (int x = 0; x < dstWidth; ++x) {
+        int rx = pixels[columns + x];
+        if (rx < 0 || ry < 0) {
+          pixels[i++] = 0xFF000000;
+          continue;
+        }
+        int sx, sy;
+        switch (rotation) {
+          case 90:
+            sx = ry;
+            sy = imageHeight - 1 - rx;
+            break;
+          case 180:
+            sx = imageWidth - 1 - rx;
+            sy = imageHeight - 1 - ry;
+            break;
+          case 270:
+            sx = imageWidth - 1 - ry;
+            sy = rx;
+            break;
+          default:
+            sx = rx;
+            sy = ry;
+        }
+        int uvIndex = (sy >> 1) * uvRowStride + (sx >> 1) * uvPixelStride;
+        pixels[i++] = yuvToArgb(
+            yPlane[sy * yRowStride + sx] & 0xFF, uPlane[uvIndex] & 0xFF, vPlane[uvIndex] & 0xFF);
+      }
+    }
+
+    if (channels == 1) {
+      for (int k = 0; k < count; ++k)
+        pixels[k] = luminance(pixels[k]);
+    }
+    pixelsToTensor(pixels, count, channels, dataType, mean, std, tensor);
+  }
+
+  // Source column or row of a normalized tensor coordinate, or -1 on the letterbox bars.
+  private static int sourceIndex(float position, InputRegion region, boolean vertical, int size) {
+    if (region == null) return clamp((int) Math.floor(position * size), size);
+    if (vertical ? region.isPaddingY(position) : region.isPaddingX(position)) return -1;
+    float source = vertical ? region.mapY(position) : region.mapX(position);
+    return clamp((int) Math.floor(source * size), size);
+  }
+
+  private static int clamp(int value, int size) {
+    return value < 0 ? 0 : value >= size ? size - 1 : value;
+  }
+
+  // Same BT.601 coefficients as ScriptIntrinsicYuvToRGB, so models see the same colors as with
+  // the RenderScript conversion.
+  static int yuvToArgb(int y, int u, int v) {
+    int c = y - 16;
+    int d = u - 128;
+    int e = v - 128;
+    int r = (298 * c + 409 * e + 128) >> 8;
+    int g = (298 * c - 100 * d - 208 * e + 128) >> 8;
+    int b = (298 * c + 516 * d + 128) >> 8;
+    r = r < 0 ? 0 : r > 255 ? 255 : r;
+    g = g < 0 ? 0 : g > 255 ? 255 : g;
+    b = b < 0 ? 0 : b > 255 ? 255 : b;
+    return 0xFF000000 | (r << 16) | (g << 8) | b;
+  }
+
+  // Gray value of a desaturated pixel, matching ColorMatrix.setSaturation(0).
+  static int luminance(int pixelValue) {
+    int r = (pixelValue >> 16) & 0xFF;
+    int g = (pixelValue >> 8) & 0xFF;
+    int b = pixelValue & 0xFF;
+    int gray = (213 * r + 715 * g + 72 * b + 500) / 1000;
+    return 0xFF000000 | (gray << 16) | (gray << 8) | gray;
+  }
+
+  /**
+   * Reads {@code count} RGB pixels from {@code tensor} at its current position into opaque ARGB
+   * {@code pixels}. FLOAT32 values are denormalized with {@code value * std + mean}, clamped to
+   * {@code [0, 255]}.
+   */
+  static void tensorToPixels(ByteBuffer tensor, int count, DataType dataType,
+                             float mean, float std, int[] pixels) {
+    Scratch scratch = scratch();
+    int size = count * 3;
+
+    if (dataType == DataType.FLOAT32) {
+      float[] values = scratch.floats(size);
+      tensor.asFloatBuffer().get(values, 0, size);
+      tensor.position(tensor.position() + size * 4);
+      for (int i = 0, k = 0; i < count; ++i, k += 3) {
+        int pixelValue = 0xFF << 24;
+        pixelValue |= denormalize(values[k], mean, std) << 16;
+        pixelValue |= denormalize(values[k + 1], mean, std) << 8;
+        pixelValue |= denormalize(values[k + 2], mean, std);
+        pixels[i] = pixelValue;
+      }
+    } else {
+      byte[] values = scratch.bytes(size);
+      tensor.get(values, 0, size);
+      for (int i = 0, k = 0; i < count; ++i, k += 3) {
+        int pixelValue = 0xFF << 24;
+        pixelValue |= ((values[k] & 0xFF) << 16);
+        pixelValue |= ((values[k + 1] & 0xFF) << 8);
+        pixelValue |= ((values[k + 2] & 0xFF));
+        pixels[i] = pixelValue;
+      }
+    }
+  }
+
+  /**
+   * Same as {@link #tensorToPixels} but writes {@code r, g, b, a} bytes into {@code rgba}, ready to
+   * be sent without going through a bitmap.
+   */
+  static void tensorToRgba(ByteBuffer tensor, int count, DataType dataType,
+                           float mean, float std, byte[] rgba) {
+    Scratch scratch = scratch();
+    int size = count * 3;
+
+    if (dataType == DataType.FLOAT32) {
+      float[] values = scratch.floats(size);
+      tensor.asFloatBuffer().get(values, 0, size);
+      tensor.position(tensor.position() + size * 4);
+      for (int i = 0, k = 0; k < size; i += 4, k += 3) {
+        rgba[i] = (byte) denormalize(values[k], mean, std);
+        rgba[i + 1] = (byte) denormalize(values[k + 1], mean, std);
+        rgba[i + 2] = (byte) denormalize(values[k + 2], mean, std);
+        rgba[i + 3] = (byte) 0xFF;
+      }
+    } else {
+      byte[] values = scratch.bytes(size);
+      tensor.get(values, 0, size);
+      for (int i = 0, k = 0; k < size; i += 4, k += 3) {
+        rgba[i] = values[k];
+        rgba[i + 1] = values[k + 1];
+        rgba[i + 2] = values[k + 2];
+        rgba[i + 3] = (byte) 0xFF;
+      }
+    }
+  }
+
+  private static int denormalize(float value, float mean, float std) {
+    int channel = Math.round(value * std + mean);
+    return channel < 0 ? 0 : channel > 255 ? 255 : channel;
+  }
+}
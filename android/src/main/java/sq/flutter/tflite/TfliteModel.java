@@ -0,0 +1,161 @@
+package sq.flutter.tflite;
+
+import org.tensorflow.lite.DataType;
+import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.Tensor;
+import org.tensorflow.lite.gpu.GpuDelegate;
+
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A model loaded through {@code loadModel}, kept resident in the plugin's registry under its
+ * handle together with its labels and tensor metadata.
+ *
+ * <p>The model owns a pool of interpreters that all share the same mapped model file. Tasks
+ * borrow an interpreter with {@link #acquireInterpreter(boolean)} for the duration of a run, so
+ * as many requests can execute in parallel as there are interpreters in the pool.
+ */
+class TfliteModel {
+  final int handle;
+  final MappedByteBuffer buffer;
+  final int numThreads;
+  final int inputSize;
+  final int[] inputShape;
+  final DataType inputDataType;
+  final int inputNumBytes;
+  final int[][] outputShapes;
+  final DataType[] outputDataTypes;
+  final int[] outputNumBytes;
+  // Quantization of each output, scale 1 and zero point 0 for float outputs.
+  final float[] outputScales;
+  final int[] outputZeroPoints;
+  final DirectBufferPool inputBufferPool;
+  final DirectBufferPool outputBufferPool;
+  // Read-only once loaded, shared by all requests on the model.
+  String[] labels;
+
+  private final List<Interpreter> interpreters = new ArrayList<>();
+  private final List<GpuDelegate> gpuDelegates = new ArrayList<>();
+  private final BlockingQueue<Interpreter> idleInterpreters;
+  private int openInterpreters;
+  private volatile boolean closed = false;
+
+  TfliteModel(int handle,
+              MappedByteBuffer buffer,
+              int numThreads,
+              int numInterpreters,
+              boolean useGpuDelegate) {
+    this.handle = handle;
+    this.buffer = buffer;
+    this.numThreads = numThreads;
+
+    if (numInterpreters <= 0) {
+      numInterpreters = Math.max(1, Runtime.getRuntime().availableProcessors() / Math.max(1, numThreads));
+    }
+    idleInterpreters = new ArrayBlockingQueue<>(numInterpreters);
+    // Enough idle input buffers for every interpreter plus a couple of requests being prepared.
+    inputBufferPool = new DirectBufferPool(numInterpreters + 2);
+    outputBufferPool = new DirectBufferPool(numInterpreters + 2);
+
+    for (int i = 0; i < numInterpreters; ++i) {
+      final Interpreter.Options tfliteOptions = new Interpreter.Options();
+      tfliteOptions.setNumThreads(numThreads);
+      if (useGpuDelegate) {
+        GpuDelegate delegate = new GpuDelegate();
+        tfliteOptions.addDelegate(delegate);
+        gpuDelegates.add(delegate);
+      }
+      Interpreter interpreter = new Interpreter(buffer, tfliteOptions);
+      interpreters.add(interpreter);
+      idleInterpreters.add(interpreter);
+    }
+    openInterpreters = interpreters.size();
+
+    Interpreter interpreter = interpreters.get(0);
+    Tensor tensor = interpreter.getInputTensor(0);
+    inputShape = tensor.shape();
+    inputSize = inputShape[1];
+    inputDataType = tensor.dataType();
+    inputNumBytes = tensor.numBytes();
+
+    int outputCount = interpreter.getOutputTensorCount();
+    outputShapes = new int[outputCount][];
+    outputDataTypes = new DataType[outputCount];
+    outputNumBytes = new int[outputCount];
+    outputScales = new float[outputCount];
+    outputZeroPoints = new int[outputCount];
+    for (int i = 0; i < outputCount; ++i) {
+      tensor = interpreter.getOutputTensor(i);
+      outputShapes[i] = tensor.shape();
+      outputDataTypes[i] = tensor.dataType();
+      outputNumBytes[i] = tensor.numBytes();
+      Tensor.QuantizationParams quantization = tensor.quantizationParams();
+      boolean quantized = quantization != null && quantization.getScale() != 0;
+      outputScales[i] = quantized ? quantization.getScale() : 1;
+      outputZeroPoints[i] = quantized ? quantization.getZeroPoint() : 0;
+    }
+  }
+
+  int numInterpreters() {
+    return interpreters.size();
+  }
+
+  /**
+   * Borrows an idle interpreter. When {@code wait} is false and every interpreter is in use the
+   * request fails straight away instead of blocking the calling thread.
+   */
+  Interpreter acquireInterpreter(boolean wait) {
+    Interpreter interpreter = idleInterpreters.poll();
+    try {
+      while (interpreter == null && wait && !closed) {
+        interpreter = idleInterpreters.poll(100, TimeUnit.MILLISECONDS);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while waiting for an interpreter", e);
+    }
+    if (closed) {
+      if (interpreter != null) releaseInterpreter(interpreter);
+      throw new RuntimeException("Model " + handle + " has been closed");
+    }
+    if (interpreter == null) throw new RuntimeException("Interpreter busy");
+    return interpreter;
+  }
+
+  void releaseInterpreter(Interpreter interpreter) {
+    synchronized (this) {
+      if (closed) {
+        closeInterpreter(interpreter);
+        return;
+      }
+      idleInterpreters.offer(interpreter);
+    }
+  }
+
+  private void closeInterpreter(Interpreter interpreter) {
+    interpreter.close();
+    if (--openInterpreters == 0) {
+      for (GpuDelegate delegate : gpuDelegates)
+        delegate.close();
+    }
+  }
+
+  /**
+   * Closes idle interpreters right away. Interpreters that are still running are closed as soon
+   * as they are released.
+   */
+  synchronized void close() {
+    if (closed) return;
+    closed = true;
+    Interpreter interpreter;
+    while ((interpreter = idleInterpreters.poll()) != null)
+      closeInterpreter(interpreter);
+    inputBufferPool.clear();
+    outputBufferPool.clear();
+  }
+}
@@ -10,7 +10,10 @@ import android.graphics.ColorMatrixColorFilter;
 import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.BitmapFactory;
-import android.os.AsyncTask;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.SystemClock;
 import android.renderscript.Allocation;
 import android.renderscript.Element;
@@ -19,6 +22,7 @@ import android.renderscript.ScriptIntrinsicYuvToRGB;
 import android.renderscript.Type;
 import android.util.Log;
 
+import io.flutter.plugin.common.EventChannel;
 import io.flutter.plugin.common.MethodCall;
 import io.flutter.plugin.common.MethodChannel;
 import io.flutter.plugin.common.MethodChannel.MethodCallHandler;
@@ -29,62 +33,92 @@ import org.tensorflow.lite.DataType;
 import org.tensorflow.lite.Interpreter;
 import org.tensorflow.lite.Tensor;
 
-import org.tensorflow.lite.gpu.GpuDelegate;
-
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.PriorityQueue;
-import java.util.Vector;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 public class TflitePlugin implements MethodCallHandler {
   private final Registrar mRegistrar;
-  private Interpreter tfLite;
-  private boolean tfLiteBusy = false;
-  private int inputSize = 0;
-  private Vector<String> labels;
-  float[][] labelProb;
+  private final Map<Integer, TfliteModel> models = new HashMap<>();
+  private int nextModelHandle = 0;
+  private int defaultModelHandle = -1;
+  private final InferenceExecutor inferenceExecutor = new InferenceExecutor(1);
+  private final ImageEncoder imageEncoder = new ImageEncoder();
+  // Fills the next batch of runModelOnImages and detectObjectOnImages while one is in inference.
+  private final ExecutorService batchPreparer = Executors.newCachedThreadPool(new ThreadFactory() {
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "tflite-batch-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+  // RGBA arrays of Pix2Pix replies, a few per size are enough for frames in flight.
+  private final ByteArrayPool outputArrayPool = new ByteArrayPool(4);
+  // Pose trackers by "handle/tracker/trackerId", "stream/id" or "handle/frames".
+  private final Map<String, PoseTracker> poseTrackers = new HashMap<>();
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  private final ResultStream resultStream = new ResultStream(mainHandler);
+  // Streams opened with openFrameStream, by id. Only touched on the platform thread.
+  private final Map<Integer, FrameStream> frameStreams = new HashMap<>();
+  private int nextFrameStreamId = 0;
+  private int numWorkers = 0;
+  // Set while pipelined frame processing is enabled through setExecutorOptions.
+  private volatile FramePipeline framePipeline;
+
+  // RenderScript objects for the bitmap frame path, created on first use and cached by frame size.
+  private RenderScript renderScript;
+  private ScriptIntrinsicYuvToRGB yuvToRgbIntrinsic;
+  private Allocation yuvAllocation, rgbaAllocation;
+  private int yuvAllocationSize, rgbaAllocationWidth, rgbaAllocationHeight;
   private static final int BYTES_PER_CHANNEL = 4;
-
-  String[] partNames = {
-      "nose", "leftEye", "rightEye", "leftEar", "rightEar", "leftShoulder",
-      "rightShoulder", "leftElbow", "rightElbow", "leftWrist", "rightWrist",
-      "leftHip", "rightHip", "leftKnee", "rightKnee", "leftAnkle", "rightAnkle"
-  };
-
-  String[][] poseChain = {
-      {"nose", "leftEye"}, {"leftEye", "leftEar"}, {"nose", "rightEye"},
-      {"rightEye", "rightEar"}, {"nose", "leftShoulder"},
-      {"leftShoulder", "leftElbow"}, {"leftElbow", "leftWrist"},
-      {"leftShoulder", "leftHip"}, {"leftHip", "leftKnee"},
-      {"leftKnee", "leftAnkle"}, {"nose", "rightShoulder"},
-      {"rightShoulder", "rightElbow"}, {"rightElbow", "rightWrist"},
-      {"rightShoulder", "rightHip"}, {"rightHip", "rightKnee"},
-      {"rightKnee", "rightAnkle"}
-  };
-
-  Map<String, Integer> partsIds = new HashMap<>();
-  List<Integer> parentToChildEdges = new ArrayList<>();
-  List<Integer> childToParentEdges = new ArrayList<>();
+  private static final long DEFAULT_BATCH_MEMORY_BUDGET = 32 << 20;
+
+  private static final Set<String> TASK_METHODS = new HashSet<>(Arrays.asList(
+      "runModelOnImage", "runModelOnBinary", "runModelOnFrame",
+      "detectObjectOnImage", "detectObjectOnBinary", "detectObjectOnFrame",
+      "runPix2PixOnImage", "runPix2PixOnBinary", "runPix2PixOnFrame",
+      "runSegmentationOnImage", "runSegmentationOnBinary", "runSegmentationOnFrame",
+      "runPoseNetOnImage", "runPoseNetOnBinary", "runPoseNetOnFrame",
+      "runModelOnImages", "detectObjectOnImages",
+      "detectObjectOnImageTiled", "runSegmentationOnImageTiled"
+  ));
 
   public static void registerWith(Registrar registrar) {
     final MethodChannel channel = new MethodChannel(registrar.messenger(), "tflite");
-    channel.setMethodCallHandler(new TflitePlugin(registrar));
+    final TflitePlugin plugin = new TflitePlugin(registrar);
+    channel.setMethodCallHandler(plugin);
+    final EventChannel results = new EventChannel(registrar.messenger(), "tflite/results");
+    results.setStreamHandler(plugin.resultStream);
   }
 
   private TflitePlugin(Registrar registrar) {
@@ -95,109 +129,50 @@ public class TflitePlugin implements MethodCallHandler {
   public void onMethodCall(MethodCall call, Result result) {
     if (call.method.equals("loadModel")) {
       try {
-        String res = loadModel((HashMap) call.arguments);
+        int res = loadModel((HashMap) call.arguments);
         result.success(res);
       } catch (Exception e) {
         result.error("Failed to load model", e.getMessage(), e);
       }
-    } else if (call.method.equals("runModelOnImage")) {
-      try {
-        new RunModelOnImage((HashMap) call.arguments, result).executeTfliteTask();
-      } catch (Exception e) {
-        result.error("Failed to run model", e.getMessage(), e);
-      }
-    } else if (call.method.equals("runModelOnBinary")) {
-      try {
-        new RunModelOnBinary((HashMap) call.arguments, result).executeTfliteTask();
-      } catch (Exception e) {
-        result.error("Failed to run model", e.getMessage(), e);
-      }
-    } else if (call.method.equals("runModelOnFrame")) {
-      try {
-        new RunModelOnFrame((HashMap) call.arguments, result).executeTfliteTask();
-      } catch (Exception e) {
-        result.error("Failed to run model", e.getMessage(), e);
-      }
-    } else if (call.method.equals("detectObjectOnImage")) {
-      try {
-        detectObjectOnImage((HashMap) call.arguments, result);
-      } catch (Exception e) {
-        result.error("Failed to run model", e.getMessage(), e);
-      }
-    } else if (call.method.equals("detectObjectOnBinary")) {
-      try {
-        detectObjectOnBinary((HashMap) call.arguments, result);
-      } catch (Exception e) {
-        result.error("Failed to run model", e.getMessage(), e);
-      }
-    } else if (call.method.equals("detectObjectOnFrame")) {
-      try {
-        detectObjectOnFrame((HashMap) call.arguments, result);
-      } catch (Exception e) {
-        result.error("Failed to run model", e.getMessage(), e);
-      }
+    } else if (TASK_METHODS.contains(call.method)) {
+      runTask(call.method, (HashMap) call.arguments, result);
     } else if (call.method.equals("close")) {
-      close();
-    } else if (call.method.equals("runPix2PixOnImage")) {
-      try {
-        new RunPix2PixOnImage((HashMap) call.arguments, result).executeTfliteTask();
-      } catch (Exception e) {
-        result.error("Failed to run model", e.getMessage(), e);
-      }
-    } else if (call.method.equals("runPix2PixOnBinary")) {
-      try {
-        new RunPix2PixOnBinary((HashMap) call.arguments, result).executeTfliteTask();
-      } catch (Exception e) {
-        result.error("Failed to run model", e.getMessage(), e);
-      }
-    } else if (call.method.equals("runPix2PixOnFrame")) {
-      try {
-        new RunPix2PixOnFrame((HashMap) call.arguments, result).executeTfliteTask();
-      } catch (Exception e) {
-        result.error("Failed to run model", e.getMessage(), e);
-      }
-    } else if (call.method.equals("runSegmentationOnImage")) {
-      try {
-        new RunSegmentationOnImage((HashMap) call.arguments, result).executeTfliteTask();
-      } catch (Exception e) {
-        result.error("Failed to run model", e.getMessage(), e);
-      }
-    } else if (call.method.equals("runSegmentationOnBinary")) {
+      close((HashMap) call.arguments);
+      result.success(null);
+    } else if (call.method.equals("setExecutorOptions")) {
       try {
-        new RunSegmentationOnBinary((HashMap) call.arguments, result).executeTfliteTask();
+        setExecutorOptions((HashMap) call.arguments);
+        result.success(null);
       } catch (Exception e) {
-        result.error("Failed to run model", e.getMessage(), e);
+        result.error("Failed to set executor options", e.getMessage(), e);
       }
-    } else if (call.method.equals("runSegmentationOnFrame")) {
+    } else if (call.method.equals("getStats")) {
+      result.success(getStats());
+    } else if (call.method.equals("openFrameStream")) {
       try {
-        new RunSegmentationOnFrame((HashMap) call.arguments, result).executeTfliteTask();
+        result.success(openFrameStream((HashMap) call.arguments));
       } catch (Exception e) {
-        result.error("Failed to run model", e.getMessage(), e);
+        result.error("Failed to open frame stream", e.getMessage(), e);
       }
-    } else if (call.method.equals("runPoseNetOnImage")) {
+    } else if (call.method.equals("pushFrame")) {
       try {
-        runPoseNetOnImage((HashMap) call.arguments, result);
+        result.success(pushFrame((HashMap) call.arguments));
       } catch (Exception e) {
-        result.error("Failed to run model", e.getMessage(), e);
+        result.error("Failed to push frame", e.getMessage(), e);
       }
-    } else if (call.method.equals("runPoseNetOnBinary")) {
+    } else if (call.method.equals("closeFrameStream")) {
       try {
-        runPoseNetOnBinary((HashMap) call.arguments, result);
+        closeFrameStream((HashMap) call.arguments);
+        result.success(null);
       } catch (Exception e) {
-        result.error("Failed to run model", e.getMessage(), e);
-      }
-    } else if (call.method.equals("runPoseNetOnFrame")) {
-      try {
-        runPoseNetOnFrame((HashMap) call.arguments, result);
-      } catch (Exception e) {
-        result.error("Failed to run model", e.getMessage(), e);
+        result.error("Failed to close frame stream", e.getMessage(), e);
       }
     } else {
       result.error("Invalid method", call.method.toString(), "");
     }
   }
 
-  private String loadModel(HashMap args) throws IOException {
+  private int loadModel(HashMap args) throws IOException {
     String model = args.get("model").toString();
     Object isAssetObj = args.get("isAsset");
     boolean isAsset = isAssetObj == null ? false : (boolean) isAssetObj;
@@ -221,34 +196,108 @@ public class TflitePlugin implements MethodCallHandler {
     }
 
     int numThreads = (int) args.get("numThreads");
+    Object numInterpretersObj = args.get("numInterpreters");
+    int numInterpreters = numInterpretersObj == null ? 1 : (int) numInterpretersObj;
     Boolean useGpuDelegate = (Boolean) args.get("useGpuDelegate");
     if (useGpuDelegate == null) {
       useGpuDelegate = false;
     }
 
-    final Interpreter.Options tfliteOptions = new Interpreter.Options();
-    tfliteOptions.setNumThreads(numThreads);
-    if (useGpuDelegate){
-      GpuDelegate delegate = new GpuDelegate();
-      tfliteOptions.addDelegate(delegate);
+    int handle;
+    synchronized (models) {
+      handle = nextModelHandle++;
     }
-    tfLite = new Interpreter(buffer, tfliteOptions);
+    TfliteModel tfliteModel = new TfliteModel(handle, buffer, numThreads, numInterpreters, useGpuDelegate);
 
     String labels = args.get("labels").toString();
 
     if (labels.length() > 0) {
       if (isAsset) {
         key = mRegistrar.lookupKeyForAsset(labels);
-        loadLabels(assetManager, key);
+        loadLabels(tfliteModel, assetManager, key);
       } else {
-        loadLabels(null, labels);
+        loadLabels(tfliteModel, null, labels);
+      }
+    }
+
+    synchronized (models) {
+      models.put(tfliteModel.handle, tfliteModel);
+      defaultModelHandle = tfliteModel.handle;
+      updateNumWorkers();
+    }
+    return tfliteModel.handle;
+  }
+
+  private void setExecutorOptions(HashMap args) {
+    Object numWorkersObj = args.get("numWorkers");
+    Object queueSizeObj = args.get("queueSize");
+    Object overflowPolicyObj = args.get("overflowPolicy");
+    Object pipelinedObj = args.get("pipelined");
+
+    int queueSize = queueSizeObj == null ? InferenceExecutor.DEFAULT_QUEUE_CAPACITY : (int) queueSizeObj;
+    InferenceExecutor.OverflowPolicy overflowPolicy = InferenceExecutor.OverflowPolicy.fromString(
+        overflowPolicyObj == null ? null : overflowPolicyObj.toString());
+    inferenceExecutor.configure(queueSize, overflowPolicy);
+
+    synchronized (models) {
+      numWorkers = numWorkersObj == null ? 0 : (int) numWorkersObj;
+      boolean pipelined = pipelinedObj != null && (boolean) pipelinedObj;
+      if (pipelined && framePipeline == null) {
+        framePipeline = new FramePipeline(1);
+      } else if (!pipelined && framePipeline != null) {
+        framePipeline.shutdown();
+        framePipeline = null;
+      }
+      updateNumWorkers();
+    }
+  }
+
+  // Unless set explicitly, there is one worker per interpreter so every interpreter can be busy
+  // while further requests wait in the executor queue.
+  private void updateNumWorkers() {
+    int workers = numWorkers;
+    if (workers <= 0) {
+      for (TfliteModel tfliteModel : models.values())
+        workers += tfliteModel.numInterpreters();
+    }
+    inferenceExecutor.setNumWorkers(workers);
+    if (framePipeline != null) framePipeline.setNumInferenceWorkers(workers);
+  }
+
+  private Map<String, Object> getStats() {
+    Map<String, Object> stats = new HashMap<>();
+    stats.put("executor", inferenceExecutor.getStats());
+    FramePipeline pipeline = framePipeline;
+    if (pipeline != null) stats.put("pipeline", pipeline.getStats());
+    stats.put("encoder", imageEncoder.getStats());
+    stats.put("outputArrayPool", outputArrayPool.getStats());
+
+    Map<Integer, Object> modelStats = new HashMap<>();
+    synchronized (models) {
+      for (TfliteModel tfliteModel : models.values()) {
+        Map<String, Object> stat = new HashMap<>();
+        stat.put("numInterpreters", tfliteModel.numInterpreters());
+        stat.put("inputBufferPool", tfliteModel.inputBufferPool.getStats());
+        stat.put("outputBufferPool", tfliteModel.outputBufferPool.getStats());
+        modelStats.put(tfliteModel.handle, stat);
       }
     }
+    stats.put("models", modelStats);
+    return stats;
+  }
 
-    return "success";
+  private TfliteModel getModel(HashMap args) {
+    Object handleObj = args == null ? null : args.get("handle");
+    synchronized (models) {
+      int handle = handleObj == null ? defaultModelHandle : (int) handleObj;
+      TfliteModel tfliteModel = models.get(handle);
+      if (tfliteModel == null)
+        throw new RuntimeException("No model loaded for handle " + handle);
+      return tfliteModel;
+    }
   }
 
-  private void loadLabels(AssetManager assetManager, String path) {
+  private void loadLabels(TfliteModel tfliteModel, AssetManager assetManager, String path) {
     BufferedReader br;
     try {
       if (assetManager != null) {
@@ -257,93 +306,108 @@ public class TflitePlugin implements MethodCallHandler {
         br = new BufferedReader(new InputStreamReader(new FileInputStream(new File(path))));
       }
       String line;
-      labels = new Vector<>();
+      List<String> labels = new ArrayList<>();
       while ((line = br.readLine()) != null) {
         labels.add(line);
       }
-      labelProb = new float[1][labels.size()];
+      tfliteModel.labels = labels.toArray(new String[0]);
       br.close();
     } catch (IOException e) {
       throw new RuntimeException("Failed to read label file", e);
     }
   }
 
-  private List<Map<String, Object>> GetTopN(int numResults, float threshold) {
-    PriorityQueue<Map<String, Object>> pq =
-        new PriorityQueue<>(
-            1,
-            new Comparator<Map<String, Object>>() {
-              @Override
-              public int compare(Map<String, Object> lhs, Map<String, Object> rhs) {
-                return Float.compare((float) rhs.get("confidence"), (float) lhs.get("confidence"));
-              }
-            });
-
-    for (int i = 0; i < labels.size(); ++i) {
-      float confidence = labelProb[0][i];
-      if (confidence > threshold) {
-        Map<String, Object> res = new HashMap<>();
-        res.put("index", i);
-        res.put("label", labels.size() > i ? labels.get(i) : "unknown");
-        res.put("confidence", confidence);
-        pq.add(res);
-      }
-    }
-
-    final ArrayList<Map<String, Object>> recognitions = new ArrayList<>();
-    int recognitionsSize = Math.min(pq.size(), numResults);
-    for (int i = 0; i < recognitionsSize; ++i) {
-      recognitions.add(pq.poll());
+  /**
+   * Reads the scores of one image from the current position of {@code output}. Quantized scores are
+   * ranked raw and only the returned ones are dequantized.
+   */
+  private List<Map<String, Object>> GetTopN(TfliteModel tfliteModel, ByteBuffer output, int numResults, float threshold) {
+    String[] labels = tfliteModel.labels;
+    DataType dataType = tfliteModel.outputDataTypes[0];
+    float scale = tfliteModel.outputScales[0];
+    int zeroPoint = tfliteModel.outputZeroPoints[0];
+    TensorImageUtils.Scratch scratch = TensorImageUtils.scratch();
+
+    float[] labelProb = null;
+    byte[] quantized = null;
+    int numClasses;
+    int[] top;
+    int count;
+    if (dataType == DataType.UINT8 || dataType == DataType.INT8) {
+      numClasses = tfliteModel.outputNumBytes[0];
+      quantized = scratch.bytes(numClasses);
+      output.get(quantized, 0, numClasses);
+      top = new int[Math.max(0, Math.min(numResults, numClasses))];
+      // scale * (raw - zeroPoint) > threshold exactly when raw > threshold / scale + zeroPoint.
+      int rawThreshold = (int) Math.floor(threshold / scale + zeroPoint);
+      count = TopK.select(quantized, numClasses, dataType == DataType.INT8, top.length, rawThreshold, top);
+    } else {
+      numClasses = tfliteModel.outputNumBytes[0] / 4;
+      labelProb = scratch.floats(numClasses);
+      output.asFloatBuffer().get(labelProb, 0, numClasses);
+      output.position(output.position() + numClasses * 4);
+      top = new int[Math.max(0, Math.min(numResults, numClasses))];
+      count = TopK.select(labelProb, numClasses, top.length, threshold, top);
+    }
+
+    final ArrayList<Map<String, Object>> recognitions = new ArrayList<>(count);
+    for (int k = 0; k < count; ++k) {
+      int i = top[k];
+      float confidence = labelProb != null
+          ? labelProb[i]
+          : scale * ((dataType == DataType.INT8 ? quantized[i] : quantized[i] & 0xff) - zeroPoint);
+      Map<String, Object> res = new HashMap<>();
+      res.put("index", i);
+      res.put("label", labels.length > i ? labels[i] : "unknown");
+      res.put("confidence", confidence);
+      recognitions.add(res);
     }
 
     return recognitions;
   }
 
-  Bitmap feedOutput(ByteBuffer imgData, float mean, float std) {
-    Tensor tensor = tfLite.getOutputTensor(0);
-    int outputSize = tensor.shape()[1];
-    Bitmap bitmapRaw = Bitmap.createBitmap(outputSize, outputSize, Bitmap.Config.ARGB_8888);
-
-    if (tensor.dataType() == DataType.FLOAT32) {
-      for (int i = 0; i < outputSize; ++i) {
-        for (int j = 0; j < outputSize; ++j) {
-          int pixelValue = 0xFF << 24;
-          pixelValue |= ((Math.round(imgData.getFloat() * std + mean) & 0xFF) << 16);
-          pixelValue |= ((Math.round(imgData.getFloat() * std + mean) & 0xFF) << 8);
-          pixelValue |= ((Math.round(imgData.getFloat() * std + mean) & 0xFF));
-          bitmapRaw.setPixel(j, i, pixelValue);
-        }
-      }
-    } else {
-      for (int i = 0; i < outputSize; ++i) {
-        for (int j = 0; j < outputSize; ++j) {
-          int pixelValue = 0xFF << 24;
-          pixelValue |= ((imgData.get() & 0xFF) << 16);
-          pixelValue |= ((imgData.get() & 0xFF) << 8);
-          pixelValue |= ((imgData.get() & 0xFF));
-          bitmapRaw.setPixel(j, i, pixelValue);
-        }
-      }
-    }
+  Bitmap feedOutput(TfliteModel tfliteModel, ByteBuffer imgData, float mean, float std) {
+    int outputHeight = tfliteModel.outputShapes[0][1];
+    int outputWidth = tfliteModel.outputShapes[0][2];
+    Bitmap bitmapRaw = Bitmap.createBitmap(outputWidth, outputHeight, Bitmap.Config.ARGB_8888);
+
+    int[] pixels = TensorImageUtils.scratch().pixels(outputWidth * outputHeight);
+    TensorImageUtils.tensorToPixels(imgData, outputWidth * outputHeight, tfliteModel.outputDataTypes[0], mean, std, pixels);
+    bitmapRaw.setPixels(pixels, 0, outputWidth, 0, 0, outputWidth, outputHeight);
     return bitmapRaw;
   }
 
-  ByteBuffer feedInputTensor(Bitmap bitmapRaw, float mean, float std) throws IOException {
-    Tensor tensor = tfLite.getInputTensor(0);
-    int[] shape = tensor.shape();
-    inputSize = shape[1];
-    int inputChannels = shape[3];
+  ByteBuffer feedInputTensor(TfliteModel tfliteModel, Bitmap bitmapRaw, float mean, float std, InputRegion region) throws IOException {
+    int inputSize = tfliteModel.inputSize;
+    int inputChannels = tfliteModel.inputShape[3];
+    int bytePerChannel = tfliteModel.inputDataType == DataType.UINT8 ? 1 : BYTES_PER_CHANNEL;
+    ByteBuffer imgData = tfliteModel.inputBufferPool.acquire(1 * inputSize * inputSize * inputChannels * bytePerChannel);
+
+    writeInputTensor(tfliteModel, bitmapRaw, mean, std, region, imgData);
+    return imgData;
+  }
+
+  void writeInputTensor(TfliteModel tfliteModel, Bitmap bitmapRaw, float mean, float std, ByteBuffer imgData) {
+    writeInputTensor(tfliteModel, bitmapRaw, mean, std, null, imgData);
+  }
 
-    int bytePerChannel = tensor.dataType() == DataType.UINT8 ? 1 : BYTES_PER_CHANNEL;
-    ByteBuffer imgData = ByteBuffer.allocateDirect(1 * inputSize * inputSize * inputChannels * bytePerChannel);
-    imgData.order(ByteOrder.nativeOrder());
+  // Scales the bitmap, or only the given region of it, to the model input in a single draw and
+  // writes it into imgData at its current position.
+  void writeInputTensor(TfliteModel tfliteModel, Bitmap bitmapRaw, float mean, float std, InputRegion region, ByteBuffer imgData) {
+    int inputSize = tfliteModel.inputSize;
+    int inputChannels = tfliteModel.inputShape[3];
+    DataType inputDataType = tfliteModel.inputDataType;
 
     Bitmap bitmap = bitmapRaw;
-    if (bitmapRaw.getWidth() != inputSize || bitmapRaw.getHeight() != inputSize) {
-      Matrix matrix = getTransformationMatrix(bitmapRaw.getWidth(), bitmapRaw.getHeight(),
-          inputSize, inputSize, false);
+    if (region != null || bitmapRaw.getWidth() != inputSize || bitmapRaw.getHeight() != inputSize) {
+      if (region == null) region = new InputRegion(0, 0, 1, 1, false);
+      region.resolve(bitmapRaw.getWidth(), bitmapRaw.getHeight(), inputSize, inputSize);
+      Matrix matrix = region.toMatrix(bitmapRaw.getWidth(), bitmapRaw.getHeight(), inputSize, inputSize);
+      // New bitmaps are transparent black, which the letterbox bars keep.
       bitmap = Bitmap.createBitmap(inputSize, inputSize, Bitmap.Config.ARGB_8888);
       final Canvas canvas = new Canvas(bitmap);
+      canvas.clipRect(region.contentX * inputSize, region.contentY * inputSize,
+          (region.contentX + region.contentWidth) * inputSize, (region.contentY + region.contentHeight) * inputSize);
       if (inputChannels == 1){
         Paint paint = new Paint();
         ColorMatrix cm = new ColorMatrix();
@@ -356,45 +420,107 @@ public class TflitePlugin implements MethodCallHandler {
       }
     }
 
-    if (tensor.dataType() == DataType.FLOAT32) {
-      for (int i = 0; i < inputSize; ++i) {
-        for (int j = 0; j < inputSize; ++j) {
-          int pixelValue = bitmap.getPixel(j, i);
-          if (inputChannels > 1){
-            imgData.putFloat((((pixelValue >> 16) & 0xFF) - mean) / std);
-            imgData.putFloat((((pixelValue >> 8) & 0xFF) - mean) / std);
-            imgData.putFloat(((pixelValue & 0xFF) - mean) / std);
-          } else {
-            imgData.putFloat((((pixelValue >> 16 | pixelValue >> 8 | pixelValue) & 0xFF) - mean) / std);
-          }
-        }
-      }
-    } else {
-      for (int i = 0; i < inputSize; ++i) {
-        for (int j = 0; j < inputSize; ++j) {
-          int pixelValue = bitmap.getPixel(j, i);
-          if (inputChannels > 1){
-            imgData.put((byte) ((pixelValue >> 16) & 0xFF));
-            imgData.put((byte) ((pixelValue >> 8) & 0xFF));
-            imgData.put((byte) (pixelValue & 0xFF));
-          } else {
-            imgData.put((byte) ((pixelValue >> 16 | pixelValue >> 8 | pixelValue) & 0xFF));
-          }
-        }
-      }
-    }
+    int[] pixels = TensorImageUtils.scratch().pixels(inputSize * inputSize);
+    bitmap.getPixels(pixels, 0, inputSize, 0, 0, inputSize, inputSize);
+    TensorImageUtils.pixelsToTensor(pixels, inputSize * inputSize, inputChannels, inputDataType, mean, std, imgData);
+  }
 
+  // Copies a binary input into a pooled direct buffer in native byte order, the only copy before
+  // the interpreter reads it.
+  ByteBuffer feedInputTensorBinary(TfliteModel tfliteModel, Object binary) throws IOException {
+    ByteBuffer imgData = tfliteModel.inputBufferPool.acquire(tfliteModel.inputNumBytes);
+    try {
+      writeInputBinary(tfliteModel, binary, tfliteModel.inputNumBytes, imgData);
+    } catch (IOException | RuntimeException e) {
+      tfliteModel.inputBufferPool.release(imgData);
+      throw e;
+    }
+    imgData.rewind();
     return imgData;
   }
 
-  ByteBuffer feedInputTensorImage(String path, float mean, float std) throws IOException {
+  // Writes a binary input of exactly inputBytes bytes into imgData at its current position: a
+  // byte[] holding the tensor in the device's byte order, or a float[] from a Float32List.
+  void writeInputBinary(TfliteModel tfliteModel, Object binary, int inputBytes, ByteBuffer imgData) throws IOException {
+    if (binary instanceof float[]) {
+      float[] floats = (float[]) binary;
+      if (tfliteModel.inputDataType != DataType.FLOAT32)
+        throw new IOException("Float32List input given to a model with " + tfliteModel.inputDataType + " input");
+      if (floats.length * 4 != inputBytes)
+        throw new IOException("Expected " + inputBytes / 4 + " floats of input, got " + floats.length);
+      imgData.asFloatBuffer().put(floats);
+      imgData.position(imgData.position() + inputBytes);
+    } else if (binary instanceof byte[]) {
+      byte[] bytes = (byte[]) binary;
+      if (bytes.length != inputBytes)
+        throw new IOException("Expected " + inputBytes + " bytes of input, got " + bytes.length);
+      imgData.put(bytes);
+    } else {
+      throw new IOException("Unsupported binary input " + (binary == null ? null : binary.getClass().getSimpleName()));
+    }
+  }
+
+  Bitmap decodeImage(String path) throws IOException {
     InputStream inputStream = new FileInputStream(path.replace("file://", ""));
-    Bitmap bitmapRaw = BitmapFactory.decodeStream(inputStream);
+    try {
+      Bitmap bitmapRaw = BitmapFactory.decodeStream(inputStream);
+      if (bitmapRaw == null) throw new IOException("Failed to decode image " + path);
+      return bitmapRaw;
+    } finally {
+      inputStream.close();
+    }
+  }
+
+  ByteBuffer feedInputTensorImage(TfliteModel tfliteModel, String path, float mean, float std, InputRegion region) throws IOException {
+    Bitmap bitmapRaw = decodeImage(path);
+
+    return feedInputTensor(tfliteModel, bitmapRaw, mean, std, region);
+  }
+
+  // Samples the frame into the input tensor, only the given region of the rotated frame if not null.
+  ByteBuffer feedInputTensorFrame(TfliteModel tfliteModel, HashMap args, float mean, float std, InputRegion region) throws IOException {
+    List<byte[]> bytesList = (ArrayList) args.get("bytesList");
+    int imageHeight = (int) (args.get("imageHeight"));
+    int imageWidth = (int) (args.get("imageWidth"));
+    int rotation = (int) (args.get("rotation"));
 
-    return feedInputTensor(bitmapRaw, mean, std);
+    if (rotation % 90 != 0) {
+      return feedInputTensorFrame(tfliteModel, bytesList, imageHeight, imageWidth, mean, std, rotation, region);
+    }
+    rotation = ((rotation % 360) + 360) % 360;
+
+    byte[] yPlane = bytesList.get(0);
+    byte[] uPlane = bytesList.get(1);
+    byte[] vPlane = bytesList.get(2);
+
+    // Plane layouts come from CameraImage.planes when the caller passes them. Otherwise they are
+    // derived from the plane sizes, which include the row padding of all but the last row.
+    List<Number> bytesPerRow = (List<Number>) args.get("bytesPerRow");
+    List<Number> bytesPerPixel = (List<Number>) args.get("bytesPerPixel");
+    int chromaHeight = (imageHeight + 1) / 2;
+    int chromaWidth = (imageWidth + 1) / 2;
+    int yRowStride = bytesPerRow != null
+        ? bytesPerRow.get(0).intValue() : (yPlane.length + imageHeight - 1) / imageHeight;
+    int uvPixelStride = bytesPerPixel != null && bytesPerPixel.size() > 1 && bytesPerPixel.get(1) != null
+        ? bytesPerPixel.get(1).intValue() : (uPlane.length > chromaWidth * chromaHeight * 3 / 2 ? 2 : 1);
+    int uvRowStride = bytesPerRow != null && bytesPerRow.size() > 1
+        ? bytesPerRow.get(1).intValue() : (uPlane.length + chromaHeight - 1) / chromaHeight;
+
+    int inputSize = tfliteModel.inputSize;
+    int inputChannels = tfliteModel.inputShape[3];
+    DataType inputDataType = tfliteModel.inputDataType;
+    int bytePerChannel = inputDataType == DataType.UINT8 ? 1 : BYTES_PER_CHANNEL;
+    ByteBuffer imgData = tfliteModel.inputBufferPool.acquire(1 * inputSize * inputSize * inputChannels * bytePerChannel);
+
+    TensorImageUtils.yuvToTensor(yPlane, uPlane, vPlane, yRowStride, uvRowStride, uvPixelStride,
+        imageWidth, imageHeight, rotation, region, inputSize, inputSize, inputChannels, inputDataType,
+        mean, std, imgData);
+    return imgData;
   }
 
-  ByteBuffer feedInputTensorFrame(List<byte[]> bytesList, int imageHeight, int imageWidth, float mean, float std, int rotation) throws IOException {
+  // Converts through RenderScript and rotated bitmaps. Only used for rotations that are not a
+  // multiple of 90 degrees, which the YUV kernel does not handle.
+  ByteBuffer feedInputTensorFrame(TfliteModel tfliteModel, List<byte[]> bytesList, int imageHeight, int imageWidth, float mean, float std, int rotation, InputRegion region) throws IOException {
     ByteBuffer Y = ByteBuffer.wrap(bytesList.get(0));
     ByteBuffer U = ByteBuffer.wrap(bytesList.get(1));
     ByteBuffer V = ByteBuffer.wrap(bytesList.get(2));
@@ -410,71 +536,417 @@ public class TflitePlugin implements MethodCallHandler {
     U.get(data, Yb + Vb, Ub);
 
     Bitmap bitmapRaw = Bitmap.createBitmap(imageWidth, imageHeight, Bitmap.Config.ARGB_8888);
-    Allocation bmData = renderScriptNV21ToRGBA888(
+    renderScriptNV21ToRGBA888(
         mRegistrar.context(),
         imageWidth,
         imageHeight,
-        data);
-    bmData.copyTo(bitmapRaw);
+        data,
+        bitmapRaw);
 
     Matrix matrix = new Matrix();
     matrix.postRotate(rotation);
     bitmapRaw = Bitmap.createBitmap(bitmapRaw, 0, 0, bitmapRaw.getWidth(), bitmapRaw.getHeight(), matrix, true);
 
-    return feedInputTensor(bitmapRaw, mean, std);
+    return feedInputTensor(tfliteModel, bitmapRaw, mean, std, region);
   }
 
-  public Allocation renderScriptNV21ToRGBA888(Context context, int width, int height, byte[] nv21) {
+  public synchronized void renderScriptNV21ToRGBA888(Context context, int width, int height, byte[] nv21, Bitmap bitmap) {
     // https://stackoverflow.com/a/36409748
-    RenderScript rs = RenderScript.create(context);
-    ScriptIntrinsicYuvToRGB yuvToRgbIntrinsic = ScriptIntrinsicYuvToRGB.create(rs, Element.U8_4(rs));
+    if (renderScript == null) {
+      renderScript = RenderScript.create(context);
+      yuvToRgbIntrinsic = ScriptIntrinsicYuvToRGB.create(renderScript, Element.U8_4(renderScript));
+    }
+    RenderScript rs = renderScript;
+
+    if (yuvAllocation == null || yuvAllocationSize != nv21.length) {
+      if (yuvAllocation != null) yuvAllocation.destroy();
+      Type.Builder yuvType = new Type.Builder(rs, Element.U8(rs)).setX(nv21.length);
+      yuvAllocation = Allocation.createTyped(rs, yuvType.create(), Allocation.USAGE_SCRIPT);
+      yuvAllocationSize = nv21.length;
+    }
+
+    if (rgbaAllocation == null || rgbaAllocationWidth != width || rgbaAllocationHeight != height) {
+      if (rgbaAllocation != null) rgbaAllocation.destroy();
+      Type.Builder rgbaType = new Type.Builder(rs, Element.RGBA_8888(rs)).setX(width).setY(height);
+      rgbaAllocation = Allocation.createTyped(rs, rgbaType.create(), Allocation.USAGE_SCRIPT);
+      rgbaAllocationWidth = width;
+      rgbaAllocationHeight = height;
+    }
+
+    yuvAllocation.copyFrom(nv21);
+
+    yuvToRgbIntrinsic.setInput(yuvAllocation);
+    yuvToRgbIntrinsic.forEach(rgbaAllocation);
+    rgbaAllocation.copyTo(bitmap);
+  }
+
+  private synchronized void releaseRenderScript() {
+    if (yuvAllocation != null) yuvAllocation.destroy();
+    if (rgbaAllocation != null) rgbaAllocation.destroy();
+    if (yuvToRgbIntrinsic != null) yuvToRgbIntrinsic.destroy();
+    if (renderScript != null) renderScript.destroy();
+    yuvAllocation = null;
+    rgbaAllocation = null;
+    yuvToRgbIntrinsic = null;
+    renderScript = null;
+  }
+
+  private TfliteTask createTask(String method, HashMap args, Result result) {
+    switch (method) {
+      case "runModelOnImage":
+        return new RunModelOnImage(args, result);
+      case "runModelOnBinary":
+        return new RunModelOnBinary(args, result);
+      case "runModelOnFrame":
+        return new RunModelOnFrame(args, result);
+      case "detectObjectOnImage":
+      case "detectObjectOnBinary":
+      case "detectObjectOnFrame":
+        return detectObject(args, result);
+      case "runPix2PixOnImage":
+      case "runPix2PixOnBinary":
+      case "runPix2PixOnFrame":
+        return new RunPix2Pix(args, result);
+      case "runSegmentationOnImage":
+      case "runSegmentationOnBinary":
+      case "runSegmentationOnFrame":
+        return new RunSegmentation(args, result);
+      case "runPoseNetOnImage":
+      case "runPoseNetOnBinary":
+      case "runPoseNetOnFrame":
+        return runPoseNet(args, result);
+      case "runModelOnImages":
+        return new RunModelOnImages(args, result);
+      case "detectObjectOnImages":
+        return detectObjectOnImages(args, result);
+      case "detectObjectOnImageTiled":
+        return new RunTiledDetection(args, result);
+      case "runSegmentationOnImageTiled":
+        return new RunTiledSegmentation(args, result);
+      default:
+        throw new IllegalArgumentException("Invalid method " + method);
+    }
+  }
+
+  // Asynchronous requests only cost the platform thread the hand-off to the executor. Synchronous
+  // requests run on the calling thread and fail straight away if every interpreter is busy.
+  private void runTask(String method, HashMap args, Result result) {
+    numberTrackedFrame(method, args);
+    Object asynch = args.get("asynch");
+    if (asynch != null && (boolean) asynch) {
+      TaskRequest request = new TaskRequest(method, args, new MainThreadResult(result));
+      if (args.containsKey("bytesList")) {
+        Object handle = args.get("handle");
+        String key = (handle == null ? "default" : handle) + "/" + method;
+        FramePipeline pipeline = framePipeline;
+        if (pipeline != null) pipeline.execute(key, request);
+        else inferenceExecutor.executeFrame(key, request);
+      } else {
+        inferenceExecutor.execute(request);
+      }
+      return;
+    }
+
+    try {
+      createTask(method, args, result).executeTfliteTask();
+    } catch (Exception e) {
+      result.error("Failed to run model", e.getMessage(), e);
+    }
+  }
+
+  // Settings of a frame stream, merged into the arguments of every frame pushed into it.
+  private static class FrameStream {
+    final int id;
+    final String method;
+    final HashMap options;
+    int nextSequence = 0;
+
+    FrameStream(int id, String method, HashMap options) {
+      this.id = id;
+      this.method = method;
+      this.options = options;
+    }
+  }
+
+  private int openFrameStream(HashMap args) {
+    String method = args.get("method").toString();
+    if (!method.endsWith("OnFrame") || !TASK_METHODS.contains(method))
+      throw new IllegalArgumentException("Frame streams run *OnFrame methods, not " + method);
+    HashMap options = args.get("options") == null ? new HashMap() : new HashMap((Map) args.get("options"));
+    if (args.get("handle") != null) options.put("handle", args.get("handle"));
+    options.put("asynch", true);
+    // Fail here rather than on the first frame when there is no such model.
+    getModel(options);
+
+    int id = nextFrameStreamId++;
+    frameStreams.put(id, new FrameStream(id, method, options));
+    return id;
+  }
+
+  /**
+   * Queues a frame of a stream and returns its sequence number right away. The result is sent on
+   * the results event channel when the frame is done. Unlike *OnFrame calls, frames of a stream are
+   * not coalesced by the executor, so several can be in flight and finish out of order; with the
+   * pipeline enabled the pipeline's coalescing applies.
+   */
+  private int pushFrame(HashMap args) {
+    int id = (int) args.get("stream");
+    FrameStream stream = frameStreams.get(id);
+    if (stream == null) throw new IllegalArgumentException("No frame stream " + id);
+
+    HashMap frameArgs = new HashMap(stream.options);
+    frameArgs.putAll(args);
+    int sequence = stream.nextSequence++;
+    numberTrackedFrame(stream.method, frameArgs);
+    TaskRequest request = new TaskRequest(stream.method, frameArgs, new StreamResult(id, sequence));
+    FramePipeline pipeline = framePipeline;
+    if (pipeline != null) pipeline.execute("stream/" + id, request);
+    else inferenceExecutor.execute(request);
+    return sequence;
+  }
+
+  private void closeFrameStream(HashMap args) {
+    Object id = args.get("stream");
+    if (id == null) throw new IllegalArgumentException("No frame stream given");
+    frameStreams.remove((int) id);
+    synchronized (poseTrackers) {
+      poseTrackers.remove("stream/" + id);
+    }
+  }
+
+  // Sends the reply of a streamed frame as a {stream, sequence, result} event, or with error and
+  // message instead of result when it failed. Dropped frames have a null result.
+  private class StreamResult implements Result {
+    private final int stream;
+    private final int sequence;
+
+    StreamResult(int stream, int sequence) {
+      this.stream = stream;
+      this.sequence = sequence;
+    }
+
+    private Map<String, Object> event() {
+      Map<String, Object> event = new HashMap<>();
+      event.put("stream", stream);
+      event.put("sequence", sequence);
+      return event;
+    }
+
+    @Override
+    public void success(Object o) {
+      Map<String, Object> event = event();
+      event.put("result", o);
+      resultStream.send(event);
+    }
+
+    @Override
+    public void error(String code, String message, Object details) {
+      Map<String, Object> event = event();
+      event.put("error", code);
+      event.put("message", message);
+      resultStream.send(event);
+    }
+
+    @Override
+    public void notImplemented() {
+      error("Not implemented", null, null);
+    }
+  }
+
+  // Delivers replies on the platform thread, which the method channel requires.
+  private class MainThreadResult implements Result {
+    private final Result result;
+
+    MainThreadResult(Result result) {
+      this.result = result;
+    }
+
+    @Override
+    public void success(final Object o) {
+      post(new Runnable() {
+        @Override
+        public void run() {
+          result.success(o);
+        }
+      });
+    }
+
+    @Override
+    public void error(final String code, final String message, final Object details) {
+      post(new Runnable() {
+        @Override
+        public void run() {
+          result.error(code, message, details);
+        }
+      });
+    }
+
+    @Override
+    public void notImplemented() {
+      post(new Runnable() {
+        @Override
+        public void run() {
+          result.notImplemented();
+        }
+      });
+    }
+
+    private void post(Runnable runnable) {
+      if (Looper.myLooper() == Looper.getMainLooper()) runnable.run();
+      else mainHandler.post(runnable);
+    }
+  }
+
+  /**
+   * An asynchronous request. Argument parsing, image decoding, preprocessing, inference and
+   * decoding of the outputs all happen on executor threads, and the reply is posted back to the
+   * platform thread.
+   */
+  private class TaskRequest implements InferenceExecutor.Job, FramePipeline.Stages {
+    final String method;
+    final HashMap args;
+    final Result result;
+    TfliteTask task;
+
+    TaskRequest(String method, HashMap args, Result result) {
+      this.method = method;
+      this.args = args;
+      this.result = result;
+    }
+
+    @Override
+    public void run() {
+      try {
+        preprocess();
+        infer();
+        decode();
+      } catch (Exception e) {
+        fail(e);
+      }
+    }
+
+    @Override
+    public void preprocess() throws Exception {
+      task = createTask(method, args, result);
+      task.prepare();
+    }
 
-    Type.Builder yuvType = new Type.Builder(rs, Element.U8(rs)).setX(nv21.length);
-    Allocation in = Allocation.createTyped(rs, yuvType.create(), Allocation.USAGE_SCRIPT);
+    @Override
+    public void infer() {
+      task.runOnInterpreter(true);
+    }
+
+    @Override
+    public void decode() {
+      try {
+        task.onRunTfliteDone();
+      } finally {
+        task.releaseOutputBuffer();
+      }
+    }
+
+    @Override
+    public void fail(Exception e) {
+      releaseBuffers();
+      result.error("Failed to run model", e.getMessage(), e);
+    }
 
-    Type.Builder rgbaType = new Type.Builder(rs, Element.RGBA_8888(rs)).setX(width).setY(height);
-    Allocation out = Allocation.createTyped(rs, rgbaType.create(), Allocation.USAGE_SCRIPT);
+    // Requests dropped by the executor's overflow policy complete with null.
+    @Override
+    public void onDropped() {
+      releaseBuffers();
+      result.success(null);
+    }
 
-    in.copyFrom(nv21);
+    @Override
+    public void onRejected(RejectedExecutionException e) {
+      releaseBuffers();
+      result.error("Queue full", e.getMessage(), null);
+    }
 
-    yuvToRgbIntrinsic.setInput(in);
-    yuvToRgbIntrinsic.forEach(out);
-    return out;
+    private void releaseBuffers() {
+      if (task == null) return;
+      task.releaseInputBuffer();
+      task.releaseOutputBuffer();
+    }
   }
 
-  private abstract class TfliteTask extends AsyncTask<Void, Void, Void> {
+  private abstract class TfliteTask {
     Result result;
-    boolean asynch;
+    HashMap args;
+    TfliteModel model;
+    Interpreter tfLite;
+    // Pooled input buffer handed back to the model once the interpreter has consumed it.
+    ByteBuffer inputBuffer;
+    // Pooled output buffer handed back once the outputs have been decoded.
+    ByteBuffer outputBuffer;
+    // Part of the image or frame sampled into the input, null for all of it. Results normalized to
+    // the input are mapped back to the source through it.
+    InputRegion region;
 
     TfliteTask(HashMap args, Result result) {
-      if (tfLiteBusy) throw new RuntimeException("Interpreter busy");
-      else tfLiteBusy = true;
-      Object asynch = args.get("asynch");
-      this.asynch = asynch == null ? false : (boolean) asynch;
+      this(getModel(args), args, result);
+    }
+
+    TfliteTask(TfliteModel model, HashMap args, Result result) {
+      this.model = model;
+      this.args = args;
       this.result = result;
     }
 
+    // Fills the model input from the image, binary or camera frame of the request.
+    abstract void prepare() throws IOException;
+
     abstract void runTflite();
 
     abstract void onRunTfliteDone();
 
-    public void executeTfliteTask() {
-      if (asynch) execute();
-      else {
-        runTflite();
-        tfLiteBusy = false;
+    public void executeTfliteTask() throws IOException {
+      try {
+        prepare();
+      } catch (IOException | RuntimeException e) {
+        releaseInputBuffer();
+        throw e;
+      }
+      try {
+        // Never wait for an interpreter on the platform thread.
+        runOnInterpreter(false);
         onRunTfliteDone();
+      } finally {
+        releaseOutputBuffer();
+      }
+    }
+
+    ByteBuffer feedInput() throws IOException {
+      if (args.containsKey("binary")) return feedInputTensorBinary(model, args.get("binary"));
+
+      double mean = (double) (args.get("imageMean"));
+      double std = (double) (args.get("imageStd"));
+      region = InputRegion.fromArgs(args);
+      if (args.containsKey("bytesList"))
+        return feedInputTensorFrame(model, args, (float) mean, (float) std, region);
+      return feedInputTensorImage(model, args.get("path").toString(), (float) mean, (float) std, region);
+    }
+
+    void runOnInterpreter(boolean wait) {
+      tfLite = model.acquireInterpreter(wait);
+      try {
+        runTflite();
+      } finally {
+        model.releaseInterpreter(tfLite);
+        tfLite = null;
+        releaseInputBuffer();
       }
     }
 
-    protected Void doInBackground(Void... backgroundArguments) {
-      runTflite();
-      return null;
+    void releaseInputBuffer() {
+      model.inputBufferPool.release(inputBuffer);
+      inputBuffer = null;
     }
 
-    protected void onPostExecute(Void backgroundResult) {
-      tfLiteBusy = false;
-      onRunTfliteDone();
+    void releaseOutputBuffer() {
+      model.outputBufferPool.release(outputBuffer);
+      outputBuffer = null;
     }
   }
 
@@ -484,29 +956,31 @@ public class TflitePlugin implements MethodCallHandler {
     ByteBuffer input;
     long startTime;
 
-    RunModelOnImage(HashMap args, Result result) throws IOException {
+    RunModelOnImage(HashMap args, Result result) {
       super(args, result);
 
-      String path = args.get("path").toString();
-      double mean = (double) (args.get("imageMean"));
-      float IMAGE_MEAN = (float) mean;
-      double std = (double) (args.get("imageStd"));
-      float IMAGE_STD = (float) std;
       NUM_RESULTS = (int) args.get("numResults");
       double threshold = (double) args.get("threshold");
       THRESHOLD = (float) threshold;
 
       startTime = SystemClock.uptimeMillis();
-      input = feedInputTensorImage(path, IMAGE_MEAN, IMAGE_STD);
+    }
+
+    @Override
+    void prepare() throws IOException {
+      input = feedInput();
+      inputBuffer = input;
+      outputBuffer = model.outputBufferPool.acquire(model.outputNumBytes[0]);
     }
 
     protected void runTflite() {
-      tfLite.run(input, labelProb);
+      tfLite.run(input, outputBuffer);
     }
 
     protected void onRunTfliteDone() {
       Log.v("time", "Inference took " + (SystemClock.uptimeMillis() - startTime));
-      result.success(GetTopN(NUM_RESULTS, THRESHOLD));
+      outputBuffer.rewind();
+      result.success(GetTopN(model, outputBuffer, NUM_RESULTS, THRESHOLD));
     }
   }
 
@@ -515,23 +989,28 @@ public class TflitePlugin implements MethodCallHandler {
     float THRESHOLD;
     ByteBuffer imgData;
 
-    RunModelOnBinary(HashMap args, Result result) throws IOException {
+    RunModelOnBinary(HashMap args, Result result) {
       super(args, result);
 
-      byte[] binary = (byte[]) args.get("binary");
       NUM_RESULTS = (int) args.get("numResults");
       double threshold = (double) args.get("threshold");
       THRESHOLD = (float) threshold;
+    }
 
-      imgData = ByteBuffer.wrap(binary);
+    @Override
+    void prepare() throws IOException {
+      imgData = feedInput();
+      inputBuffer = imgData;
+      outputBuffer = model.outputBufferPool.acquire(model.outputNumBytes[0]);
     }
 
     protected void runTflite() {
-      tfLite.run(imgData, labelProb);
+      tfLite.run(imgData, outputBuffer);
     }
 
     protected void onRunTfliteDone() {
-      result.success(GetTopN(NUM_RESULTS, THRESHOLD));
+      outputBuffer.rewind();
+      result.success(GetTopN(model, outputBuffer, NUM_RESULTS, THRESHOLD));
     }
   }
 
@@ -541,106 +1020,72 @@ public class TflitePlugin implements MethodCallHandler {
     long startTime;
     ByteBuffer imgData;
 
-    RunModelOnFrame(HashMap args, Result result) throws IOException {
+    RunModelOnFrame(HashMap args, Result result) {
       super(args, result);
 
-      List<byte[]> bytesList = (ArrayList) args.get("bytesList");
-      double mean = (double) (args.get("imageMean"));
-      float IMAGE_MEAN = (float) mean;
-      double std = (double) (args.get("imageStd"));
-      float IMAGE_STD = (float) std;
-      int imageHeight = (int) (args.get("imageHeight"));
-      int imageWidth = (int) (args.get("imageWidth"));
-      int rotation = (int) (args.get("rotation"));
       NUM_RESULTS = (int) args.get("numResults");
       double threshold = (double) args.get("threshold");
       THRESHOLD = (float) threshold;
 
       startTime = SystemClock.uptimeMillis();
+    }
 
-      imgData = feedInputTensorFrame(bytesList, imageHeight, imageWidth, IMAGE_MEAN, IMAGE_STD, rotation);
+    @Override
+    void prepare() throws IOException {
+      imgData = feedInput();
+      inputBuffer = imgData;
+      outputBuffer = model.outputBufferPool.acquire(model.outputNumBytes[0]);
     }
 
     protected void runTflite() {
-      tfLite.run(imgData, labelProb);
+      tfLite.run(imgData, outputBuffer);
     }
 
     protected void onRunTfliteDone() {
       Log.v("time", "Inference took " + (SystemClock.uptimeMillis() - startTime));
-      result.success(GetTopN(NUM_RESULTS, THRESHOLD));
+      outputBuffer.rewind();
+      result.success(GetTopN(model, outputBuffer, NUM_RESULTS, THRESHOLD));
     }
   }
 
-  void detectObjectOnImage(HashMap args, Result result) throws IOException {
-    String path = args.get("path").toString();
-    String model = args.get("model").toString();
-    double mean = (double) (args.get("imageMean"));
-    float IMAGE_MEAN = (float) mean;
-    double std = (double) (args.get("imageStd"));
-    float IMAGE_STD = (float) std;
-    double threshold = (double) args.get("threshold");
-    float THRESHOLD = (float) threshold;
-    List<Double> ANCHORS = (ArrayList) args.get("anchors");
-    int BLOCK_SIZE = (int) args.get("blockSize");
-    int NUM_BOXES_PER_BLOCK = (int) args.get("numBoxesPerBlock");
-    int NUM_RESULTS_PER_CLASS = (int) args.get("numResultsPerClass");
-
-    ByteBuffer imgData = feedInputTensorImage(path, IMAGE_MEAN, IMAGE_STD);
-
-    if (model.equals("SSDMobileNet")) {
-      new RunSSDMobileNet(args, imgData, NUM_RESULTS_PER_CLASS, THRESHOLD, result).executeTfliteTask();
-    } else {
-      new RunYOLO(args, imgData, BLOCK_SIZE, NUM_BOXES_PER_BLOCK, ANCHORS, THRESHOLD, NUM_RESULTS_PER_CLASS, result).executeTfliteTask();
-    }
+  NonMaxSuppression nonMaxSuppression(HashMap args, float threshold, NonMaxSuppression.Mode defaultMode) {
+    Object nmsMode = args.get("nmsMode");
+    Object iouThreshold = args.get("iouThreshold");
+    Object softNmsSigma = args.get("softNmsSigma");
+    return new NonMaxSuppression(
+        nmsMode == null ? defaultMode : NonMaxSuppression.Mode.fromString(nmsMode.toString()),
+        iouThreshold == null ? 0.5f : (float) (double) iouThreshold,
+        softNmsSigma == null ? 0 : (float) (double) softNmsSigma,
+        threshold);
   }
 
-  void detectObjectOnBinary(HashMap args, Result result) throws IOException {
-    byte[] binary = (byte[]) args.get("binary");
+  TfliteTask detectObject(HashMap args, Result result) {
+    TfliteModel tfliteModel = getModel(args);
     String model = args.get("model").toString();
     double threshold = (double) args.get("threshold");
     float THRESHOLD = (float) threshold;
-    List<Double> ANCHORS = (ArrayList) args.get("anchors");
-    int BLOCK_SIZE = (int) args.get("blockSize");
-    int NUM_BOXES_PER_BLOCK = (int) args.get("numBoxesPerBlock");
     int NUM_RESULTS_PER_CLASS = (int) args.get("numResultsPerClass");
 
-    ByteBuffer imgData = ByteBuffer.wrap(binary);
-
     if (model.equals("SSDMobileNet")) {
-      new RunSSDMobileNet(args, imgData, NUM_RESULTS_PER_CLASS, THRESHOLD, result).executeTfliteTask();
-    } else {
-      new RunYOLO(args, imgData, BLOCK_SIZE, NUM_BOXES_PER_BLOCK, ANCHORS, THRESHOLD, NUM_RESULTS_PER_CLASS, result).executeTfliteTask();
+      return new RunSSDMobileNet(tfliteModel, args, NUM_RESULTS_PER_CLASS, THRESHOLD, result);
+    }
+    if (model.equals("YOLOv3") || model.equals("YOLOv5")) {
+      return new RunMultiScaleYOLO(tfliteModel, args, THRESHOLD, NUM_RESULTS_PER_CLASS, result);
     }
-  }
-
-  void detectObjectOnFrame(HashMap args, Result result) throws IOException {
-    List<byte[]> bytesList = (ArrayList) args.get("bytesList");
-    String model = args.get("model").toString();
-    double mean = (double) (args.get("imageMean"));
-    float IMAGE_MEAN = (float) mean;
-    double std = (double) (args.get("imageStd"));
-    float IMAGE_STD = (float) std;
-    int imageHeight = (int) (args.get("imageHeight"));
-    int imageWidth = (int) (args.get("imageWidth"));
-    int rotation = (int) (args.get("rotation"));
-    double threshold = (double) args.get("threshold");
-    float THRESHOLD = (float) threshold;
-    int NUM_RESULTS_PER_CLASS = (int) args.get("numResultsPerClass");
 
     List<Double> ANCHORS = (ArrayList) args.get("anchors");
     int BLOCK_SIZE = (int) args.get("blockSize");
     int NUM_BOXES_PER_BLOCK = (int) args.get("numBoxesPerBlock");
+    return new RunYOLO(tfliteModel, args, BLOCK_SIZE, NUM_BOXES_PER_BLOCK, ANCHORS, THRESHOLD, NUM_RESULTS_PER_CLASS, result);
+  }
 
-    ByteBuffer imgData = feedInputTensorFrame(bytesList, imageHeight, imageWidth, IMAGE_MEAN, IMAGE_STD, rotation);
-
-    if (model.equals("SSDMobileNet")) {
-      new RunSSDMobileNet(args, imgData, NUM_RESULTS_PER_CLASS, THRESHOLD, result).executeTfliteTask();
-    } else {
-      new RunYOLO(args, imgData, BLOCK_SIZE, NUM_BOXES_PER_BLOCK, ANCHORS, THRESHOLD, NUM_RESULTS_PER_CLASS, result).executeTfliteTask();
-    }
+  // Detection tasks that can also run on the tiles of an image, see RunTiledDetection.
+  private interface TileDetector {
+    // Runs tfLite on one input tensor and adds its candidates, normalized to the input, to detections.
+    void detectTile(Interpreter tfLite, ByteBuffer input, Detections detections);
   }
 
-  private class RunSSDMobileNet extends TfliteTask {
+  private class RunSSDMobileNet extends TfliteTask implements TileDetector {
     int num;
     int numResultsPerClass;
     float threshold;
@@ -651,16 +1096,19 @@ public class TflitePlugin implements MethodCallHandler {
     Object[] inputArray;
     Map<Integer, Object> outputMap = new HashMap<>();
     long startTime;
+    Detections detections = new Detections();
+    NonMaxSuppression nms;
 
-    RunSSDMobileNet(HashMap args, ByteBuffer imgData, int numResultsPerClass, float threshold, Result result) {
-      super(args, result);
-      this.num = tfLite.getOutputTensor(0).shape()[1];
+    RunSSDMobileNet(TfliteModel model, HashMap args, int numResultsPerClass, float threshold, Result result) {
+      super(model, args, result);
+      this.nms = nonMaxSuppression(args, threshold, NonMaxSuppression.Mode.NONE);
+      this.num = model.outputShapes[0][1];
       this.numResultsPerClass = numResultsPerClass;
       this.threshold = threshold;
       this.outputLocations = new float[1][num][4];
       this.outputClasses = new float[1][num];
       this.outputScores = new float[1][num];
-      this.inputArray = new Object[]{imgData};
+      this.inputArray = new Object[1];
 
       outputMap.put(0, outputLocations);
       outputMap.put(1, outputClasses);
@@ -670,598 +1118,966 @@ public class TflitePlugin implements MethodCallHandler {
       startTime = SystemClock.uptimeMillis();
     }
 
+    @Override
+    void prepare() throws IOException {
+      inputBuffer = feedInput();
+      inputArray[0] = inputBuffer;
+    }
+
     protected void runTflite() {
       tfLite.runForMultipleInputsOutputs(inputArray, outputMap);
     }
 
     protected void onRunTfliteDone() {
       Log.v("time", "Inference took " + (SystemClock.uptimeMillis() - startTime));
+      result.success(decode());
+    }
 
-      Map<String, Integer> counters = new HashMap<>();
-      final List<Map<String, Object>> results = new ArrayList<>();
+    List<Map<String, Object>> decode() {
+      detections.clear();
+      collect(detections);
+      detections.sortByScore();
+      nms.apply(detections);
+      detections.mapToSource(region);
+      return detections.toResults(model.labels, numResultsPerClass);
+    }
+
+    public void detectTile(Interpreter tfLite, ByteBuffer input, Detections detections) {
+      inputArray[0] = input;
+      tfLite.runForMultipleInputsOutputs(inputArray, outputMap);
+      collect(detections);
+    }
 
+    void collect(Detections detections) {
       for (int i = 0; i < numDetections[0]; ++i) {
         if (outputScores[0][i] < threshold) continue;
 
-        String detectedClass = labels.get((int) outputClasses[0][i] + 1);
-
-        if (counters.get(detectedClass) == null) {
-          counters.put(detectedClass, 1);
-        } else {
-          int count = counters.get(detectedClass);
-          if (count >= numResultsPerClass) {
-            continue;
-          } else {
-            counters.put(detectedClass, count + 1);
-          }
-        }
-
-        Map<String, Object> rect = new HashMap<>();
         float ymin = Math.max(0, outputLocations[0][i][0]);
         float xmin = Math.max(0, outputLocations[0][i][1]);
         float ymax = outputLocations[0][i][2];
         float xmax = outputLocations[0][i][3];
-        rect.put("x", xmin);
-        rect.put("y", ymin);
-        rect.put("w", Math.min(1 - xmin, xmax - xmin));
-        rect.put("h", Math.min(1 - ymin, ymax - ymin));
-
-        Map<String, Object> ret = new HashMap<>();
-        ret.put("rect", rect);
-        ret.put("confidenceInClass", outputScores[0][i]);
-        ret.put("detectedClass", detectedClass);
-
-        results.add(ret);
+        detections.add(xmin, ymin, Math.min(1 - xmin, xmax - xmin), Math.min(1 - ymin, ymax - ymin),
+            outputScores[0][i], (int) outputClasses[0][i] + 1);
       }
-
-      result.success(results);
     }
   }
 
-  private class RunYOLO extends TfliteTask {
+  private class RunYOLO extends TfliteTask implements TileDetector {
     ByteBuffer imgData;
-    int blockSize;
-    int numBoxesPerBlock;
-    List<Double> anchors;
-    float threshold;
     int numResultsPerClass;
     long startTime;
-    int gridSize;
-    int numClasses;
-    final float[][][][] output;
+    YoloDecoder decoder;
+    Detections detections = new Detections();
+    NonMaxSuppression nms;
 
-    RunYOLO(HashMap args,
-            ByteBuffer imgData,
+    RunYOLO(TfliteModel model,
+            HashMap args,
             int blockSize,
             int numBoxesPerBlock,
             List<Double> anchors,
             float threshold,
             int numResultsPerClass,
             Result result) {
-      super(args, result);
-      this.imgData = imgData;
-      this.blockSize = blockSize;
-      this.numBoxesPerBlock = numBoxesPerBlock;
-      this.anchors = anchors;
-      this.threshold = threshold;
+      super(model, args, result);
       this.numResultsPerClass = numResultsPerClass;
       this.startTime = SystemClock.uptimeMillis();
+      this.decoder = new YoloDecoder(model.inputSize, blockSize, numBoxesPerBlock, model.labels.length, anchors, threshold);
+      this.nms = nonMaxSuppression(args, threshold, NonMaxSuppression.Mode.NONE);
+    }
 
-      Tensor tensor = tfLite.getInputTensor(0);
-      inputSize = tensor.shape()[1];
-
-      this.gridSize = inputSize / blockSize;
-      this.numClasses = labels.size();
-      this.output = new float[1][gridSize][gridSize][(numClasses + 5) * numBoxesPerBlock];
+    @Override
+    void prepare() throws IOException {
+      imgData = feedInput();
+      inputBuffer = imgData;
+      outputBuffer = model.outputBufferPool.acquire(decoder.outputSize() * 4);
     }
 
     protected void runTflite() {
-      tfLite.run(imgData, output);
+      tfLite.run(imgData, outputBuffer);
     }
 
     protected void onRunTfliteDone() {
       Log.v("time", "Inference took " + (SystemClock.uptimeMillis() - startTime));
+      outputBuffer.rewind();
+      result.success(decode(outputBuffer.asFloatBuffer()));
+    }
 
-      PriorityQueue<Map<String, Object>> pq =
-          new PriorityQueue<>(
-              1,
-              new Comparator<Map<String, Object>>() {
-                @Override
-                public int compare(Map<String, Object> lhs, Map<String, Object> rhs) {
-                  return Float.compare((float) rhs.get("confidenceInClass"), (float) lhs.get("confidenceInClass"));
-                }
-              });
-
-      for (int y = 0; y < gridSize; ++y) {
-        for (int x = 0; x < gridSize; ++x) {
-          for (int b = 0; b < numBoxesPerBlock; ++b) {
-            final int offset = (numClasses + 5) * b;
-
-            final float confidence = sigmoid(output[0][y][x][offset + 4]);
-
-            final float[] classes = new float[numClasses];
-            for (int c = 0; c < numClasses; ++c) {
-              classes[c] = output[0][y][x][offset + 5 + c];
-            }
-            softmax(classes);
-
-            int detectedClass = -1;
-            float maxClass = 0;
-            for (int c = 0; c < numClasses; ++c) {
-              if (classes[c] > maxClass) {
-                detectedClass = c;
-                maxClass = classes[c];
-              }
-            }
+    List<Map<String, Object>> decode(FloatBuffer output) {
+      detections.clear();
+      decoder.decode(output, detections);
+      detections.sortByScore();
+      nms.apply(detections);
+      detections.mapToSource(region);
+      return detections.toResults(model.labels, numResultsPerClass);
+    }
 
-            final float confidenceInClass = maxClass * confidence;
-            if (confidenceInClass > threshold) {
-              final float xPos = (x + sigmoid(output[0][y][x][offset + 0])) * blockSize;
-              final float yPos = (y + sigmoid(output[0][y][x][offset + 1])) * blockSize;
+    public void detectTile(Interpreter tfLite, ByteBuffer input, Detections detections) {
+      ByteBuffer output = model.outputBufferPool.acquire(decoder.outputSize() * 4);
+      try {
+        tfLite.run(input, output);
+        output.rewind();
+        decoder.decode(output.asFloatBuffer(), detections);
+      } finally {
+        model.outputBufferPool.release(output);
+      }
+    }
+  }
 
-              final float w = (float) (Math.exp(output[0][y][x][offset + 2]) * anchors.get(2 * b + 0)) * blockSize;
-              final float h = (float) (Math.exp(output[0][y][x][offset + 3]) * anchors.get(2 * b + 1)) * blockSize;
+  /**
+   * YOLOv3/v4 and YOLOv5 models with one raw output head per scale. All heads are read into pooled
+   * direct buffers with a single runForMultipleInputsOutputs, decoded by MultiScaleYoloDecoder and
+   * merged into one NMS pass, which defaults to per-class suppression.
+   */
+  private class RunMultiScaleYOLO extends TfliteTask implements TileDetector {
+    int numResultsPerClass;
+    long startTime;
+    MultiScaleYoloDecoder decoder;
+    Detections detections = new Detections();
+    NonMaxSuppression nms;
+    Object[] inputArray = new Object[1];
+    Map<Integer, Object> outputMap = new HashMap<>();
 
-              final float xmin = Math.max(0, (xPos - w / 2) / inputSize);
-              final float ymin = Math.max(0, (yPos - h / 2) / inputSize);
+    RunMultiScaleYOLO(TfliteModel model, HashMap args, float threshold, int numResultsPerClass, Result result) {
+      super(model, args, result);
+      this.numResultsPerClass = numResultsPerClass;
+      this.startTime = SystemClock.uptimeMillis();
+      MultiScaleYoloDecoder.BoxEncoding encoding = args.get("model").equals("YOLOv5")
+          ? MultiScaleYoloDecoder.BoxEncoding.YOLOV5
+          : MultiScaleYoloDecoder.BoxEncoding.YOLOV3;
+      this.decoder = new MultiScaleYoloDecoder(model.outputShapes, model.inputShape[1], model.inputShape[2],
+          model.labels.length, (List<Number>) args.get("anchors"), encoding, threshold);
+      this.nms = nonMaxSuppression(args, threshold, NonMaxSuppression.Mode.PER_CLASS);
+    }
 
-              Map<String, Object> rect = new HashMap<>();
-              rect.put("x", xmin);
-              rect.put("y", ymin);
-              rect.put("w", Math.min(1 - xmin, w / inputSize));
-              rect.put("h", Math.min(1 - ymin, h / inputSize));
+    @Override
+    void prepare() throws IOException {
+      inputBuffer = feedInput();
+      inputArray[0] = inputBuffer;
+      for (int i = 0; i < decoder.heads.length; ++i)
+        outputMap.put(i, model.outputBufferPool.acquire(decoder.outputSize(i) * 4));
+    }
 
-              Map<String, Object> ret = new HashMap<>();
-              ret.put("rect", rect);
-              ret.put("confidenceInClass", confidenceInClass);
-              ret.put("detectedClass", labels.get(detectedClass));
+    protected void runTflite() {
+      tfLite.runForMultipleInputsOutputs(inputArray, outputMap);
+    }
 
-              pq.add(ret);
-            }
-          }
-        }
+    protected void onRunTfliteDone() {
+      Log.v("time", "Inference took " + (SystemClock.uptimeMillis() - startTime));
+      result.success(decode());
+    }
+
+    List<Map<String, Object>> decode() {
+      return decode(outputFloats());
+    }
+
+    // Decodes the next image of every head, advancing each buffer past it.
+    List<Map<String, Object>> decode(FloatBuffer[] outputs) {
+      detections.clear();
+      for (int i = 0; i < decoder.heads.length; ++i)
+        decoder.decode(i, outputs[i], detections);
+      detections.sortByScore();
+      nms.apply(detections);
+      detections.mapToSource(region);
+      return detections.toResults(model.labels, numResultsPerClass);
+    }
+
+    public void detectTile(Interpreter tfLite, ByteBuffer input, Detections detections) {
+      inputArray[0] = input;
+      for (int i = 0; i < decoder.heads.length; ++i)
+        outputMap.put(i, model.outputBufferPool.acquire(decoder.outputSize(i) * 4));
+      try {
+        tfLite.runForMultipleInputsOutputs(inputArray, outputMap);
+        collect(detections);
+      } finally {
+        releaseOutputBuffer();
       }
+    }
 
-      Map<String, Integer> counters = new HashMap<>();
-      List<Map<String, Object>> results = new ArrayList<>();
-
-      for (int i = 0; i < pq.size(); ++i) {
-        Map<String, Object> ret = pq.poll();
-        String detectedClass = ret.get("detectedClass").toString();
-
-        if (counters.get(detectedClass) == null) {
-          counters.put(detectedClass, 1);
-        } else {
-          int count = counters.get(detectedClass);
-          if (count >= numResultsPerClass) {
-            continue;
-          } else {
-            counters.put(detectedClass, count + 1);
-          }
-        }
-        results.add(ret);
+    void collect(Detections detections) {
+      FloatBuffer[] outputs = outputFloats();
+      for (int i = 0; i < decoder.heads.length; ++i)
+        decoder.decode(i, outputs[i], detections);
+    }
+
+    FloatBuffer[] outputFloats() {
+      FloatBuffer[] outputs = new FloatBuffer[decoder.heads.length];
+      for (int i = 0; i < outputs.length; ++i) {
+        ByteBuffer output = (ByteBuffer) outputMap.get(i);
+        output.rewind();
+        outputs[i] = output.asFloatBuffer();
       }
-      result.success(results);
+      return outputs;
+    }
+
+    @Override
+    void releaseOutputBuffer() {
+      for (Object output : outputMap.values())
+        model.outputBufferPool.release((ByteBuffer) output);
+      outputMap.clear();
+    }
+  }
+
+  TfliteTask detectObjectOnImages(HashMap args, Result result) {
+    TfliteModel tfliteModel = getModel(args);
+    String model = args.get("model").toString();
+    double threshold = (double) args.get("threshold");
+    float THRESHOLD = (float) threshold;
+    int NUM_RESULTS_PER_CLASS = (int) args.get("numResultsPerClass");
+
+    if (model.equals("SSDMobileNet")) {
+      RunSSDMobileNet ssd = new RunSSDMobileNet(tfliteModel, args, NUM_RESULTS_PER_CLASS, THRESHOLD, result);
+      return new RunSSDMobileNetOnImages(ssd, args, result);
+    }
+    if (model.equals("YOLOv3") || model.equals("YOLOv5")) {
+      RunMultiScaleYOLO yolo = new RunMultiScaleYOLO(tfliteModel, args, THRESHOLD, NUM_RESULTS_PER_CLASS, result);
+      return new RunMultiScaleYOLOOnImages(yolo, args, result);
     }
+
+    List<Double> ANCHORS = (ArrayList) args.get("anchors");
+    int BLOCK_SIZE = (int) args.get("blockSize");
+    int NUM_BOXES_PER_BLOCK = (int) args.get("numBoxesPerBlock");
+    RunYOLO yolo = new RunYOLO(tfliteModel, args, BLOCK_SIZE, NUM_BOXES_PER_BLOCK, ANCHORS, THRESHOLD, NUM_RESULTS_PER_CLASS, result);
+    return new RunYOLOOnImages(yolo, args, result);
   }
 
-  private class RunPix2PixOnImage extends TfliteTask {
-    String path, outputType;
+  /**
+   * Runs a list of images through the model in batches. The interpreter input is resized to
+   * [batchSize, height, width, channels] so each batch is filled into one buffer and run with a
+   * single Interpreter.run, and the input shape is restored before the interpreter is released.
+   * The first batch is filled in prepare() and every following batch on a preparer thread while
+   * the previous one is in inference, so decoding and scaling images overlap with inference
+   * instead of holding the interpreter. Unless given explicitly, the batch size is the number of
+   * images whose input and output tensors fit in memoryBudget bytes, counting the input twice for
+   * the batch being filled.
+   *
+   * <p>Images that cannot be read or decoded do not fail the request: their result is null and
+   * the error is reported under "errors" with the image index.
+   */
+  private abstract class RunOnImages extends TfliteTask {
+    List<Object> images;
     float IMAGE_MEAN, IMAGE_STD;
+    int batchSize;
+    long memoryBudget;
+    int inputBytes;
+    List<Object> results = new ArrayList<>();
+    // Error message of every image that could not be written into its batch, null for the others.
+    String[] errors;
     long startTime;
-    ByteBuffer input, output;
+    long inferenceTime;
+    int numBatches;
+
+    RunOnImages(TfliteModel model, HashMap args, Result result) {
+      super(model, args, result);
+      Object paths = args.get("paths");
+      images = paths != null ? (List<Object>) paths : (List<Object>) args.get("binaries");
+      if (images == null || images.isEmpty())
+        throw new IllegalArgumentException("No images given");
+      errors = new String[images.size()];
+
+      Object mean = args.get("imageMean");
+      IMAGE_MEAN = mean == null ? 0 : (float) (double) mean;
+      Object std = args.get("imageStd");
+      IMAGE_STD = std == null ? 1 : (float) (double) std;
+      Object batchSizeObj = args.get("batchSize");
+      batchSize = batchSizeObj == null ? 0 : (int) batchSizeObj;
+      Object memoryBudgetObj = args.get("memoryBudget");
+      memoryBudget = memoryBudgetObj == null ? DEFAULT_BATCH_MEMORY_BUDGET : ((Number) memoryBudgetObj).longValue();
+      startTime = SystemClock.uptimeMillis();
+    }
 
-    RunPix2PixOnImage(HashMap args, Result result) throws IOException {
-      super(args, result);
-      path = args.get("path").toString();
-      double mean = (double) (args.get("imageMean"));
-      IMAGE_MEAN = (float) mean;
-      double std = (double) (args.get("imageStd"));
-      IMAGE_STD = (float) std;
+    // Models whose graph does not support a batch dimension return 1.
+    int maxBatchSize() {
+      return Integer.MAX_VALUE;
+    }
 
-      outputType = args.get("outputType").toString();
-      startTime = SystemClock.uptimeMillis();
-      input = feedInputTensorImage(path, IMAGE_MEAN, IMAGE_STD);
-      output = ByteBuffer.allocateDirect(input.limit());
-      output.order(ByteOrder.nativeOrder());
-      if (input.limit() == 0) {
-        result.error("Unexpected input position, bad file?", null, null);
-        return;
+    // Runs tfLite on count images in input and appends one result per image to results.
+    abstract void runBatch(ByteBuffer input, int count);
+
+    @Override
+    void prepare() {
+      int bytePerChannel = model.inputDataType == DataType.UINT8 ? 1 : BYTES_PER_CHANNEL;
+      inputBytes = model.inputShape[1] * model.inputShape[2] * model.inputShape[3] * bytePerChannel;
+      if (batchSize <= 0) {
+        long outputBytes = 0;
+        for (int i = 0; i < model.outputNumBytes.length; ++i)
+          outputBytes += model.outputNumBytes[i] / Math.max(1, model.outputShapes[i][0]);
+        batchSize = (int) Math.max(1, memoryBudget / (2 * inputBytes + outputBytes));
       }
-      if (output.position() != 0) {
-        result.error("Unexpected output position", null, null);
-        return;
+      batchSize = Math.min(Math.min(batchSize, images.size()), maxBatchSize());
+      inputBuffer = fillBatch(0);
+    }
+
+    // Writes the batch starting at image start into a pooled buffer. The slot of an image that
+    // fails is left as is, and its result is discarded after the run.
+    ByteBuffer fillBatch(int start) {
+      int count = Math.min(batchSize, images.size() - start);
+      ByteBuffer input = model.inputBufferPool.acquire(count * inputBytes);
+      for (int i = 0; i < count; ++i) {
+        int position = input.position();
+        try {
+          writeImage(images.get(start + i), input);
+        } catch (IOException | RuntimeException e) {
+          errors[start + i] = e.getMessage() != null ? e.getMessage() : e.toString();
+          input.position(position + inputBytes);
+        }
+      }
+      input.rewind();
+      return input;
+    }
+
+    void writeImage(Object image, ByteBuffer input) throws IOException {
+      if (image instanceof byte[] || image instanceof float[]) {
+        writeInputBinary(model, image, inputBytes, input);
+      } else {
+        writeInputTensor(model, decodeImage(image.toString()), IMAGE_MEAN, IMAGE_STD, input);
       }
     }
 
     protected void runTflite() {
-      tfLite.run(input, output);
+      int[] shape = model.inputShape;
+      int currentBatchSize = shape[0];
+      Future<ByteBuffer> nextBatch = null;
+      try {
+        for (int start = 0; start < images.size(); start += batchSize) {
+          int count = Math.min(batchSize, images.size() - start);
+          if (nextBatch != null) {
+            inputBuffer = takeBatch(nextBatch);
+            nextBatch = null;
+          }
+          final int nextStart = start + batchSize;
+          if (nextStart < images.size()) {
+            nextBatch = batchPreparer.submit(new Callable<ByteBuffer>() {
+              @Override
+              public ByteBuffer call() {
+                return fillBatch(nextStart);
+              }
+            });
+          }
+
+          if (count != currentBatchSize) {
+            tfLite.resizeInput(0, new int[]{count, shape[1], shape[2], shape[3]});
+            tfLite.allocateTensors();
+            currentBatchSize = count;
+          }
+          long inferenceStart = SystemClock.uptimeMillis();
+          runBatch(inputBuffer, count);
+          inferenceTime += SystemClock.uptimeMillis() - inferenceStart;
+          releaseInputBuffer();
+          for (int i = start; i < start + count; ++i) {
+            if (errors[i] != null) results.set(i, null);
+          }
+          numBatches++;
+        }
+      } finally {
+        if (nextBatch != null) {
+          try {
+            model.inputBufferPool.release(takeBatch(nextBatch));
+          } catch (RuntimeException e) {
+            // Already failing, the buffer was never filled.
+          }
+        }
+        if (currentBatchSize != shape[0]) {
+          tfLite.resizeInput(0, shape);
+          tfLite.allocateTensors();
+        }
+      }
+    }
+
+    private ByteBuffer takeBatch(Future<ByteBuffer> batch) {
+      try {
+        return batch.get();
+      } catch (ExecutionException e) {
+        throw new RuntimeException(e.getCause().getMessage(), e.getCause());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException("Interrupted while preparing a batch", e);
+      }
     }
 
     protected void onRunTfliteDone() {
-      Log.v("time", "Generating took " + (SystemClock.uptimeMillis() - startTime));
-      if (output.position() != input.limit()) {
-        result.error("Mismatching input/output position", null, null);
-        return;
+      long totalTime = SystemClock.uptimeMillis() - startTime;
+      Log.v("time", "Batched inference of " + images.size() + " images took " + totalTime);
+
+      Map<String, Object> stats = new HashMap<>();
+      stats.put("numImages", images.size());
+      stats.put("batchSize", batchSize);
+      stats.put("numBatches", numBatches);
+      stats.put("totalTime", totalTime);
+      stats.put("inferenceTime", inferenceTime);
+      stats.put("timePerImage", (double) totalTime / images.size());
+      stats.put("imagesPerSecond", totalTime > 0 ? images.size() * 1000.0 / totalTime : 0.0);
+
+      List<Map<String, Object>> failed = new ArrayList<>();
+      for (int i = 0; i < errors.length; ++i) {
+        if (errors[i] == null) continue;
+        Map<String, Object> error = new HashMap<>();
+        error.put("index", i);
+        error.put("message", errors[i]);
+        failed.add(error);
       }
 
-      output.flip();
-      Bitmap bitmapRaw = feedOutput(output, IMAGE_MEAN, IMAGE_STD);
+      Map<String, Object> ret = new HashMap<>();
+      ret.put("results", results);
+      ret.put("errors", failed);
+      ret.put("stats", stats);
+      result.success(ret);
+    }
+  }
 
-      if (outputType.equals("png")) {
-        result.success(compressPNG(bitmapRaw));
-      } else {
-        result.success(bitmapRaw);
+  private class RunModelOnImages extends RunOnImages {
+    int NUM_RESULTS;
+    float THRESHOLD;
+
+    RunModelOnImages(HashMap args, Result result) {
+      super(getModel(args), args, result);
+      NUM_RESULTS = (int) args.get("numResults");
+      double threshold = (double) args.get("threshold");
+      THRESHOLD = (float) threshold;
+    }
+
+    void runBatch(ByteBuffer input, int count) {
+      ByteBuffer output = model.outputBufferPool.acquire(count * model.outputNumBytes[0]);
+      try {
+        tfLite.run(input, output);
+        output.rewind();
+        for (int i = 0; i < count; ++i)
+          results.add(GetTopN(model, output, NUM_RESULTS, THRESHOLD));
+      } finally {
+        model.outputBufferPool.release(output);
       }
     }
   }
 
-  private class RunPix2PixOnBinary extends TfliteTask {
-    long startTime;
-    String outputType;
-    ByteBuffer input, output;
+  private class RunYOLOOnImages extends RunOnImages {
+    RunYOLO yolo;
 
-    RunPix2PixOnBinary(HashMap args, Result result) throws IOException {
-      super(args, result);
-      byte[] binary = (byte[]) args.get("binary");
-      outputType = args.get("outputType").toString();
-      startTime = SystemClock.uptimeMillis();
-      input = ByteBuffer.wrap(binary);
-      output = ByteBuffer.allocateDirect(input.limit());
-      output.order(ByteOrder.nativeOrder());
+    RunYOLOOnImages(RunYOLO yolo, HashMap args, Result result) {
+      super(yolo.model, args, result);
+      this.yolo = yolo;
+    }
 
-      if (input.limit() == 0) {
-        result.error("Unexpected input position, bad file?", null, null);
-        return;
-      }
-      if (output.position() != 0) {
-        result.error("Unexpected output position", null, null);
-        return;
+    void runBatch(ByteBuffer input, int count) {
+      ByteBuffer output = model.outputBufferPool.acquire(count * yolo.decoder.outputSize() * 4);
+      try {
+        tfLite.run(input, output);
+        output.rewind();
+        FloatBuffer outputFloats = output.asFloatBuffer();
+        for (int i = 0; i < count; ++i)
+          results.add(yolo.decode(outputFloats));
+      } finally {
+        model.outputBufferPool.release(output);
       }
     }
+  }
 
-    protected void runTflite() {
-      tfLite.run(input, output);
+  // The TFLite_Detection_PostProcess op of SSD models only handles one image per run.
+  private class RunSSDMobileNetOnImages extends RunOnImages {
+    RunSSDMobileNet ssd;
+
+    RunSSDMobileNetOnImages(RunSSDMobileNet ssd, HashMap args, Result result) {
+      super(ssd.model, args, result);
+      this.ssd = ssd;
     }
 
-    protected void onRunTfliteDone() {
-      Log.v("time", "Generating took " + (SystemClock.uptimeMillis() - startTime));
-      if (output.position() != input.limit()) {
-        result.error("Mismatching input/output position", null, null);
-        return;
-      }
+    @Override
+    int maxBatchSize() {
+      return 1;
+    }
 
-      output.flip();
-      result.success(output.array());
+    void runBatch(ByteBuffer input, int count) {
+      ssd.inputArray[0] = input;
+      tfLite.runForMultipleInputsOutputs(ssd.inputArray, ssd.outputMap);
+      results.add(ssd.decode());
     }
   }
 
-  private class RunPix2PixOnFrame extends TfliteTask {
-    long startTime;
-    String outputType;
-    float IMAGE_MEAN, IMAGE_STD;
-    ByteBuffer input, output;
+  private class RunMultiScaleYOLOOnImages extends RunOnImages {
+    RunMultiScaleYOLO yolo;
 
-    RunPix2PixOnFrame(HashMap args, Result result) throws IOException {
-      super(args, result);
-      List<byte[]> bytesList = (ArrayList) args.get("bytesList");
-      double mean = (double) (args.get("imageMean"));
-      IMAGE_MEAN = (float) mean;
-      double std = (double) (args.get("imageStd"));
-      IMAGE_STD = (float) std;
-      int imageHeight = (int) (args.get("imageHeight"));
-      int imageWidth = (int) (args.get("imageWidth"));
-      int rotation = (int) (args.get("rotation"));
+    RunMultiScaleYOLOOnImages(RunMultiScaleYOLO yolo, HashMap args, Result result) {
+      super(yolo.model, args, result);
+      this.yolo = yolo;
+    }
 
-      outputType = args.get("outputType").toString();
+    // Every head holds the outputs of the count images one after the other, and each decode()
+    // reads the next image of all heads.
+    void runBatch(ByteBuffer input, int count) {
+      yolo.inputArray[0] = input;
+      for (int i = 0; i < yolo.decoder.heads.length; ++i)
+        yolo.outputMap.put(i, model.outputBufferPool.acquire(count * yolo.decoder.outputSize(i) * 4));
+      try {
+        tfLite.runForMultipleInputsOutputs(yolo.inputArray, yolo.outputMap);
+        FloatBuffer[] outputs = yolo.outputFloats();
+        for (int i = 0; i < count; ++i)
+          results.add(yolo.decode(outputs));
+      } finally {
+        yolo.releaseOutputBuffer();
+      }
+    }
+  }
+
+  /**
+   * Runs the model over overlapping tiles of an image file at the model's own resolution, for
+   * images far larger than the model input. Tiles are decoded from the file one at a time with
+   * BitmapRegionDecoder, subsampled while they are at least twice the input size, so memory
+   * depends on the tile size and not on the image size. The task's interpreter runs tiles on the
+   * calling thread and every other idle interpreter of the model runs tiles on a pooled thread.
+   */
+  private abstract class RunOnTiles extends TfliteTask {
+    float IMAGE_MEAN, IMAGE_STD;
+    int tileSize;
+    float tileOverlap;
+    int inputBytes;
+    int sampleSize;
+    BitmapRegionDecoder regionDecoder;
+    TileGrid grid;
+    long startTime;
+
+    RunOnTiles(TfliteModel model, HashMap args, Result result) {
+      super(model, args, result);
+      IMAGE_MEAN = (float) (double) args.get("imageMean");
+      IMAGE_STD = (float) (double) args.get("imageStd");
+      Object tileSizeObj = args.get("tileSize");
+      tileSize = tileSizeObj == null ? model.inputSize : (int) tileSizeObj;
+      Object tileOverlapObj = args.get("tileOverlap");
+      tileOverlap = tileOverlapObj == null ? 0.2f : (float) (double) tileOverlapObj;
       startTime = SystemClock.uptimeMillis();
-      input = feedInputTensorFrame(bytesList, imageHeight, imageWidth, IMAGE_MEAN, IMAGE_STD, rotation);
-      output = ByteBuffer.allocateDirect(input.limit());
-      output.order(ByteOrder.nativeOrder());
+    }
 
-      if (input.limit() == 0) {
-        result.error("Unexpected input position, bad file?", null, null);
-        return;
+    // Worker running tiles on interpreter, which it hands back when closed if it owns it.
+    abstract class TileWorker implements TileGrid.Worker {
+      final Interpreter interpreter;
+      final boolean ownsInterpreter;
+
+      TileWorker(Interpreter interpreter, boolean ownsInterpreter) {
+        this.interpreter = interpreter;
+        this.ownsInterpreter = ownsInterpreter;
       }
-      if (output.position() != 0) {
-        result.error("Unexpected output position", null, null);
-        return;
+
+      abstract void runTile(int tile, ByteBuffer input);
+
+      public void run(int tile) throws IOException {
+        ByteBuffer input = model.inputBufferPool.acquire(inputBytes);
+        try {
+          writeTile(tile, input);
+          input.rewind();
+          runTile(tile, input);
+        } finally {
+          model.inputBufferPool.release(input);
+        }
+      }
+
+      public void close() {
+        if (ownsInterpreter) model.releaseInterpreter(interpreter);
       }
     }
 
-    protected void runTflite() {
-      tfLite.run(input, output);
+    abstract TileWorker createWorker(Interpreter interpreter, boolean ownsInterpreter);
+
+    @Override
+    void prepare() throws IOException {
+      String path = args.get("path").toString().replace("file://", "");
+      regionDecoder = BitmapRegionDecoder.newInstance(path, false);
+      if (regionDecoder == null) throw new IOException("Failed to decode image " + path);
+      grid = new TileGrid(regionDecoder.getWidth(), regionDecoder.getHeight(), tileSize, tileOverlap);
+      sampleSize = 1;
+      while (tileSize / (2 * sampleSize) >= model.inputSize) sampleSize *= 2;
+      int bytePerChannel = model.inputDataType == DataType.UINT8 ? 1 : BYTES_PER_CHANNEL;
+      inputBytes = model.inputShape[1] * model.inputShape[2] * model.inputShape[3] * bytePerChannel;
     }
 
-    protected void onRunTfliteDone() {
-      Log.v("time", "Generating took " + (SystemClock.uptimeMillis() - startTime));
-      if (output.position() != input.limit()) {
-        result.error("Mismatching input/output position", null, null);
-        return;
+    void writeTile(int tile, ByteBuffer input) throws IOException {
+      int x = grid.x(tile), y = grid.y(tile);
+      BitmapFactory.Options options = new BitmapFactory.Options();
+      options.inSampleSize = sampleSize;
+      Bitmap bitmap = regionDecoder.decodeRegion(new Rect(x, y, x + grid.tileWidth, y + grid.tileHeight), options);
+      if (bitmap == null) throw new IOException("Failed to decode tile " + tile);
+      try {
+        writeInputTensor(model, bitmap, IMAGE_MEAN, IMAGE_STD, input);
+      } finally {
+        bitmap.recycle();
       }
+    }
 
-      output.flip();
-      Bitmap bitmapRaw = feedOutput(output, IMAGE_MEAN, IMAGE_STD);
+    protected void runTflite() {
+      TileWorker first = createWorker(tfLite, false);
+      grid.run(first, new TileGrid.WorkerFactory() {
+        @Override
+        public TileGrid.Worker create() {
+          Interpreter interpreter;
+          try {
+            interpreter = model.acquireInterpreter(false);
+          } catch (RuntimeException e) {
+            // Busy or closed, the other workers take the tiles.
+            return null;
+          }
+          return createWorker(interpreter, true);
+        }
+      }, model.numInterpreters());
+      Log.v("time", "Inference of " + grid.count() + " tiles took " + (SystemClock.uptimeMillis() - startTime));
+    }
 
-      if (outputType.equals("png")) {
-        result.success(compressPNG(bitmapRaw));
-      } else {
-        result.success(bitmapRaw);
-      }
+    // Runs for dropped requests too, after which the decoder is no longer needed.
+    @Override
+    void releaseOutputBuffer() {
+      if (regionDecoder != null) regionDecoder.recycle();
+      regionDecoder = null;
     }
   }
 
-  private class RunSegmentationOnImage extends TfliteTask {
-    List<Number> labelColors;
-    String outputType;
-    long startTime;
-    ByteBuffer input, output;
+  /**
+   * Detects objects on every tile with a detection task per worker and keeps the boxes whose center
+   * the tile owns, unclipped, so an object across a seam comes from one tile only. The boxes are
+   * merged with one NMS pass, which defaults to per-class suppression, for objects that overlapping
+   * tiles still both report.
+   */
+  private class RunTiledDetection extends RunOnTiles {
+    Detections merged = new Detections();
+    NonMaxSuppression nms;
+    int numResultsPerClass;
 
-    RunSegmentationOnImage(HashMap args, Result result) throws IOException {
-      super(args, result);
+    RunTiledDetection(HashMap args, Result result) {
+      super(getModel(args), args, result);
+      numResultsPerClass = (int) args.get("numResultsPerClass");
+      nms = nonMaxSuppression(args, (float) (double) args.get("threshold"), NonMaxSuppression.Mode.PER_CLASS);
+    }
+
+    TileWorker createWorker(Interpreter interpreter, boolean ownsInterpreter) {
+      return new TileWorker(interpreter, ownsInterpreter) {
+        // Output buffers and decoders are per task, so every worker gets its own.
+        final TileDetector detector = (TileDetector) detectObject(args, result);
+        final Detections detections = new Detections();
+
+        void runTile(int tile, ByteBuffer input) {
+          detections.clear();
+          detector.detectTile(interpreter, input, detections);
+          detections.sortByScore();
+          grid.mapDetections(tile, detections);
+          synchronized (merged) {
+            merged.addAll(detections);
+          }
+        }
+      };
+    }
 
-      String path = args.get("path").toString();
-      double mean = (double) (args.get("imageMean"));
-      float IMAGE_MEAN = (float) mean;
-      double std = (double) (args.get("imageStd"));
-      float IMAGE_STD = (float) std;
+    protected void onRunTfliteDone() {
+      merged.sortByScore();
+      nms.apply(merged);
+      result.success(merged.toResults(model.labels, numResultsPerClass));
+    }
+  }
 
-      labelColors = (ArrayList) args.get("labelColors");
-      outputType = args.get("outputType").toString();
+  /**
+   * Segments every tile and stitches the class indices into one byte mask of the image, each mask
+   * pixel taken from the tile whose center is nearest. The mask has the output resolution of a tile,
+   * i.e. image size * output size / tile size, so larger tiles give a coarser and smaller mask.
+   * Returns the mask, rle and stats outputs of runSegmentationOnImage.
+   */
+  private class RunTiledSegmentation extends RunOnTiles {
+    String outputType;
+    int outputHeight, outputWidth, numClasses;
+    int maskWidth, maskHeight;
+    byte[] mask;
 
-      startTime = SystemClock.uptimeMillis();
-      input = feedInputTensorImage(path, IMAGE_MEAN, IMAGE_STD);
-      output = ByteBuffer.allocateDirect(tfLite.getOutputTensor(0).numBytes());
-      output.order(ByteOrder.nativeOrder());
+    RunTiledSegmentation(HashMap args, Result result) {
+      super(getModel(args), args, result);
+      outputType = args.get("outputType").toString();
+      if (!outputType.equals("mask") && !outputType.equals("rle") && !outputType.equals("stats"))
+        throw new IllegalArgumentException("Tiled segmentation returns mask, rle or stats, not " + outputType);
+      int[] outputShape = model.outputShapes[0];
+      outputHeight = outputShape[1];
+      outputWidth = outputShape[2];
+      numClasses = outputShape[3];
+      if (numClasses > 256)
+        throw new IllegalArgumentException("A mask holds at most 256 classes, the model has " + numClasses);
+    }
+
+    @Override
+    void prepare() throws IOException {
+      super.prepare();
+      maskWidth = Math.max(1, Math.round((float) grid.imageWidth * outputWidth / grid.tileWidth));
+      maskHeight = Math.max(1, Math.round((float) grid.imageHeight * outputHeight / grid.tileHeight));
+      mask = new byte[maskWidth * maskHeight];
+    }
+
+    TileWorker createWorker(Interpreter interpreter, boolean ownsInterpreter) {
+      return new TileWorker(interpreter, ownsInterpreter) {
+        final SegmentationDecoder decoder = new SegmentationDecoder(outputHeight, outputWidth, numClasses,
+            model.outputDataTypes[0], null);
+
+        void runTile(int tile, ByteBuffer input) {
+          ByteBuffer output = model.outputBufferPool.acquire(model.outputNumBytes[0]);
+          try {
+            interpreter.run(input, output);
+            output.rewind();
+            int[] classes = TensorImageUtils.scratch().pixels(outputWidth * outputHeight);
+            decoder.decode(output, classes);
+            stitch(tile, classes);
+          } finally {
+            model.outputBufferPool.release(output);
+          }
+        }
+      };
     }
 
-    protected void runTflite() {
-      tfLite.run(input, output);
+    // Copies the mask pixels owned by the tile from its class indices. Tiles own disjoint parts of
+    // the mask, so workers write to it without locking.
+    void stitch(int tile, int[] classes) {
+      int left = maskIndex(grid.ownedLeft(tile), grid.imageWidth, maskWidth);
+      int right = maskIndex(grid.ownedRight(tile), grid.imageWidth, maskWidth);
+      int top = maskIndex(grid.ownedTop(tile), grid.imageHeight, maskHeight);
+      int bottom = maskIndex(grid.ownedBottom(tile), grid.imageHeight, maskHeight);
+      int[] columns = new int[right - left];
+      for (int x = left; x < right; ++x)
+        columns[x - left] = tileIndex(x, grid.x(tile), grid.imageWidth, maskWidth, grid.tileWidth, outputWidth);
+      for (int y = top; y < bottom; ++y) {
+        int row = tileIndex(y, grid.y(tile), grid.imageHeight, maskHeight, grid.tileHeight, outputHeight) * outputWidth;
+        for (int x = left, i = y * maskWidth + left; x < right; ++x, ++i)
+          mask[i] = (byte) classes[row + columns[x - left]];
+      }
     }
 
-    protected void onRunTfliteDone() {
-      Log.v("time", "Inference took " + (SystemClock.uptimeMillis() - startTime));
+    // First mask pixel whose center is at or past an image coordinate.
+    int maskIndex(int imageCoordinate, int imageSize, int maskSize) {
+      int index = (int) Math.ceil((double) imageCoordinate * maskSize / imageSize - 0.5);
+      return index < 0 ? 0 : index > maskSize ? maskSize : index;
+    }
 
-      if (input.limit() == 0) {
-        result.error("Unexpected input position, bad file?", null, null);
-        return;
-      }
-      if (output.position() != output.limit()) {
-        result.error("Unexpected output position", null, null);
-        return;
-      }
-      output.flip();
+    // Output pixel of a tile starting at tileStart under the center of a mask pixel.
+    int tileIndex(int maskCoordinate, int tileStart, int imageSize, int maskSize, int tileSize, int outputSize) {
+      double image = (maskCoordinate + 0.5) * imageSize / maskSize;
+      int index = (int) ((image - tileStart) * outputSize / tileSize);
+      return index < 0 ? 0 : index >= outputSize ? outputSize - 1 : index;
+    }
 
-      result.success(fetchArgmax(output, labelColors, outputType));
+    protected void onRunTfliteDone() {
+      SegmentationDecoder stitched = new SegmentationDecoder(maskHeight, maskWidth, numClasses,
+          model.outputDataTypes[0], null);
+      Map<String, Object> ret = new HashMap<>();
+      ret.put("width", maskWidth);
+      ret.put("height", maskHeight);
+      ret.put("classes", stitched.classStats(mask, model.labels));
+      if (outputType.equals("mask")) ret.put("mask", mask);
+      if (outputType.equals("rle")) ret.put("rle", stitched.runLengths(mask));
+      result.success(ret);
     }
   }
 
-  private class RunSegmentationOnBinary extends TfliteTask {
-    List<Number> labelColors;
+  // Serves runPix2PixOnImage, OnBinary and OnFrame. The output is denormalized with imageMean and
+  // imageStd, which default to 0 and 255 when a binary input does not give them.
+  private class RunPix2Pix extends TfliteTask {
     String outputType;
+    float IMAGE_MEAN, IMAGE_STD;
     long startTime;
-    ByteBuffer input, output;
+    ByteBuffer input;
 
-    RunSegmentationOnBinary(HashMap args, Result result) throws IOException {
+    RunPix2Pix(HashMap args, Result result) {
       super(args, result);
+      Object mean = args.get("imageMean");
+      IMAGE_MEAN = mean == null ? 0 : (float) (double) mean;
+      Object std = args.get("imageStd");
+      IMAGE_STD = std == null ? 255 : (float) (double) std;
 
-      byte[] binary = (byte[]) args.get("binary");
-      labelColors = (ArrayList) args.get("labelColors");
       outputType = args.get("outputType").toString();
-
       startTime = SystemClock.uptimeMillis();
-      input = ByteBuffer.wrap(binary);
-      output = ByteBuffer.allocateDirect(tfLite.getOutputTensor(0).numBytes());
-      output.order(ByteOrder.nativeOrder());
+    }
+
+    @Override
+    void prepare() throws IOException {
+      input = feedInput();
+      inputBuffer = input;
+      if (input.limit() == 0)
+        throw new IOException("Unexpected input position, bad file?");
+      outputBuffer = model.outputBufferPool.acquire(model.outputNumBytes[0]);
     }
 
     protected void runTflite() {
-      tfLite.run(input, output);
+      tfLite.run(input, outputBuffer);
     }
 
     protected void onRunTfliteDone() {
-      Log.v("time", "Inference took " + (SystemClock.uptimeMillis() - startTime));
+      Log.v("time", "Generating took " + (SystemClock.uptimeMillis() - startTime));
+      outputBuffer.rewind();
+      replyPix2Pix(model, outputBuffer, IMAGE_MEAN, IMAGE_STD, outputType, args, result);
+    }
+  }
 
-      if (input.limit() == 0) {
-        result.error("Unexpected input position, bad file?", null, null);
-        return;
-      }
-      if (output.position() != output.limit()) {
-        result.error("Unexpected output position", null, null);
-        return;
-      }
-      output.flip();
+  /**
+   * Replies with a Pix2Pix output as RGBA bytes, an encoded image or the raw tensor bytes. RGBA
+   * arrays are pooled and handed back once the reply has been sent on the platform thread.
+   */
+  void replyPix2Pix(TfliteModel tfliteModel, ByteBuffer output, float mean, float std,
+                    String outputType, HashMap args, Result result) {
+    int count = tfliteModel.outputShapes[0][1] * tfliteModel.outputShapes[0][2];
+    if (outputType.equals("rgba")) {
+      final byte[] rgba = outputArrayPool.acquire(count * 4);
+      TensorImageUtils.tensorToRgba(output, count, tfliteModel.outputDataTypes[0], mean, std, rgba);
+      result.success(rgba);
+      // Replies are sent in order on the main looper, so this runs after the array is serialized.
+      mainHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          outputArrayPool.release(rgba);
+        }
+      });
+      return;
+    }
 
-      result.success(fetchArgmax(output, labelColors, outputType));
+    ImageEncoder.Format format = ImageEncoder.Format.fromString(outputType);
+    if (format != null) {
+      Bitmap bitmapRaw = feedOutput(tfliteModel, output, mean, std);
+      result.success(imageEncoder.encode(bitmapRaw, format, imageQuality(args)));
+      return;
     }
+
+    byte[] raw = new byte[output.remaining()];
+    output.get(raw);
+    result.success(raw);
   }
 
-  private class RunSegmentationOnFrame extends TfliteTask {
+  // Serves runSegmentationOnImage, OnBinary and OnFrame: feedInput() writes the input of each,
+  // and the output goes to a pooled buffer and through fetchArgmax the same way for all three.
+  private class RunSegmentation extends TfliteTask {
     List<Number> labelColors;
     String outputType;
     long startTime;
-    ByteBuffer input, output;
+    ByteBuffer input;
 
-    RunSegmentationOnFrame(HashMap args, Result result) throws IOException {
+    RunSegmentation(HashMap args, Result result) {
       super(args, result);
 
-      List<byte[]> bytesList = (ArrayList) args.get("bytesList");
-      double mean = (double) (args.get("imageMean"));
-      float IMAGE_MEAN = (float) mean;
-      double std = (double) (args.get("imageStd"));
-      float IMAGE_STD = (float) std;
-      int imageHeight = (int) (args.get("imageHeight"));
-      int imageWidth = (int) (args.get("imageWidth"));
-      int rotation = (int) (args.get("rotation"));
       labelColors = (ArrayList) args.get("labelColors");
       outputType = args.get("outputType").toString();
 
       startTime = SystemClock.uptimeMillis();
-      input = feedInputTensorFrame(bytesList, imageHeight, imageWidth, IMAGE_MEAN, IMAGE_STD, rotation);
-      output = ByteBuffer.allocateDirect(tfLite.getOutputTensor(0).numBytes());
-      output.order(ByteOrder.nativeOrder());
+    }
+
+    @Override
+    void prepare() throws IOException {
+      input = feedInput();
+      inputBuffer = input;
+      if (input.limit() == 0)
+        throw new IOException("Unexpected input position, bad file?");
+      outputBuffer = model.outputBufferPool.acquire(model.outputNumBytes[0]);
     }
 
     protected void runTflite() {
-      tfLite.run(input, output);
+      tfLite.run(input, outputBuffer);
     }
 
     protected void onRunTfliteDone() {
       Log.v("time", "Inference took " + (SystemClock.uptimeMillis() - startTime));
-
-      if (input.limit() == 0) {
-        result.error("Unexpected input position, bad file?", null, null);
-        return;
-      }
-      if (output.position() != output.limit()) {
-        result.error("Unexpected output position", null, null);
-        return;
-      }
-      output.flip();
-
-      result.success(fetchArgmax(output, labelColors, outputType));
+      outputBuffer.rewind();
+      result.success(fetchArgmax(model, outputBuffer, labelColors, outputType, imageQuality(args)));
     }
   }
 
-
-  byte[] fetchArgmax(ByteBuffer output, List<Number> labelColors, String outputType) {
-    Tensor outputTensor = tfLite.getOutputTensor(0);
-    int outputBatchSize = outputTensor.shape()[0];
+  Object fetchArgmax(TfliteModel tfliteModel, ByteBuffer output, List<Number> labelColors, String outputType,
+                     int quality) {
+    int[] outputShape = tfliteModel.outputShapes[0];
+    int outputBatchSize = outputShape[0];
     assert outputBatchSize == 1;
-    int outputHeight = outputTensor.shape()[1];
-    int outputWidth = outputTensor.shape()[2];
-    int outputChannels = outputTensor.shape()[3];
-
-    Bitmap outputArgmax = null;
+    int outputHeight = outputShape[1];
+    int outputWidth = outputShape[2];
+    int outputChannels = outputShape[3];
+
+    // mask, rle and stats work on class indices and are colored by the caller.
+    boolean indexed = outputType.equals("mask") || outputType.equals("rle") || outputType.equals("stats");
+    SegmentationDecoder decoder = new SegmentationDecoder(outputHeight, outputWidth, outputChannels,
+        tfliteModel.outputDataTypes[0], indexed ? null : labelColors);
+    int[] pixels = TensorImageUtils.scratch().pixels(outputWidth * outputHeight);
+    decoder.decode(output, pixels);
+
+    if (indexed) {
+      Map<String, Object> ret = new HashMap<>();
+      ret.put("width", outputWidth);
+      ret.put("height", outputHeight);
+      ret.put("classes", decoder.classStats(pixels, tfliteModel.labels));
+      if (outputType.equals("mask")) ret.put("mask", decoder.mask(pixels));
+      if (outputType.equals("rle")) ret.put("rle", decoder.runLengths(pixels));
+      return ret;
+    }
+    ImageEncoder.Format format = ImageEncoder.Format.fromString(outputType);
+    if (format != null) {
+      Bitmap outputArgmax = Bitmap.createBitmap(outputWidth, outputHeight, Bitmap.Config.ARGB_8888);
+      outputArgmax.setPixels(pixels, 0, outputWidth, 0, 0, outputWidth, outputHeight);
+      return imageEncoder.encode(outputArgmax, format, quality);
+    }
+    // ARGB rotated left by one byte is RGBA, written big-endian.
     byte[] outputBytes = new byte[outputWidth * outputHeight * 4];
-    if (outputType.equals("png")) {
-      outputArgmax = Bitmap.createBitmap(outputWidth, outputHeight, Bitmap.Config.ARGB_8888);
-    }
-
-    if (outputTensor.dataType() == DataType.FLOAT32) {
-      for (int i = 0; i < outputHeight; ++i) {
-        for (int j = 0; j < outputWidth; ++j) {
-          int maxIndex = 0;
-          float maxValue = 0.0f;
-          for (int c = 0; c < outputChannels; ++c) {
-            float outputValue = output.getFloat();
-            if (outputValue > maxValue) {
-              maxIndex = c;
-              maxValue = outputValue;
-            }
-          }
-          int labelColor = labelColors.get(maxIndex).intValue();
-          if (outputType.equals("png")) {
-            outputArgmax.setPixel(j, i, labelColor);
-          } else {
-            setPixel(outputBytes, i * outputWidth + j, labelColor);
-          }
-        }
-      }
-    } else {
-      for (int i = 0; i < outputHeight; ++i) {
-        for (int j = 0; j < outputWidth; ++j) {
-          int maxIndex = 0;
-          int maxValue = 0;
-          for (int c = 0; c < outputChannels; ++c) {
-            int outputValue = output.get();
-            if (outputValue > maxValue) {
-              maxIndex = c;
-              maxValue = outputValue;
-            }
-          }
-          int labelColor = labelColors.get(maxIndex).intValue();
-          if (outputType.equals("png")) {
-            outputArgmax.setPixel(j, i, labelColor);
-          } else {
-            setPixel(outputBytes, i * outputWidth + j, labelColor);
-          }
-        }
-      }
-    }
-    if (outputType.equals("png")) {
-      return compressPNG(outputArgmax);
-    } else {
-      return outputBytes;
-    }
-  }
-
-  void setPixel(byte[] rgba, int index, long color) {
-    rgba[index * 4] = (byte) ((color >> 16) & 0xFF);
-    rgba[index * 4 + 1] = (byte) ((color >> 8) & 0xFF);
-    rgba[index * 4 + 2] = (byte) (color & 0xFF);
-    rgba[index * 4 + 3] = (byte) ((color >> 24) & 0xFF);
+    IntBuffer rgba = ByteBuffer.wrap(outputBytes).asIntBuffer();
+    for (int i = 0; i < outputWidth * outputHeight; ++i)
+      rgba.put(Integer.rotateLeft(pixels[i], 8));
+    return outputBytes;
   }
 
-  byte[] compressPNG(Bitmap bitmap) {
-    // https://stackoverflow.com/questions/4989182/converting-java-bitmap-to-byte-array#4989543
-    ByteArrayOutputStream stream = new ByteArrayOutputStream();
-    bitmap.compress(Bitmap.CompressFormat.PNG, 100, stream);
-    byte[] byteArray = stream.toByteArray();
-    // bitmap.recycle();
-    return byteArray;
+  // Quality of webpLossy and jpeg outputs, 0 to 100.
+  static int imageQuality(HashMap args) {
+    Object quality = args.get("quality");
+    return quality == null ? ImageEncoder.DEFAULT_QUALITY : (int) quality;
   }
 
-  void runPoseNetOnImage(HashMap args, Result result) throws IOException {
-    String path = args.get("path").toString();
-    double mean = (double) (args.get("imageMean"));
-    float IMAGE_MEAN = (float) mean;
-    double std = (double) (args.get("imageStd"));
-    float IMAGE_STD = (float) std;
+  TfliteTask runPoseNet(HashMap args, Result result) {
+    TfliteModel tfliteModel = getModel(args);
     int numResults = (int) args.get("numResults");
     double threshold = (double) args.get("threshold");
     int nmsRadius = (int) args.get("nmsRadius");
 
-    ByteBuffer imgData = feedInputTensorImage(path, IMAGE_MEAN, IMAGE_STD);
-
-    new RunPoseNet(args, imgData, numResults, threshold, nmsRadius, result).executeTfliteTask();
+    return new RunPoseNet(tfliteModel, args, numResults, threshold, nmsRadius, result);
   }
 
-  void runPoseNetOnBinary(HashMap args, Result result) throws IOException {
-    byte[] binary = (byte[]) args.get("binary");
-    int numResults = (int) args.get("numResults");
-    double threshold = (double) args.get("threshold");
-    int nmsRadius = (int) args.get("nmsRadius");
-
-    ByteBuffer imgData = ByteBuffer.wrap(binary);
-
-    new RunPoseNet(args, imgData, numResults, threshold, nmsRadius, result).executeTfliteTask();
-  }
-
-  void runPoseNetOnFrame(HashMap args, Result result) throws IOException {
-    List<byte[]> bytesList = (ArrayList) args.get("bytesList");
-    double mean = (double) (args.get("imageMean"));
-    float IMAGE_MEAN = (float) mean;
-    double std = (double) (args.get("imageStd"));
-    float IMAGE_STD = (float) std;
-    int imageHeight = (int) (args.get("imageHeight"));
-    int imageWidth = (int) (args.get("imageWidth"));
-    int rotation = (int) (args.get("rotation"));
-    int numResults = (int) args.get("numResults");
-    double threshold = (double) args.get("threshold");
-    int nmsRadius = (int) args.get("nmsRadius");
-
-    ByteBuffer imgData = feedInputTensorFrame(bytesList, imageHeight, imageWidth, IMAGE_MEAN, IMAGE_STD, rotation);
-
-    new RunPoseNet(args, imgData, numResults, threshold, nmsRadius, result).executeTfliteTask();
+  /**
+   * Tracker of a runPoseNetOnFrame with track set, created on first use. Frames are tracked per
+   * model and trackerId, or else per frame stream, or else together for the model. Trackers only
+   * go away when their model or frame stream is closed.
+   */
+  PoseTracker poseTracker(TfliteModel tfliteModel, HashMap args) {
+    Object trackerId = args.get("trackerId");
+    Object stream = args.get("stream");
+    // A frame stream runs a single model, so its id alone is enough.
+    String key = stream != null && trackerId == null ? "stream/" + stream
+        : tfliteModel.handle + "/" + (trackerId != null ? "tracker/" + trackerId : "frames");
+    synchronized (poseTrackers) {
+      PoseTracker tracker = poseTrackers.get(key);
+      if (tracker == null) {
+        tracker = new PoseTracker(tfliteModel.outputShapes[0][3]);
+        poseTrackers.put(key, tracker);
+      }
+      return tracker;
+    }
   }
 
-  void initPoseNet(Map<Integer, Object> outputMap) {
-    if (partsIds.size() == 0) {
-      for (int i = 0; i < partNames.length; ++i)
-        partsIds.put(partNames[i], i);
-
-      for (int i = 0; i < poseChain.length; ++i) {
-        parentToChildEdges.add(partsIds.get(poseChain[i][1]));
-        childToParentEdges.add(partsIds.get(poseChain[i][0]));
+  private void removePoseTrackers(String prefix) {
+    synchronized (poseTrackers) {
+      Iterator<String> keys = poseTrackers.keySet().iterator();
+      while (keys.hasNext()) {
+        if (keys.next().startsWith(prefix)) keys.remove();
       }
     }
+  }
 
-    for (int i = 0; i < tfLite.getOutputTensorCount(); i++) {
-      int[] shape = tfLite.getOutputTensor(i).shape();
-      float[][][][] output = new float[shape[0]][shape[1]][shape[2]][shape[3]];
-      outputMap.put(i, output);
-    }
+  // Numbers a tracked PoseNet frame on the platform thread, in the order frames are submitted, so
+  // its tracker can tell frames that finish out of order. Other requests are left alone.
+  private void numberTrackedFrame(String method, HashMap args) {
+    if (!method.equals("runPoseNetOnFrame") || !Boolean.TRUE.equals(args.get("track"))) return;
+    TfliteModel tfliteModel;
+    try {
+      tfliteModel = getModel(args);
+    } catch (RuntimeException e) {
+      // The request fails on the missing model when it runs.
+      return;
+    }
+    PoseTracker tracker = poseTracker(tfliteModel, args);
+    Object redetectInterval = args.get("redetectInterval");
+    Object smoothing = args.get("smoothing");
+    Object cropPadding = args.get("cropPadding");
+    Object threshold = args.get("threshold");
+    tracker.configure(
+        redetectInterval == null ? 10 : (int) redetectInterval,
+        smoothing == null ? 0.5f : (float) (double) smoothing,
+        cropPadding == null ? 0.25f : (float) (double) cropPadding,
+        threshold == null ? 0.5f : (float) (double) threshold);
+    args.put("trackFrame", tracker.nextFrame());
   }
 
   private class RunPoseNet extends TfliteTask {
@@ -1274,24 +2090,54 @@ public class TflitePlugin implements MethodCallHandler {
 
     int localMaximumRadius = 1;
     int outputStride = 16;
+    PoseTracker tracker;
+    long trackFrame;
+    // Whether the tracker cropped the input to the tracked poses.
+    boolean cropped;
 
-    RunPoseNet(HashMap args,
-               ByteBuffer imgData,
+    RunPoseNet(TfliteModel model,
+               HashMap args,
                int numResults,
                double threshold,
                int nmsRadius,
-               Result result) throws IOException {
-      super(args, result);
+               Result result) {
+      super(model, args, result);
       this.numResults = numResults;
       this.threshold = threshold;
       this.nmsRadius = nmsRadius;
 
-      input = new Object[]{imgData};
-      initPoseNet(outputMap);
+      input = new Object[1];
+      Object frame = args.get("trackFrame");
+      if (frame != null && args.containsKey("bytesList")) {
+        tracker = poseTracker(model, args);
+        trackFrame = (long) frame;
+      }
 
       startTime = SystemClock.uptimeMillis();
     }
 
+    @Override
+    void prepare() throws IOException {
+      int rotation = tracker == null ? 0 : (int) args.get("rotation");
+      if (tracker != null && rotation % 90 == 0) {
+        boolean swapAxes = Math.abs(rotation) % 180 == 90;
+        int imageWidth = (int) args.get("imageWidth");
+        int imageHeight = (int) args.get("imageHeight");
+        region = tracker.nextCrop(swapAxes ? imageHeight : imageWidth, swapAxes ? imageWidth : imageHeight);
+        cropped = region != null;
+      }
+      if (cropped) {
+        double mean = (double) (args.get("imageMean"));
+        double std = (double) (args.get("imageStd"));
+        inputBuffer = feedInputTensorFrame(model, args, (float) mean, (float) std, region);
+      } else {
+        inputBuffer = feedInput();
+      }
+      input[0] = inputBuffer;
+      for (int i = 0; i < model.outputNumBytes.length; ++i)
+        outputMap.put(i, model.outputBufferPool.acquire(model.outputNumBytes[i]));
+    }
+
     protected void runTflite() {
       tfLite.runForMultipleInputsOutputs(input, outputMap);
     }
@@ -1299,288 +2145,54 @@ public class TflitePlugin implements MethodCallHandler {
     protected void onRunTfliteDone() {
       Log.v("time", "Inference took " + (SystemClock.uptimeMillis() - startTime));
 
-      float[][][] scores = ((float[][][][]) outputMap.get(0))[0];
-      float[][][] offsets = ((float[][][][]) outputMap.get(1))[0];
-      float[][][] displacementsFwd = ((float[][][][]) outputMap.get(2))[0];
-      float[][][] displacementsBwd = ((float[][][][]) outputMap.get(3))[0];
-
-      PriorityQueue<Map<String, Object>> pq = buildPartWithScoreQueue(scores, threshold, localMaximumRadius);
-
-      int numParts = scores[0][0].length;
-      int numEdges = parentToChildEdges.size();
-      int sqaredNmsRadius = nmsRadius * nmsRadius;
-
-      List<Map<String, Object>> results = new ArrayList<>();
-
-      while (results.size() < numResults && pq.size() > 0) {
-        Map<String, Object> root = pq.poll();
-        float[] rootPoint = getImageCoords(root, outputStride, numParts, offsets);
-
-        if (withinNmsRadiusOfCorrespondingPoint(
-            results, sqaredNmsRadius, rootPoint[0], rootPoint[1], (int) root.get("partId")))
-          continue;
-
-        Map<String, Object> keypoint = new HashMap<>();
-        keypoint.put("score", root.get("score"));
-        keypoint.put("part", partNames[(int) root.get("partId")]);
-        keypoint.put("y", rootPoint[0] / inputSize);
-        keypoint.put("x", rootPoint[1] / inputSize);
-
-        Map<Integer, Map<String, Object>> keypoints = new HashMap<>();
-        keypoints.put((int) root.get("partId"), keypoint);
-
-        for (int edge = numEdges - 1; edge >= 0; --edge) {
-          int sourceKeypointId = parentToChildEdges.get(edge);
-          int targetKeypointId = childToParentEdges.get(edge);
-          if (keypoints.containsKey(sourceKeypointId) && !keypoints.containsKey(targetKeypointId)) {
-            keypoint = traverseToTargetKeypoint(edge, keypoints.get(sourceKeypointId),
-                targetKeypointId, scores, offsets, outputStride, displacementsBwd);
-            keypoints.put(targetKeypointId, keypoint);
-          }
-        }
-
-        for (int edge = 0; edge < numEdges; ++edge) {
-          int sourceKeypointId = childToParentEdges.get(edge);
-          int targetKeypointId = parentToChildEdges.get(edge);
-          if (keypoints.containsKey(sourceKeypointId) && !keypoints.containsKey(targetKeypointId)) {
-            keypoint = traverseToTargetKeypoint(edge, keypoints.get(sourceKeypointId),
-                targetKeypointId, scores, offsets, outputStride, displacementsFwd);
-            keypoints.put(targetKeypointId, keypoint);
-          }
-        }
-
-        Map<String, Object> result = new HashMap<>();
-        result.put("keypoints", keypoints);
-        result.put("score", getInstanceScore(keypoints, numParts));
-        results.add(result);
+      FloatBuffer[] outputs = new FloatBuffer[4];
+      for (int i = 0; i < outputs.length; ++i) {
+        ByteBuffer output = (ByteBuffer) outputMap.get(i);
+        output.rewind();
+        outputs[i] = output.asFloatBuffer();
       }
 
-      result.success(results);
+      int[] heatmapShape = model.outputShapes[0];
+      PoseNetDecoder decoder = new PoseNetDecoder(heatmapShape[1], heatmapShape[2], heatmapShape[3],
+          outputStride, model.inputSize, localMaximumRadius);
+      int numPoses = decoder.decodePoses(outputs[0], outputs[1], outputs[2], outputs[3],
+          (float) threshold, nmsRadius, numResults);
+      float[] poses = decoder.poses();
+      decoder.toFrame(poses, numPoses, region);
+      int[] ids = tracker == null ? null : tracker.update(poses, numPoses, cropped, trackFrame);
+      result.success(decoder.toResults(poses, numPoses, ids));
     }
-  }
 
-  PriorityQueue<Map<String, Object>> buildPartWithScoreQueue(float[][][] scores,
-                                                             double threshold,
-                                                             int localMaximumRadius) {
-    PriorityQueue<Map<String, Object>> pq =
-        new PriorityQueue<>(
-            1,
-            new Comparator<Map<String, Object>>() {
-              @Override
-              public int compare(Map<String, Object> lhs, Map<String, Object> rhs) {
-                return Float.compare((float) rhs.get("score"), (float) lhs.get("score"));
-              }
-            });
-
-    for (int heatmapY = 0; heatmapY < scores.length; ++heatmapY) {
-      for (int heatmapX = 0; heatmapX < scores[0].length; ++heatmapX) {
-        for (int keypointId = 0; keypointId < scores[0][0].length; ++keypointId) {
-          float score = sigmoid(scores[heatmapY][heatmapX][keypointId]);
-          if (score < threshold) continue;
-
-          if (scoreIsMaximumInLocalWindow(
-              keypointId, score, heatmapY, heatmapX, localMaximumRadius, scores)) {
-            Map<String, Object> res = new HashMap<>();
-            res.put("score", score);
-            res.put("y", heatmapY);
-            res.put("x", heatmapX);
-            res.put("partId", keypointId);
-            pq.add(res);
-          }
-        }
-      }
+    @Override
+    void releaseOutputBuffer() {
+      for (Object output : outputMap.values())
+        model.outputBufferPool.release((ByteBuffer) output);
+      outputMap.clear();
     }
-
-    return pq;
   }
 
-  boolean scoreIsMaximumInLocalWindow(int keypointId,
-                                      float score,
-                                      int heatmapY,
-                                      int heatmapX,
-                                      int localMaximumRadius,
-                                      float[][][] scores) {
-    boolean localMaximum = true;
-    int height = scores.length;
-    int width = scores[0].length;
-
-    int yStart = Math.max(heatmapY - localMaximumRadius, 0);
-    int yEnd = Math.min(heatmapY + localMaximumRadius + 1, height);
-    for (int yCurrent = yStart; yCurrent < yEnd; ++yCurrent) {
-      int xStart = Math.max(heatmapX - localMaximumRadius, 0);
-      int xEnd = Math.min(heatmapX + localMaximumRadius + 1, width);
-      for (int xCurrent = xStart; xCurrent < xEnd; ++xCurrent) {
-        if (sigmoid(scores[yCurrent][xCurrent][keypointId]) > score) {
-          localMaximum = false;
-          break;
-        }
-      }
-      if (!localMaximum) {
-        break;
-      }
-    }
-
-    return localMaximum;
-  }
-
-  float[] getImageCoords(Map<String, Object> keypoint,
-                         int outputStride,
-                         int numParts,
-                         float[][][] offsets) {
-    int heatmapY = (int) keypoint.get("y");
-    int heatmapX = (int) keypoint.get("x");
-    int keypointId = (int) keypoint.get("partId");
-    float offsetY = offsets[heatmapY][heatmapX][keypointId];
-    float offsetX = offsets[heatmapY][heatmapX][keypointId + numParts];
-
-    float y = heatmapY * outputStride + offsetY;
-    float x = heatmapX * outputStride + offsetX;
-
-    return new float[]{y, x};
-  }
-
-  boolean withinNmsRadiusOfCorrespondingPoint(List<Map<String, Object>> poses,
-                                              float squaredNmsRadius,
-                                              float y,
-                                              float x,
-                                              int keypointId) {
-    for (Map<String, Object> pose : poses) {
-      Map<Integer, Object> keypoints = (Map<Integer, Object>) pose.get("keypoints");
-      Map<String, Object> correspondingKeypoint = (Map<String, Object>) keypoints.get(keypointId);
-      float _x = (float) correspondingKeypoint.get("x") * inputSize - x;
-      float _y = (float) correspondingKeypoint.get("y") * inputSize - y;
-      float squaredDistance = _x * _x + _y * _y;
-      if (squaredDistance <= squaredNmsRadius)
-        return true;
-    }
-
-    return false;
-  }
-
-  Map<String, Object> traverseToTargetKeypoint(int edgeId,
-                                               Map<String, Object> sourceKeypoint,
-                                               int targetKeypointId,
-                                               float[][][] scores,
-                                               float[][][] offsets,
-                                               int outputStride,
-                                               float[][][] displacements) {
-    int height = scores.length;
-    int width = scores[0].length;
-    int numKeypoints = scores[0][0].length;
-    float sourceKeypointY = (float) sourceKeypoint.get("y") * inputSize;
-    float sourceKeypointX = (float) sourceKeypoint.get("x") * inputSize;
-
-    int[] sourceKeypointIndices = getStridedIndexNearPoint(sourceKeypointY, sourceKeypointX,
-        outputStride, height, width);
-
-    float[] displacement = getDisplacement(edgeId, sourceKeypointIndices, displacements);
-
-    float[] displacedPoint = new float[]{
-        sourceKeypointY + displacement[0],
-        sourceKeypointX + displacement[1]
-    };
-
-    float[] targetKeypoint = displacedPoint;
-
-    final int offsetRefineStep = 2;
-    for (int i = 0; i < offsetRefineStep; i++) {
-      int[] targetKeypointIndices = getStridedIndexNearPoint(targetKeypoint[0], targetKeypoint[1],
-          outputStride, height, width);
-
-      int targetKeypointY = targetKeypointIndices[0];
-      int targetKeypointX = targetKeypointIndices[1];
-
-      float offsetY = offsets[targetKeypointY][targetKeypointX][targetKeypointId];
-      float offsetX = offsets[targetKeypointY][targetKeypointX][targetKeypointId + numKeypoints];
-
-      targetKeypoint = new float[]{
-          targetKeypointY * outputStride + offsetY,
-          targetKeypointX * outputStride + offsetX
-      };
-    }
-
-    int[] targetKeypointIndices = getStridedIndexNearPoint(targetKeypoint[0], targetKeypoint[1],
-        outputStride, height, width);
-
-    float score = sigmoid(scores[targetKeypointIndices[0]][targetKeypointIndices[1]][targetKeypointId]);
-
-    Map<String, Object> keypoint = new HashMap<>();
-    keypoint.put("score", score);
-    keypoint.put("part", partNames[targetKeypointId]);
-    keypoint.put("y", targetKeypoint[0] / inputSize);
-    keypoint.put("x", targetKeypoint[1] / inputSize);
-
-    return keypoint;
-  }
-
-  int[] getStridedIndexNearPoint(float _y, float _x, int outputStride, int height, int width) {
-    int y_ = Math.round(_y / outputStride);
-    int x_ = Math.round(_x / outputStride);
-    int y = y_ < 0 ? 0 : y_ > height - 1 ? height - 1 : y_;
-    int x = x_ < 0 ? 0 : x_ > width - 1 ? width - 1 : x_;
-    return new int[]{y, x};
-  }
-
-  float[] getDisplacement(int edgeId, int[] keypoint, float[][][] displacements) {
-    int numEdges = displacements[0][0].length / 2;
-    int y = keypoint[0];
-    int x = keypoint[1];
-    return new float[]{displacements[y][x][edgeId], displacements[y][x][edgeId + numEdges]};
-  }
-
-  float getInstanceScore(Map<Integer, Map<String, Object>> keypoints, int numKeypoints) {
-    float scores = 0;
-    for (Map.Entry<Integer, Map<String, Object>> keypoint : keypoints.entrySet())
-      scores += (float) keypoint.getValue().get("score");
-    return scores / numKeypoints;
-  }
-
-  private float sigmoid(final float x) {
-    return (float) (1. / (1. + Math.exp(-x)));
-  }
-
-  private void softmax(final float[] vals) {
-    float max = Float.NEGATIVE_INFINITY;
-    for (final float val : vals) {
-      max = Math.max(max, val);
-    }
-    float sum = 0.0f;
-    for (int i = 0; i < vals.length; ++i) {
-      vals[i] = (float) Math.exp(vals[i] - max);
-      sum += vals[i];
-    }
-    for (int i = 0; i < vals.length; ++i) {
-      vals[i] = vals[i] / sum;
-    }
-  }
-
-  private static Matrix getTransformationMatrix(final int srcWidth,
-                                                final int srcHeight,
-                                                final int dstWidth,
-                                                final int dstHeight,
-                                                final boolean maintainAspectRatio) {
-    final Matrix matrix = new Matrix();
-
-    if (srcWidth != dstWidth || srcHeight != dstHeight) {
-      final float scaleFactorX = dstWidth / (float) srcWidth;
-      final float scaleFactorY = dstHeight / (float) srcHeight;
-
-      if (maintainAspectRatio) {
-        final float scaleFactor = Math.max(scaleFactorX, scaleFactorY);
-        matrix.postScale(scaleFactor, scaleFactor);
+  private void close(HashMap args) {
+    Object handleObj = args == null ? null : args.get("handle");
+    synchronized (models) {
+      if (handleObj == null) {
+        for (TfliteModel tfliteModel : models.values())
+          tfliteModel.close();
+        models.clear();
+        defaultModelHandle = -1;
       } else {
-        matrix.postScale(scaleFactorX, scaleFactorY);
+        TfliteModel tfliteModel = models.remove((int) handleObj);
+        if (tfliteModel != null)
+          tfliteModel.close();
+        if (defaultModelHandle == (int) handleObj)
+          defaultModelHandle = -1;
       }
+      if (models.isEmpty())
+        releaseRenderScript();
+      updateNumWorkers();
+    }
+    synchronized (poseTrackers) {
+      if (handleObj == null) poseTrackers.clear();
+      else removePoseTrackers(handleObj + "/");
     }
-
-    matrix.invert(new Matrix());
-    return matrix;
-  }
-
-  private void close() {
-    if (tfLite != null)
-      tfLite.close();
-    labels = null;
-    labelProb = null;
   }
 }
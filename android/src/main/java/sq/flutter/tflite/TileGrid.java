@@ -0,0 +1,184 @@
+package sq.flutter.tflite;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Overlapping square tiles covering a large image, for running a model at its own resolution over
+ * images far bigger than its input. Tiles are {@code tileSize} pixels wide, neighbours overlap by
+ * {@code overlap} of a tile, and the last tile of a row or column is moved back to end at the image
+ * border. Along a side shorter than a tile there is a single tile covering all of it.
+ *
+ * <p>Every tile owns the part of the image closer to its center than to its neighbours', which is
+ * where stitched outputs and detections are taken from.
+ */
+class TileGrid {
+  /** Processes tiles; each worker is used by one thread at a time. */
+  interface Worker {
+    void run(int tile) throws Exception;
+
+    void close();
+  }
+
+  /** Creates the worker of a thread, or returns null when no more workers can run. */
+  interface WorkerFactory {
+    Worker create();
+  }
+
+  private static ThreadPoolExecutor tileExecutor;
+
+  final int imageWidth, imageHeight;
+  final int tileWidth, tileHeight;
+  final int[] xs, ys;
+
+  TileGrid(int imageWidth, int imageHeight, int tileSize, float overlap) {
+    if (tileSize <= 0) throw new IllegalArgumentException("Invalid tile size " + tileSize);
+    if (overlap < 0 || overlap >= 1) throw new IllegalArgumentException("Invalid tile overlap " + overlap);
+    this.imageWidth = imageWidth;
+    this.imageHeight = imageHeight;
+    this.tileWidth = Math.min(tileSize, imageWidth);
+    this.tileHeight = Math.min(tileSize, imageHeight);
+    int step = Math.max(1, Math.round(tileSize * (1 - overlap)));
+    this.xs = starts(imageWidth, tileWidth, step);
+    this.ys = starts(imageHeight, tileHeight, step);
+  }
+
+  private static int[] starts(int size, int tile, int step) {
+    int count = size <= tile ? 1 : (size - tile + step - 1) / step + 1;
+    int[] starts = new int[count];
+    for (int i = 0; i < count; ++i)
+      starts[i] = Math.min(i * step, size - tile);
+    return starts;
+  }
+
+  int count() {
+    return xs.length * ys.length;
+  }
+
+  int x(int tile) {
+    return xs[tile % xs.length];
+  }
+
+  int y(int tile) {
+    return ys[tile / xs.length];
+  }
+
+  /** The tile as a region normalized to the image. */
+  InputRegion region(int tile) {
+    return new InputRegion((float) x(tile) / imageWidth, (float) y(tile) / imageHeight,
+        (float) tileWidth / imageWidth, (float) tileHeight / imageHeight, false);
+  }
+
+  /** First column owned by the tile, in image pixels. */
+  int ownedLeft(int tile) {
+    int column = tile % xs.length;
+    return column == 0 ? 0 : (xs[column - 1] + tileWidth + xs[column]) / 2;
+  }
+
+  /** End of the columns owned by the tile, exclusive. */
+  int ownedRight(int tile) {
+    int column = tile % xs.length;
+    return column == xs.length - 1 ? imageWidth : (xs[column] + tileWidth + xs[column + 1]) / 2;
+  }
+
+  int ownedTop(int tile) {
+    int row = tile / xs.length;
+    return row == 0 ? 0 : (ys[row - 1] + tileHeight + ys[row]) / 2;
+  }
+
+  int ownedBottom(int tile) {
+    int row = tile / xs.length;
+    return row == ys.length - 1 ? imageHeight : (ys[row] + tileHeight + ys[row + 1]) / 2;
+  }
+
+  /**
+   * Maps the sorted detections of a tile to the image, keeping those whose center the tile owns.
+   * Boxes are not clipped to the tile: an object across a seam is kept whole by the tile that owns
+   * its center, and its cut-off part seen by the neighbouring tile is dropped there.
+   */
+  void mapDetections(int tile, Detections detections) {
+    detections.mapToSource(region(tile), (float) ownedLeft(tile) / imageWidth, (float) ownedTop(tile) / imageHeight,
+        (float) ownedRight(tile) / imageWidth, (float) ownedBottom(tile) / imageHeight);
+  }
+
+  /**
+   * Runs every tile on up to {@code maxWorkers} threads. The calling thread runs {@code first} and
+   * the other workers, created on pooled threads, take the remaining tiles as they become free.
+   * Rethrows the first failure once all workers have stopped.
+   */
+  void run(Worker first, final WorkerFactory factory, int maxWorkers) {
+    final AtomicInteger nextTile = new AtomicInteger();
+    List<Future<?>> helpers = new ArrayList<>();
+    int numHelpers = Math.min(maxWorkers, count()) - 1;
+    for (int i = 0; i < numHelpers; ++i) {
+      helpers.add(tileExecutor().submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          if (nextTile.get() >= count()) return null;
+          Worker worker = factory.create();
+          if (worker != null) runTiles(worker, nextTile);
+          return null;
+        }
+      }));
+    }
+
+    Throwable failure = null;
+    try {
+      runTiles(first, nextTile);
+    } catch (Exception e) {
+      failure = e;
+    }
+    for (Future<?> helper : helpers) {
+      try {
+        helper.get();
+      } catch (ExecutionException e) {
+        if (failure == null) failure = e.getCause();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        if (failure == null) failure = e;
+      }
+    }
+    if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+    if (failure != null) throw new RuntimeException(failure.getMessage(), failure);
+  }
+
+  private void runTiles(Worker worker, AtomicInteger nextTile) throws Exception {
+    try {
+      for (int tile = nextTile.getAndIncrement(); tile < count(); tile = nextTile.getAndIncrement())
+        worker.run(tile);
+    } catch (Exception e) {
+      // Stop the other workers from taking more tiles.
+      nextTile.set(count());
+      throw e;
+    } finally {
+      worker.close();
+    }
+  }
+
+  private static synchronized ThreadPoolExecutor tileExecutor() {
+    if (tileExecutor == null) {
+      final AtomicInteger threadCount = new AtomicInteger();
+      ThreadFactory threadFactory = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "tflite-tile-" + threadCount.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      };
+      int numThreads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+      tileExecutor = new ThreadPoolExecutor(numThreads, numThreads, 30, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(), threadFactory);
+      tileExecutor.allowCoreThreadTimeOut(true);
+    }
+    return tileExecutor;
+  }
+}
@@ -0,0 +1,129 @@
+package sq.flutter.tflite;
+
+/**
+ * Selects the indices of the largest scores with a bounded min-heap, so picking the top {@code k}
+ * of {@code n} classes takes {@code O(n log k)} and allocates nothing but the {@code k} indices.
+ * Equal scores are ranked by ascending index. Quantized scores are compared as raw bytes, so they
+ * never need to be dequantized as a whole.
+ */
+final class TopK {
+  private TopK() {}
+
+  /**
+   * Writes the indices of at most {@code k} of the first {@code n} values that are above
+   * {@code threshold} into {@code indices}, by descending value, and returns how many were written.
+   */
+  static int select(float[] values, int n, int k, float threshold, int[] indices) {
+    int size = 0;
+    for (int i = 0; i < n; ++i) {
+      float value = values[i];
+      if (!(value > threshold)) continue;
+      if (size < k) {
+        indices[size] = i;
+        siftUp(values, indices, size++);
+      } else if (k > 0 && value > values[indices[0]]) {
+        // Later indices never beat an equal root, so ties keep the lowest indices.
+        indices[0] = i;
+        siftDown(values, indices, 0, size);
+      }
+    }
+
+    // Pop the minimum into the tail until the heap is sorted by descending value.
+    for (int end = size - 1; end > 0; --end) {
+      int min = indices[0];
+      indices[0] = indices[end];
+      indices[end] = min;
+      siftDown(values, indices, 0, end);
+    }
+    return size;
+  }
+
+  /**
+   * Same as {@link #select(float[], int, int, float, int[])} for quantized bytes, read as signed or
+   * unsigned, keeping values above the raw threshold {@code threshold}.
+   */
+  static int select(byte[] values, int n, boolean signed, int k, int threshold, int[] indices) {
+    int size = 0;
+    for (int i = 0; i < n; ++i) {
+      int value = value(values, signed, i);
+      if (value <= threshold) continue;
+      if (size < k) {
+        indices[size] = i;
+        siftUp(values, signed, indices, size++);
+      } else if (k > 0 && value > value(values, signed, indices[0])) {
+        indices[0] = i;
+        siftDown(values, signed, indices, 0, size);
+      }
+    }
+
+    for (int end = size - 1; end > 0; --end) {
+      int min = indices[0];
+      indices[0] = indices[end];
+      indices[end] = min;
+      siftDown(values, signed, indices, 0, end);
+    }
+    return size;
+  }
+
+  private static int value(byte[] values, boolean signed, int i) {
+    return signed ? values[i] : values[i] & 0xff;
+  }
+
+  // Heap order: the root is the weakest kept index, the lowest value or the highest index on ties.
+  private static boolean weaker(float[] values, int a, int b) {
+    return values[a] < values[b] || (values[a] == values[b] && a > b);
+  }
+
+  private static void siftUp(float[] values, int[] heap, int pos) {
+    int index = heap[pos];
+    while (pos > 0) {
+      int parent = (pos - 1) >> 1;
+      if (!weaker(values, index, heap[parent])) break;
+      heap[pos] = heap[parent];
+      pos = parent;
+    }
+    heap[pos] = index;
+  }
+
+  private static void siftDown(float[] values, int[] heap, int pos, int size) {
+    int index = heap[pos];
+    while (true) {
+      int child = 2 * pos + 1;
+      if (child >= size) break;
+      if (child + 1 < size && weaker(values, heap[child + 1], heap[child])) child++;
+      if (!weaker(values, heap[child], index)) break;
+      heap[pos] = heap[child];
+      pos = child;
+    }
+    heap[pos] = index;
+  }
+
+  private static boolean weaker(byte[] values, boolean signed, int a, int b) {
+    int va = value(values, signed, a), vb = value(values, signed, b);
+    return va < vb || (va == vb && a > b);
+  }
+
+  private static void siftUp(byte[] values, boolean signed, int[] heap, int pos) {
+    int index = heap[pos];
+    while (pos > 0) {
+      int parent = (pos - 1) >> 1;
+      if (!weaker(values, signed, index, heap[parent])) break;
+      heap[pos] = heap[parent];
+      pos = parent;
+    }
+    heap[pos] = index;
+  }
+
+  private static void siftDown(byte[] values, boolean signed, int[] heap, int pos, int size) {
+    int index = heap[pos];
+    while (true) {
+      int child = 2 * pos + 1;
+      if (child >= size) break;
+      if (child + 1 < size && weaker(values, signed, heap[child + 1], heap[child])) child++;
+      if (!weaker(values, signed, heap[child], index)) break;
+      heap[pos] = heap[child];
+      pos = child;
+    }
+    heap[pos] = index;
+  }
+}
@@ -0,0 +1,100 @@
+package sq.flutter.tflite;
+
+import java.nio.FloatBuffer;
+import java.util.List;
+
+/**
+ * Decodes the output grid of a YOLOv2 style model, laid out as
+ * {@code [gridSize][gridSize][numBoxesPerBlock * (numClasses + 5)]}.
+ *
+ * <p>The grid is read with one bulk copy into a reused per-thread array and decoded without
+ * allocating per cell. A box is rejected on its objectness alone when {@code sigmoid(objectness)}
+ * cannot beat the threshold, since the class probability it is multiplied with is at most 1. Only
+ * the remaining boxes pay for the class softmax.
+ */
+class YoloDecoder {
+  final int inputSize;
+  final int gridSize;
+  final int blockSize;
+  final int numBoxesPerBlock;
+  final int numClasses;
+  final float[] anchors;
+  final float threshold;
+  // sigmoid(objectness) > threshold exactly when objectness > logit(threshold).
+  private final float objectnessThreshold;
+
+  YoloDecoder(int inputSize,
+              int blockSize,
+              int numBoxesPerBlock,
+              int numClasses,
+              List<Double> anchors,
+              float threshold) {
+    this.inputSize = inputSize;
+    this.gridSize = inputSize / blockSize;
+    this.blockSize = blockSize;
+    this.numBoxesPerBlock = numBoxesPerBlock;
+    this.numClasses = numClasses;
+    this.anchors = new float[anchors.size()];
+    for (int i = 0; i < this.anchors.length; ++i)
+      this.anchors[i] = anchors.get(i).floatValue();
+    this.threshold = threshold;
+    this.objectnessThreshold = (float) Math.log(threshold / (1 - threshold));
+  }
+
+  /** Number of floats in the output of one image. */
+  int outputSize() {
+    return gridSize * gridSize * numBoxesPerBlock * (numClasses + 5);
+  }
+
+  /** Reads the next {@link #outputSize()} floats of {@code output} and adds the boxes above the threshold. */
+  void decode(FloatBuffer output, Detections detections) {
+    int size = outputSize();
+    float[] values = TensorImageUtils.scratch().floats(size);
+    output.get(values, 0, size);
+    decode(values, detections);
+  }
+
+  void decode(float[] output, Detections detections) {
+    final int stride = numClasses + 5;
+    int offset = 0;
+    for (int y = 0; y < gridSize; ++y) {
+      for (int x = 0; x < gridSize; ++x) {
+        for (int b = 0; b < numBoxesPerBlock; ++b, offset += stride) {
+          final float objectness = output[offset + 4];
+          if (objectness <= objectnessThreshold) continue;
+
+          // Softmax of the best class: exp(max - max) / sum(exp(c - max)) = 1 / sum.
+          int detectedClass = 0;
+          float maxLogit = output[offset + 5];
+          for (int c = 1; c < numClasses; ++c) {
+            if (output[offset + 5 + c] > maxLogit) {
+              maxLogit = output[offset + 5 + c];
+              detectedClass = c;
+            }
+          }
+          float sum = 0;
+          for (int c = 0; c < numClasses; ++c)
+            sum += (float) Math.exp(output[offset + 5 + c] - maxLogit);
+
+          final float confidenceInClass = sigmoid(objectness) / sum;
+          if (confidenceInClass <= threshold) continue;
+
+          final float xPos = (x + sigmoid(output[offset])) * blockSize;
+          final float yPos = (y + sigmoid(output[offset + 1])) * blockSize;
+          final float w = (float) Math.exp(output[offset + 2]) * anchors[2 * b] * blockSize;
+          final float h = (float) Math.exp(output[offset + 3]) * anchors[2 * b + 1] * blockSize;
+
+          final float xmin = Math.max(0, (xPos - w / 2) / inputSize);
+          final float ymin = Math.max(0, (yPos - h / 2) / inputSize);
+          detections.add(xmin, ymin,
+              Math.min(1 - xmin, w / inputSize), Math.min(1 - ymin, h / inputSize),
+              confidenceInClass, detectedClass);
+        }
+      }
+    }
+  }
+
+  static float sigmoid(float x) {
+    return (float) (1. / (1. + Math.exp(-x)));
+  }
+}
@@ -0,0 +1,42 @@
+package sq.flutter.tflite;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/** Adds candidates after sorting, across the growth of the arrays from their initial 16 entries. */
+public class DetectionsTest {
+  private static Detections sorted(int count) {
+    Detections detections = new Detections();
+    for (int i = 0; i < count; ++i)
+      detections.add(i, i, 1, 1, i / (float) count, 0);
+    detections.sortByScore();
+    return detections;
+  }
+
+  @Test
+  public void addKeepsSortedOrder() {
+    Detections detections = sorted(16);
+    detections.add(0, 0, 1, 1, 1, 0);
+    assertEquals(17, detections.count);
+    assertEquals(16, detections.ordered);
+    for (int k = 0; k < 16; ++k)
+      assertEquals(15 - k, detections.order[k]);
+
+    detections.sortByScore();
+    assertEquals(16, detections.order[0]);
+    assertEquals(15, detections.order[1]);
+  }
+
+  @Test
+  public void addAllOfItself() {
+    Detections detections = sorted(16);
+    detections.addAll(detections);
+    assertEquals(32, detections.count);
+    // The copies are added best first.
+    for (int k = 0; k < 16; ++k) {
+      assertEquals(15 - k, (int) detections.boxes[4 * (16 + k)]);
+      assertEquals(detections.scores[15 - k], detections.scores[16 + k], 0);
+    }
+  }
+}
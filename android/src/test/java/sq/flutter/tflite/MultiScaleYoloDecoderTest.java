@@ -0,0 +1,134 @@
+package sq.flutter.tflite;
+
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Decodes hand-written heads of a 32x32 model with two classes: a 2x2 grid head laid out as
+ * {@code [1, grid, grid, anchors * 7]} and a 1x1 grid head laid out as {@code [1, anchors, grid,
+ * grid, 7]}, given coarsest first so anchors have to be assigned by stride.
+ */
+public class MultiScaleYoloDecoderTest {
+  private static final int NUM_CLASSES = 2;
+  private static final int[][] OUTPUT_SHAPES = {{1, 1, 1, 1, 7}, {1, 2, 2, 7}};
+  // Finest grid first: (8, 10) belongs to the 2x2 head, (20, 24) to the 1x1 head.
+  private static final List<Number> ANCHORS = Arrays.<Number>asList(8.0, 10.0, 20.0, 24.0);
+
+  @Test
+  public void decodesYolov3Boxes() {
+    MultiScaleYoloDecoder decoder = decoder(MultiScaleYoloDecoder.BoxEncoding.YOLOV3);
+    Detections detections = decodeAll(decoder, coarseHead(), fineHead());
+
+    assertEquals(2, detections.count);
+    // Coarse head: stride 32, cell (0, 0), tx = ty = tw = th = 0.
+    assertBox(detections, 0, (16 - 10) / 32f, (16 - 12) / 32f, 20 / 32f, 24 / 32f,
+        sigmoid(1) * sigmoid(2), 0);
+    // Fine head: stride 16, cell (x 0, y 1), tx = 1, ty = 0, tw = ln 2, th = 0.
+    float x = sigmoid(1) * 16;
+    float y = 1.5f * 16;
+    assertBox(detections, 1, (x - 8) / 32f, (y - 5) / 32f, 16 / 32f, 10 / 32f,
+        sigmoid(2) * sigmoid(3), 1);
+  }
+
+  @Test
+  public void decodesYolov5Boxes() {
+    MultiScaleYoloDecoder decoder = decoder(MultiScaleYoloDecoder.BoxEncoding.YOLOV5);
+    Detections detections = decodeAll(decoder, coarseHead(), fineHead());
+
+    assertEquals(2, detections.count);
+    assertBox(detections, 0, (16 - 10) / 32f, (16 - 12) / 32f, 20 / 32f, 24 / 32f,
+        sigmoid(1) * sigmoid(2), 0);
+    float x = (2 * sigmoid(1) - 0.5f) * 16;
+    float y = 1.5f * 16;
+    float w = 2 * sigmoid((float) Math.log(2));
+    assertBox(detections, 1, (x - 4 * w * w) / 32f, (y - 5) / 32f, 8 * w * w / 32f, 10 / 32f,
+        sigmoid(2) * sigmoid(3), 1);
+  }
+
+  @Test
+  public void skipsBoxesBelowThreshold() {
+    MultiScaleYoloDecoder decoder = new MultiScaleYoloDecoder(OUTPUT_SHAPES, 32, 32, NUM_CLASSES,
+        ANCHORS, MultiScaleYoloDecoder.BoxEncoding.YOLOV3, 0.7f);
+    Detections detections = decodeAll(decoder, coarseHead(), fineHead());
+    // Only the fine box scores above 0.7.
+    assertEquals(1, detections.count);
+    assertEquals(1, detections.classes[0]);
+  }
+
+  @Test
+  public void readsConsecutiveImagesOfABatch() {
+    MultiScaleYoloDecoder decoder = decoder(MultiScaleYoloDecoder.BoxEncoding.YOLOV3);
+    FloatBuffer coarse = FloatBuffer.wrap(concat(emptyHead(7), coarseHead()));
+    FloatBuffer fine = FloatBuffer.wrap(concat(emptyHead(2 * 2 * 7), fineHead()));
+
+    Detections first = new Detections();
+    decoder.decode(0, coarse, first);
+    decoder.decode(1, fine, first);
+    assertEquals(0, first.count);
+
+    Detections second = new Detections();
+    decoder.decode(0, coarse, second);
+    decoder.decode(1, fine, second);
+    assertEquals(2, second.count);
+  }
+
+  private static MultiScaleYoloDecoder decoder(MultiScaleYoloDecoder.BoxEncoding encoding) {
+    return new MultiScaleYoloDecoder(OUTPUT_SHAPES, 32, 32, NUM_CLASSES, ANCHORS, encoding, 0.3f);
+  }
+
+  private static Detections decodeAll(MultiScaleYoloDecoder decoder, float[] coarse, float[] fine) {
+    Detections detections = new Detections();
+    decoder.decode(0, FloatBuffer.wrap(coarse), detections);
+    decoder.decode(1, FloatBuffer.wrap(fine), detections);
+    return detections;
+  }
+
+  // tx, ty, tw, th, objectness, class logits.
+  private static float[] coarseHead() {
+    return new float[]{0, 0, 0, 0, 1, 2, -1};
+  }
+
+  private static float[] fineHead() {
+    float[] head = emptyHead(2 * 2 * 7);
+    int offset = (1 * 2 + 0) * 7;
+    head[offset] = 1;
+    head[offset + 1] = 0;
+    head[offset + 2] = (float) Math.log(2);
+    head[offset + 3] = 0;
+    head[offset + 4] = 2;
+    head[offset + 5] = 0;
+    head[offset + 6] = 3;
+    return head;
+  }
+
+  private static float[] emptyHead(int size) {
+    float[] head = new float[size];
+    Arrays.fill(head, -10);
+    return head;
+  }
+
+  private static float[] concat(float[] a, float[] b) {
+    float[] result = Arrays.copyOf(a, a.length + b.length);
+    System.arraycopy(b, 0, result, a.length, b.length);
+    return result;
+  }
+
+  private static void assertBox(Detections detections, int i, float x, float y, float w, float h,
+                                float score, int detectedClass) {
+    assertEquals(x, detections.boxes[4 * i], 1e-5f);
+    assertEquals(y, detections.boxes[4 * i + 1], 1e-5f);
+    assertEquals(w, detections.boxes[4 * i + 2], 1e-5f);
+    assertEquals(h, detections.boxes[4 * i + 3], 1e-5f);
+    assertEquals(score, detections.scores[i], 1e-5f);
+    assertEquals(detectedClass, detections.classes[i]);
+  }
+
+  private static float sigmoid(float x) {
+    return (float) (1 / (1 + Math.exp(-x)));
+  }
+}
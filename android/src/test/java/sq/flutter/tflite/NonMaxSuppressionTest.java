@@ -0,0 +1,134 @@
+package sq.flutter.tflite;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/** Compares the grid-indexed suppression against a brute-force pass over all kept boxes. */
+public class NonMaxSuppressionTest {
+  private static final int NUM_CASES = 1000;
+
+  @Test
+  public void perClassMatchesBruteForce() {
+    fuzz(NonMaxSuppression.Mode.PER_CLASS, 0);
+  }
+
+  @Test
+  public void agnosticMatchesBruteForce() {
+    fuzz(NonMaxSuppression.Mode.AGNOSTIC, 0);
+  }
+
+  @Test
+  public void softNmsMatchesBruteForce() {
+    fuzz(NonMaxSuppression.Mode.PER_CLASS, 0.5f);
+    fuzz(NonMaxSuppression.Mode.AGNOSTIC, 0.5f);
+  }
+
+  @Test
+  public void sortsByDescendingScore() {
+    Random random = new Random(7);
+    Detections detections = randomDetections(random, 500, 3);
+    detections.sortByScore();
+    assertEquals(500, detections.ordered);
+    for (int k = 1; k < detections.ordered; ++k)
+      assertTrue(detections.scores[detections.order[k - 1]] >= detections.scores[detections.order[k]]);
+  }
+
+  @Test
+  public void noneKeepsEverything() {
+    Detections detections = randomDetections(new Random(1), 50, 2);
+    detections.sortByScore();
+    new NonMaxSuppression(NonMaxSuppression.Mode.NONE, 0.5f, 0, 0.1f).apply(detections);
+    assertEquals(50, detections.ordered);
+  }
+
+  private static void fuzz(NonMaxSuppression.Mode mode, float softNmsSigma) {
+    Random random = new Random(42);
+    // One instance for every case, so state left over from larger inputs is exercised too.
+    NonMaxSuppression nms = new NonMaxSuppression(mode, 0.5f, softNmsSigma, 0.1f);
+    for (int c = 0; c < NUM_CASES; ++c) {
+      int count = random.nextInt(c % 10 == 0 ? 2000 : 100);
+      Detections detections = randomDetections(random, count, 1 + random.nextInt(5));
+
+      detections.sortByScore();
+      float[] scores = detections.scores.clone();
+      int[] expectedOrder = bruteForce(detections, mode, nms.iouThreshold, softNmsSigma, nms.scoreThreshold, scores);
+
+      nms.apply(detections);
+      int[] order = Arrays.copyOf(detections.order, detections.ordered);
+      String message = mode + " sigma " + softNmsSigma + " case " + c;
+      assertArrayEquals(message, expectedOrder, order);
+      for (int i : order)
+        assertEquals(message, scores[i], detections.scores[i], 1e-5f);
+    }
+  }
+
+  // Visits candidates by score and compares each with every kept box, decaying scores in place
+  // for soft-NMS.
+  private static int[] bruteForce(Detections detections, NonMaxSuppression.Mode mode,
+                                  float iouThreshold, float softNmsSigma, float scoreThreshold,
+                                  float[] scores) {
+    List<Integer> kept = new ArrayList<>();
+    for (int k = 0; k < detections.ordered; ++k) {
+      int i = detections.order[k];
+      boolean suppressed = false;
+      float score = scores[i];
+      for (int j : kept) {
+        if (mode == NonMaxSuppression.Mode.PER_CLASS && detections.classes[i] != detections.classes[j])
+          continue;
+        float iou = NonMaxSuppression.iou(detections.boxes, i, j);
+        if (softNmsSigma > 0) {
+          score *= (float) Math.exp(-iou * iou / softNmsSigma);
+          if (score <= scoreThreshold) {
+            suppressed = true;
+            break;
+          }
+        } else if (iou > iouThreshold) {
+          suppressed = true;
+          break;
+        }
+      }
+      if (suppressed) continue;
+      scores[i] = score;
+      kept.add(i);
+    }
+
+    Integer[] order = kept.toArray(new Integer[0]);
+    if (softNmsSigma > 0) {
+      final float[] decayed = scores;
+      // Same tie-break as Detections.sortOrder(): equal scores keep the higher index first.
+      Arrays.sort(order, new Comparator<Integer>() {
+        @Override
+        public int compare(Integer a, Integer b) {
+          int byScore = Float.compare(decayed[b], decayed[a]);
+          return byScore != 0 ? byScore : b - a;
+        }
+      });
+    }
+    int[] result = new int[order.length];
+    for (int k = 0; k < order.length; ++k)
+      result[k] = order[k];
+    return result;
+  }
+
+  private static Detections randomDetections(Random random, int count, int numClasses) {
+    Detections detections = new Detections();
+    for (int i = 0; i < count; ++i) {
+      float x = random.nextFloat() * 0.9f;
+      float y = random.nextFloat() * 0.9f;
+      float w = Math.min(1 - x, 0.02f + random.nextFloat() * 0.3f);
+      float h = Math.min(1 - y, 0.02f + random.nextFloat() * 0.3f);
+      // Decoders only add candidates above the score threshold.
+      detections.add(x, y, w, h, 0.1f + 0.9f * random.nextFloat(), random.nextInt(numClasses));
+    }
+    return detections;
+  }
+}
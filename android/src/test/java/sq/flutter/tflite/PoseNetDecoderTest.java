@@ -0,0 +1,102 @@
+package sq.flutter.tflite;
+
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Decodes hand-written outputs of a 3x3 heatmap with output stride 16 and input size 33. Every
+ * part scores sigmoid(-5) except a nose at cell (1, 1), a left eye at cell (0, 0) reached through
+ * the nose's forward displacement, and a second pose rooted at a right ankle at cell (2, 2).
+ */
+public class PoseNetDecoderTest {
+  private static final int SIZE = 3;
+  private static final int NUM_PARTS = 17;
+  private static final int NUM_EDGES = PoseNetDecoder.POSE_CHAIN.length;
+  private static final int STRIDE = 16;
+  private static final int INPUT_SIZE = 33;
+  private static final int NOSE = 0, LEFT_EYE = 1, LEFT_EAR = 3, RIGHT_ANKLE = 16;
+
+  private final float[] heatmaps = new float[SIZE * SIZE * NUM_PARTS];
+  private final float[] offsets = new float[SIZE * SIZE * 2 * NUM_PARTS];
+  private final float[] displacementsFwd = new float[SIZE * SIZE * 2 * NUM_EDGES];
+  private final float[] displacementsBwd = new float[SIZE * SIZE * 2 * NUM_EDGES];
+
+  public PoseNetDecoderTest() {
+    Arrays.fill(heatmaps, -5);
+    heatmaps[part(1, 1, NOSE)] = 2;
+    heatmaps[part(0, 0, LEFT_EYE)] = 1;
+    heatmaps[part(2, 2, RIGHT_ANKLE)] = 1.5f;
+    // Edge 0 runs from the nose to the left eye: one cell up and left from (1, 1).
+    displacementsFwd[(1 * SIZE + 1) * 2 * NUM_EDGES] = -16;
+    displacementsFwd[(1 * SIZE + 1) * 2 * NUM_EDGES + NUM_EDGES] = -16;
+    // The left eye is refined to (y 2, x 3) within its cell.
+    offsets[(0 * SIZE + 0) * 2 * NUM_PARTS + LEFT_EYE] = 2;
+    offsets[(0 * SIZE + 0) * 2 * NUM_PARTS + LEFT_EYE + NUM_PARTS] = 3;
+  }
+
+  @Test
+  public void decodesPosesByRootScore() {
+    List<Map<String, Object>> poses = decode(0.5f, 20, 5);
+    assertEquals(2, poses.size());
+
+    Map<Integer, Map<String, Object>> first = keypoints(poses.get(0));
+    assertKeypoint(first.get(NOSE), "nose", 16, 16, sigmoid(2));
+    assertKeypoint(first.get(LEFT_EYE), "leftEye", 2, 3, sigmoid(1));
+    // Zero displacements keep the rest of the pose where its parent is.
+    assertKeypoint(first.get(LEFT_EAR), "leftEar", 0, 0, sigmoid(-5));
+    assertKeypoint(first.get(RIGHT_ANKLE), "rightAnkle", 16, 16, sigmoid(-5));
+    float total = sigmoid(2) + sigmoid(1) + 15 * sigmoid(-5);
+    assertEquals(total / NUM_PARTS, ((Number) poses.get(0).get("score")).floatValue(), 1e-5f);
+
+    Map<Integer, Map<String, Object>> second = keypoints(poses.get(1));
+    assertKeypoint(second.get(RIGHT_ANKLE), "rightAnkle", 32, 32, sigmoid(1.5f));
+    assertKeypoint(second.get(NOSE), "nose", 32, 32, sigmoid(-5));
+  }
+
+  @Test
+  public void suppressesPosesWithinNmsRadius() {
+    // The right ankles of both poses are sqrt(2) * 16 pixels apart.
+    assertEquals(1, decode(0.5f, 23, 5).size());
+    assertEquals(2, decode(0.5f, 22, 5).size());
+  }
+
+  @Test
+  public void honorsThresholdAndNumResults() {
+    assertEquals(1, decode(0.85f, 20, 5).size());
+    assertEquals(1, decode(0.5f, 20, 1).size());
+    assertEquals(0, decode(0.95f, 20, 5).size());
+  }
+
+  private List<Map<String, Object>> decode(float threshold, int nmsRadius, int numResults) {
+    PoseNetDecoder decoder = new PoseNetDecoder(SIZE, SIZE, NUM_PARTS, STRIDE, INPUT_SIZE, 1);
+    return decoder.decode(FloatBuffer.wrap(heatmaps), FloatBuffer.wrap(offsets),
+        FloatBuffer.wrap(displacementsFwd), FloatBuffer.wrap(displacementsBwd),
+        threshold, nmsRadius, numResults);
+  }
+
+  private static int part(int y, int x, int part) {
+    return (y * SIZE + x) * NUM_PARTS + part;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<Integer, Map<String, Object>> keypoints(Map<String, Object> pose) {
+    return (Map<Integer, Map<String, Object>>) pose.get("keypoints");
+  }
+
+  private static void assertKeypoint(Map<String, Object> keypoint, String part, float y, float x, float score) {
+    assertEquals(part, keypoint.get("part"));
+    assertEquals(y / INPUT_SIZE, ((Number) keypoint.get("y")).floatValue(), 1e-5f);
+    assertEquals(x / INPUT_SIZE, ((Number) keypoint.get("x")).floatValue(), 1e-5f);
+    assertEquals(score, ((Number) keypoint.get("score")).floatValue(), 1e-5f);
+  }
+
+  private static float sigmoid(float x) {
+    return (float) (1 / (1 + Math.exp(-x)));
+  }
+}
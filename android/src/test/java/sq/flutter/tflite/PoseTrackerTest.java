@@ -0,0 +1,53 @@
+package sq.flutter.tflite;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tracks single-part poses: every pose is a point (y, x) with score 1. A point has no size, so a
+ * pose only matches a track less than 0.0005 away.
+ */
+public class PoseTrackerTest {
+  private static PoseTracker tracker() {
+    PoseTracker tracker = new PoseTracker(1);
+    tracker.configure(10, 0.5f, 0.25f, 0.5f);
+    return tracker;
+  }
+
+  private static float[] poses(float... yx) {
+    float[] poses = new float[yx.length / 2 * 3];
+    for (int p = 0; p < yx.length / 2; ++p) {
+      poses[3 * p] = yx[2 * p];
+      poses[3 * p + 1] = yx[2 * p + 1];
+      poses[3 * p + 2] = 1;
+    }
+    return poses;
+  }
+
+  @Test
+  public void keepsIdsOfMatchedPoses() {
+    PoseTracker tracker = tracker();
+    long first = tracker.nextFrame(), second = tracker.nextFrame();
+    assertArrayEquals(new int[] {0, 1}, tracker.update(poses(0.2f, 0.2f, 0.8f, 0.8f), 2, false, first));
+    assertArrayEquals(new int[] {1, 0}, tracker.update(poses(0.8f, 0.8f, 0.2f, 0.2f), 2, false, second));
+  }
+
+  @Test
+  public void lateFrameDoesNotChangeTracks() {
+    PoseTracker tracker = tracker();
+    long first = tracker.nextFrame(), late = tracker.nextFrame(), last = tracker.nextFrame();
+    tracker.update(poses(0.2f, 0.2f), 1, false, first);
+    tracker.update(poses(0.2f, 0.2f), 1, false, last);
+
+    // The late frame sees the tracked pose and a new one, which gets no track.
+    assertArrayEquals(new int[] {0, -1}, tracker.update(poses(0.2003f, 0.2f, 0.9f, 0.1f), 2, false, late));
+
+    // The next frame finds the track where the last frame left it, and the new pose untracked.
+    float[] next = poses(0.2f, 0.2f, 0.9f, 0.1f);
+    assertArrayEquals(new int[] {0, 1}, tracker.update(next, 2, false, tracker.nextFrame()));
+    assertEquals(0.2f, next[0], 1e-6f);
+    assertEquals(0.2f, next[1], 1e-6f);
+  }
+}
@@ -0,0 +1,121 @@
+package sq.flutter.tflite;
+
+import org.junit.Test;
+import org.tensorflow.lite.DataType;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the tensor conversions with the per-pixel ByteBuffer puts feedInputTensor used before,
+ * at the input sizes of common models. Outputs must match exactly; timings are printed, not
+ * asserted, and only measure the JVM running the tests. The per-pixel {@code Bitmap.getPixel} call
+ * that was also removed needs a device to time.
+ */
+public class TensorImageUtilsTest {
+  private static final int[] SIZES = {224, 300, 416};
+  private static final int WARMUP_RUNS = 50;
+  private static final int RUNS = 200;
+  private static final float MEAN = 127.5f, STD = 127.5f;
+
+  // The conversion of feedInputTensor before it went through TensorImageUtils.
+  private static void perPixelPuts(int[] pixels, int count, int channels, DataType dataType, ByteBuffer tensor) {
+    for (int i = 0; i < count; ++i) {
+      int pixelValue = pixels[i];
+      if (dataType == DataType.FLOAT32) {
+        if (channels > 1) {
+          tensor.putFloat((((pixelValue >> 16) & 0xFF) - MEAN) / STD);
+          tensor.putFloat((((pixelValue >> 8) & 0xFF) - MEAN) / STD);
+          tensor.putFloat(((pixelValue & 0xFF) - MEAN) / STD);
+        } else {
+          tensor.putFloat((((pixelValue >> 16 | pixelValue >> 8 | pixelValue) & 0xFF) - MEAN) / STD);
+        }
+      } else {
+        if (channels > 1) {
+          tensor.put((byte) ((pixelValue >> 16) & 0xFF));
+          tensor.put((byte) ((pixelValue >> 8) & 0xFF));
+          tensor.put((byte) (pixelValue & 0xFF));
+        } else {
+          tensor.put((byte) ((pixelValue >> 16 | pixelValue >> 8 | pixelValue) & 0xFF));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void float32MatchesPerPixelPuts() {
+    compare(3, DataType.FLOAT32);
+    compare(1, DataType.FLOAT32);
+  }
+
+  @Test
+  public void uint8MatchesPerPixelPuts() {
+    compare(3, DataType.UINT8);
+    compare(1, DataType.UINT8);
+  }
+
+  @Test
+  public void timesYuvConversion() {
+    Random random = new Random(5);
+    for (int size : SIZES) {
+      // A 640x480 frame, rotated by 90 degrees and sampled down to the input size.
+      byte[] y = new byte[640 * 480];
+      byte[] u = new byte[320 * 240];
+      byte[] v = new byte[320 * 240];
+      random.nextBytes(y);
+      random.nextBytes(u);
+      random.nextBytes(v);
+      ByteBuffer tensor = ByteBuffer.allocateDirect(size * size * 3 * 4).order(ByteOrder.nativeOrder());
+      long nanos = 0;
+      for (int run = 0; run < WARMUP_RUNS + RUNS; ++run) {
+        tensor.rewind();
+        long start = System.nanoTime();
+        TensorImageUtils.yuvToTensor(y, u, v, 640, 320, 1, 640, 480, 90, size, size, 3, DataType.FLOAT32,
+            MEAN, STD, tensor);
+        if (run >= WARMUP_RUNS) nanos += System.nanoTime() - start;
+      }
+      assertEquals(tensor.capacity(), tensor.position());
+      System.out.printf("yuvToTensor %d FLOAT32 RGB: %.3f ms%n", size, nanos / 1e6 / RUNS);
+    }
+  }
+
+  private void compare(int channels, DataType dataType) {
+    int bytesPerValue = dataType == DataType.FLOAT32 ? 4 : 1;
+    Random random = new Random(channels);
+    for (int size : SIZES) {
+      int count = size * size;
+      int[] pixels = new int[count];
+      for (int i = 0; i < count; ++i)
+        pixels[i] = 0xFF000000 | random.nextInt(0x1000000);
+      int capacity = count * channels * bytesPerValue;
+      ByteBuffer before = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+      ByteBuffer after = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+
+      long beforeNanos = 0, afterNanos = 0;
+      for (int run = 0; run < WARMUP_RUNS + RUNS; ++run) {
+        before.rewind();
+        long start = System.nanoTime();
+        perPixelPuts(pixels, count, channels, dataType, before);
+        long middle = System.nanoTime();
+        after.rewind();
+        TensorImageUtils.pixelsToTensor(pixels, count, channels, dataType, MEAN, STD, after);
+        long end = System.nanoTime();
+        if (run >= WARMUP_RUNS) {
+          beforeNanos += middle - start;
+          afterNanos += end - middle;
+        }
+      }
+
+      assertEquals(capacity, before.position());
+      assertEquals(capacity, after.position());
+      before.rewind();
+      after.rewind();
+      assertEquals(before, after);
+      System.out.printf("pixelsToTensor %d %s %s: per-pixel puts %.3f ms, bulk %.3f ms%n", size, dataType,
+          channels > 1 ? "RGB" : "gray", beforeNanos / 1e6 / RUNS, afterNanos / 1e6 / RUNS);
+    }
+  }
+}
@@ -0,0 +1,65 @@
+package sq.flutter.tflite;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Maps hand-written tile detections of a 200x100 image cut into three 100 pixel tiles at x 0, 50
+ * and 100, which own the columns [0, 75), [75, 125) and [125, 200).
+ */
+public class TiledDetectionTest {
+  private final TileGrid grid = new TileGrid(200, 100, 100, 0.5f);
+  private final Detections merged = new Detections();
+
+  // Adds a detection normalized to the tile, as the tile's decoder would.
+  private void detect(int tile, float x, float y, float w, float h, float score) {
+    Detections detections = new Detections();
+    detections.add(x, y, w, h, score, 0);
+    detections.sortByScore();
+    grid.mapDetections(tile, detections);
+    merged.addAll(detections);
+  }
+
+  private void merge() {
+    merged.sortByScore();
+    new NonMaxSuppression(NonMaxSuppression.Mode.PER_CLASS, 0.5f, 0, 0.1f).apply(merged);
+  }
+
+  private void assertBox(int k, float x, float y, float w, float h) {
+    int i = 4 * merged.order[k];
+    assertEquals(x, merged.boxes[i], 1e-5f);
+    assertEquals(y, merged.boxes[i + 1], 1e-5f);
+    assertEquals(w, merged.boxes[i + 2], 1e-5f);
+    assertEquals(h, merged.boxes[i + 3], 1e-5f);
+  }
+
+  @Test
+  public void keepsObjectAcrossSeamOnce() {
+    assertEquals(3, grid.count());
+    // An object at x 30 to 130, centered at 80 in the second tile's columns. The first two tiles
+    // see it past their edges, the third only its right end.
+    detect(0, 0.3f, 0.2f, 1.0f, 0.6f, 0.9f);
+    detect(1, -0.2f, 0.2f, 1.0f, 0.6f, 0.8f);
+    detect(2, 0, 0.2f, 0.3f, 0.6f, 0.7f);
+    merge();
+
+    assertEquals(1, merged.ordered);
+    assertEquals(0.8f, merged.scores[merged.order[0]], 0);
+    assertBox(0, 0.15f, 0.2f, 0.5f, 0.6f);
+  }
+
+  @Test
+  public void keepsObjectsOwnedByEachTile() {
+    detect(0, 0.1f, 0, 0.3f, 0.5f, 0.9f);
+    detect(1, 0.4f, 0, 0.2f, 0.5f, 0.8f);
+    // Past the image border, clipped to x 180 to 200.
+    detect(2, 0.8f, 0.5f, 0.4f, 0.5f, 0.7f);
+    merge();
+
+    assertEquals(3, merged.ordered);
+    assertBox(0, 0.05f, 0, 0.15f, 0.5f);
+    assertBox(1, 0.45f, 0, 0.1f, 0.5f);
+    assertBox(2, 0.9f, 0.5f, 0.1f, 0.5f);
+  }
+}
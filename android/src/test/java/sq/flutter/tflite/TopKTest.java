@@ -0,0 +1,88 @@
+package sq.flutter.tflite;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/** Compares the heap selection against sorting every value above the threshold. */
+public class TopKTest {
+  private static final int NUM_CASES = 1000;
+
+  @Test
+  public void floatsMatchSort() {
+    Random random = new Random(11);
+    for (int c = 0; c < NUM_CASES; ++c) {
+      int n = random.nextInt(300);
+      float[] values = new float[n + 5];
+      for (int i = 0; i < values.length; ++i)
+        // Few distinct values, so ties are common.
+        values[i] = random.nextInt(4) == 0 ? random.nextInt(8) / 8f : random.nextFloat();
+      int k = random.nextInt(12);
+      float threshold = random.nextFloat() * 0.5f;
+
+      final float[] v = values;
+      int[] expected = reference(n, k, new Comparator<Integer>() {
+        @Override
+        public int compare(Integer a, Integer b) {
+          return Float.compare(v[b], v[a]);
+        }
+      }, threshold, values);
+
+      int[] indices = new int[Math.max(k, 1)];
+      int size = TopK.select(values, n, k, threshold, indices);
+      assertArrayEquals("case " + c, expected, Arrays.copyOf(indices, size));
+    }
+  }
+
+  @Test
+  public void bytesMatchSort() {
+    Random random = new Random(12);
+    for (int c = 0; c < NUM_CASES; ++c) {
+      int n = random.nextInt(300);
+      byte[] values = new byte[n + 5];
+      random.nextBytes(values);
+      final boolean signed = random.nextBoolean();
+      int k = random.nextInt(12);
+      int threshold = signed ? random.nextInt(256) - 128 : random.nextInt(256);
+
+      final byte[] b = values;
+      float[] asFloats = new float[values.length];
+      for (int i = 0; i < values.length; ++i)
+        asFloats[i] = signed ? values[i] : values[i] & 0xff;
+      int[] expected = reference(n, k, new Comparator<Integer>() {
+        @Override
+        public int compare(Integer x, Integer y) {
+          int vx = signed ? b[x] : b[x] & 0xff;
+          int vy = signed ? b[y] : b[y] & 0xff;
+          return vy - vx;
+        }
+      }, threshold, asFloats);
+
+      int[] indices = new int[Math.max(k, 1)];
+      int size = TopK.select(values, n, signed, k, threshold, indices);
+      assertArrayEquals("case " + c, expected, Arrays.copyOf(indices, size));
+    }
+  }
+
+  // Indices of the first n values above the threshold, by descending value then ascending index.
+  private static int[] reference(int n, int k, Comparator<Integer> byValue, float threshold, float[] values) {
+    List<Integer> indices = new ArrayList<>();
+    for (int i = 0; i < n; ++i) {
+      if (values[i] > threshold) indices.add(i);
+    }
+    // Collections.sort is stable, so equal values keep ascending indices.
+    Collections.sort(indices, byValue);
+    int size = Math.min(k, indices.size());
+    int[] result = new int[size];
+    for (int i = 0; i < size; ++i)
+      result[i] = indices.get(i);
+    return result;
+  }
+}
@@ -73,7 +73,14 @@ void close();
 - (void)handleMethodCall:(FlutterMethodCall*)call result:(FlutterResult)result {
   if ([@"loadModel" isEqualToString:call.method]) {
     NSString* load_result = loadModel(_registrar, call.arguments);
-    result(load_result);
+    if ([load_result isEqualToString:@"success"]) {
+      // Only one model can be resident on iOS, so its handle is always 0.
+      result(@0);
+    } else {
+      result([FlutterError errorWithCode:@"Failed to load model"
+                                 message:load_result
+                                 details:nil]);
+    }
   } else if ([@"runModelOnImage" isEqualToString:call.method]) {
     runModelOnImage(call.arguments, result);
   } else if ([@"runModelOnBinary" isEqualToString:call.method]) {
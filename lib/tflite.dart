@@ -5,11 +5,21 @@ import 'package:flutter/services.dart';
 
 class Tflite {
   static const MethodChannel _channel = const MethodChannel('tflite');
+  static const EventChannel _resultChannel = const EventChannel('tflite/results');
+  static Stream<Map>? _frameResults;
 
-  static Future<String?> loadModel(
+  // Binary inputs hold the input tensor in the device's byte order. Uint8List and Float32List are
+  // sent as is, other typed data as a view of its bytes, so no payload is copied on this side.
+  static TypedData _binary(TypedData binary) =>
+      binary is Uint8List || binary is Float32List
+          ? binary
+          : binary.buffer.asUint8List(binary.offsetInBytes, binary.lengthInBytes);
+
+  static Future<int?> loadModel(
       {required String model,
       String labels = "",
       int numThreads = 1,
+      int numInterpreters = 1, // Android only, 0 fills the available cores
       bool isAsset = true,
       bool useGpuDelegate = false}) async {
     return await _channel.invokeMethod(
@@ -18,6 +28,7 @@ class Tflite {
         "model": model,
         "labels": labels,
         "numThreads": numThreads,
+        "numInterpreters": numInterpreters,
         "isAsset": isAsset,
         'useGpuDelegate': useGpuDelegate
       },
@@ -30,6 +41,9 @@ class Tflite {
       double imageStd = 1.0,
       int numResults = 5,
       double threshold = 0.1,
+      Map<String, double>? roi, // Android only
+      bool maintainAspectRatio = false, // Android only
+      int? handle,
       bool asynch = true}) async {
     return await _channel.invokeMethod(
       'runModelOnImage',
@@ -39,23 +53,28 @@ class Tflite {
         "imageStd": imageStd,
         "numResults": numResults,
         "threshold": threshold,
+        if (roi != null) "roi": roi,
+        if (maintainAspectRatio) "maintainAspectRatio": true,
         "asynch": asynch,
+        if (handle != null) "handle": handle,
       },
     );
   }
 
   static Future<List?> runModelOnBinary(
-      {required Uint8List binary,
+      {required TypedData binary,
       int numResults = 5,
       double threshold = 0.1,
+      int? handle,
       bool asynch = true}) async {
     return await _channel.invokeMethod(
       'runModelOnBinary',
       {
-        "binary": binary,
+        "binary": _binary(binary),
         "numResults": numResults,
         "threshold": threshold,
         "asynch": asynch,
+        if (handle != null) "handle": handle,
       },
     );
   }
@@ -67,8 +86,13 @@ class Tflite {
       double imageMean = 127.5,
       double imageStd = 127.5,
       int rotation = 90, // Android only
+      List<int>? bytesPerRow, // Android only
+      List<int?>? bytesPerPixel, // Android only
       int numResults = 5,
       double threshold = 0.1,
+      Map<String, double>? roi, // Android only
+      bool maintainAspectRatio = false, // Android only
+      int? handle,
       bool asynch = true}) async {
     return await _channel.invokeMethod(
       'runModelOnFrame',
@@ -79,9 +103,45 @@ class Tflite {
         "imageMean": imageMean,
         "imageStd": imageStd,
         "rotation": rotation,
+        if (bytesPerRow != null) "bytesPerRow": bytesPerRow,
+        if (bytesPerPixel != null) "bytesPerPixel": bytesPerPixel,
+        "numResults": numResults,
+        "threshold": threshold,
+        if (roi != null) "roi": roi,
+        if (maintainAspectRatio) "maintainAspectRatio": true,
+        "asynch": asynch,
+        if (handle != null) "handle": handle,
+      },
+    );
+  }
+
+  // Android only. Runs a list of images in batches that use the model's batch dimension.
+  // Returns {"results": [...], "errors": [...], "stats": {...}} with one result list per image.
+  // Images that cannot be read have a null result and an {"index", "message"} entry in errors.
+  static Future<Map?> runModelOnImages(
+      {List<String>? paths,
+      List<TypedData>? binaries,
+      double imageMean = 117.0,
+      double imageStd = 1.0,
+      int numResults = 5,
+      double threshold = 0.1,
+      int batchSize = 0, // 0 picks the batch size from memoryBudget
+      int memoryBudget = 32 << 20,
+      int? handle,
+      bool asynch = true}) async {
+    return await _channel.invokeMethod(
+      'runModelOnImages',
+      {
+        if (paths != null) "paths": paths,
+        if (binaries != null) "binaries": binaries.map(_binary).toList(),
+        "imageMean": imageMean,
+        "imageStd": imageStd,
         "numResults": numResults,
         "threshold": threshold,
+        "batchSize": batchSize,
+        "memoryBudget": memoryBudget,
         "asynch": asynch,
+        if (handle != null) "handle": handle,
       },
     );
   }
@@ -99,6 +159,29 @@ class Tflite {
     9.16828
   ];
 
+  /// Anchors in input pixels for the three heads of a "YOLOv3" or "YOLOv5"
+  /// model, from the finest to the coarsest grid.
+  static const multiScaleAnchors = [
+    10.0,
+    13.0,
+    16.0,
+    30.0,
+    33.0,
+    23.0,
+    30.0,
+    61.0,
+    62.0,
+    45.0,
+    59.0,
+    119.0,
+    116.0,
+    90.0,
+    156.0,
+    198.0,
+    373.0,
+    326.0
+  ];
+
   static Future<List?> detectObjectOnImage({
     required String path,
     String model = "SSDMobileNet",
@@ -110,6 +193,12 @@ class Tflite {
     List anchors = anchors,
     int blockSize = 32,
     int numBoxesPerBlock = 5,
+    String? nmsMode, // "none", "perClass" or "agnostic", Android only
+    double? iouThreshold,
+    double? softNmsSigma,
+    Map<String, double>? roi, // Android only
+    bool maintainAspectRatio = false, // Android only
+    int? handle,
     bool asynch = true,
   }) async {
     return await _channel.invokeMethod(
@@ -124,13 +213,19 @@ class Tflite {
         "anchors": anchors,
         "blockSize": blockSize,
         "numBoxesPerBlock": numBoxesPerBlock,
+        if (nmsMode != null) "nmsMode": nmsMode,
+        if (iouThreshold != null) "iouThreshold": iouThreshold,
+        if (softNmsSigma != null) "softNmsSigma": softNmsSigma,
+        if (roi != null) "roi": roi,
+        if (maintainAspectRatio) "maintainAspectRatio": true,
         "asynch": asynch,
+        if (handle != null) "handle": handle,
       },
     );
   }
 
   static Future<List?> detectObjectOnBinary({
-    required Uint8List binary,
+    required TypedData binary,
     String model = "SSDMobileNet",
     double threshold = 0.1,
     int numResultsPerClass = 5,
@@ -138,19 +233,116 @@ class Tflite {
     List anchors = anchors,
     int blockSize = 32,
     int numBoxesPerBlock = 5,
+    String? nmsMode, // "none", "perClass" or "agnostic", Android only
+    double? iouThreshold,
+    double? softNmsSigma,
+    int? handle,
     bool asynch = true,
   }) async {
     return await _channel.invokeMethod(
       'detectObjectOnBinary',
       {
-        "binary": binary,
+        "binary": _binary(binary),
+        "model": model,
+        "threshold": threshold,
+        "numResultsPerClass": numResultsPerClass,
+        "anchors": anchors,
+        "blockSize": blockSize,
+        "numBoxesPerBlock": numBoxesPerBlock,
+        if (nmsMode != null) "nmsMode": nmsMode,
+        if (iouThreshold != null) "iouThreshold": iouThreshold,
+        if (softNmsSigma != null) "softNmsSigma": softNmsSigma,
+        "asynch": asynch,
+        if (handle != null) "handle": handle,
+      },
+    );
+  }
+
+  // Android only. SSDMobileNet models run one image per batch.
+  static Future<Map?> detectObjectOnImages({
+    List<String>? paths,
+    List<TypedData>? binaries,
+    String model = "SSDMobileNet",
+    double imageMean = 127.5,
+    double imageStd = 127.5,
+    double threshold = 0.1,
+    int numResultsPerClass = 5,
+    // Used in YOLO only
+    List anchors = anchors,
+    int blockSize = 32,
+    int numBoxesPerBlock = 5,
+    String? nmsMode, // "none", "perClass" or "agnostic", Android only
+    double? iouThreshold,
+    double? softNmsSigma,
+    int batchSize = 0, // 0 picks the batch size from memoryBudget
+    int memoryBudget = 32 << 20,
+    int? handle,
+    bool asynch = true,
+  }) async {
+    return await _channel.invokeMethod(
+      'detectObjectOnImages',
+      {
+        if (paths != null) "paths": paths,
+        if (binaries != null) "binaries": binaries.map(_binary).toList(),
+        "model": model,
+        "imageMean": imageMean,
+        "imageStd": imageStd,
+        "threshold": threshold,
+        "numResultsPerClass": numResultsPerClass,
+        "anchors": anchors,
+        "blockSize": blockSize,
+        "numBoxesPerBlock": numBoxesPerBlock,
+        if (nmsMode != null) "nmsMode": nmsMode,
+        if (iouThreshold != null) "iouThreshold": iouThreshold,
+        if (softNmsSigma != null) "softNmsSigma": softNmsSigma,
+        "batchSize": batchSize,
+        "memoryBudget": memoryBudget,
+        "asynch": asynch,
+        if (handle != null) "handle": handle,
+      },
+    );
+  }
+
+  // Android only. Detects objects on overlapping tiles of a large image at the model's resolution
+  // and merges the detections across tiles with NMS.
+  static Future<List?> detectObjectOnImageTiled({
+    required String path,
+    String model = "SSDMobileNet",
+    double imageMean = 127.5,
+    double imageStd = 127.5,
+    double threshold = 0.1,
+    int numResultsPerClass = 5,
+    // Used in YOLO only
+    List anchors = anchors,
+    int blockSize = 32,
+    int numBoxesPerBlock = 5,
+    String? nmsMode, // "none", "perClass" or "agnostic", defaults to "perClass"
+    double? iouThreshold,
+    double? softNmsSigma,
+    int? tileSize, // in image pixels, defaults to the model input size
+    double tileOverlap = 0.2,
+    int? handle,
+    bool asynch = true,
+  }) async {
+    return await _channel.invokeMethod(
+      'detectObjectOnImageTiled',
+      {
+        "path": path,
         "model": model,
+        "imageMean": imageMean,
+        "imageStd": imageStd,
         "threshold": threshold,
         "numResultsPerClass": numResultsPerClass,
         "anchors": anchors,
         "blockSize": blockSize,
         "numBoxesPerBlock": numBoxesPerBlock,
+        if (nmsMode != null) "nmsMode": nmsMode,
+        if (iouThreshold != null) "iouThreshold": iouThreshold,
+        if (softNmsSigma != null) "softNmsSigma": softNmsSigma,
+        if (tileSize != null) "tileSize": tileSize,
+        "tileOverlap": tileOverlap,
         "asynch": asynch,
+        if (handle != null) "handle": handle,
       },
     );
   }
@@ -165,10 +357,18 @@ class Tflite {
     double threshold = 0.1,
     int numResultsPerClass = 5,
     int rotation: 90, // Android only
+    List<int>? bytesPerRow, // Android only
+    List<int?>? bytesPerPixel, // Android only
     // Used in YOLO only
     List anchors = anchors,
     int blockSize = 32,
     int numBoxesPerBlock = 5,
+    String? nmsMode, // "none", "perClass" or "agnostic", Android only
+    double? iouThreshold,
+    double? softNmsSigma,
+    Map<String, double>? roi, // Android only
+    bool maintainAspectRatio = false, // Android only
+    int? handle,
     bool asynch = true,
   }) async {
     return await _channel.invokeMethod(
@@ -181,18 +381,160 @@ class Tflite {
         "imageMean": imageMean,
         "imageStd": imageStd,
         "rotation": rotation,
+        if (bytesPerRow != null) "bytesPerRow": bytesPerRow,
+        if (bytesPerPixel != null) "bytesPerPixel": bytesPerPixel,
         "threshold": threshold,
         "numResultsPerClass": numResultsPerClass,
         "anchors": anchors,
         "blockSize": blockSize,
         "numBoxesPerBlock": numBoxesPerBlock,
+        if (nmsMode != null) "nmsMode": nmsMode,
+        if (iouThreshold != null) "iouThreshold": iouThreshold,
+        if (softNmsSigma != null) "softNmsSigma": softNmsSigma,
+        if (roi != null) "roi": roi,
+        if (maintainAspectRatio) "maintainAspectRatio": true,
         "asynch": asynch,
+        if (handle != null) "handle": handle,
+      },
+    );
+  }
+
+  // Android only. overflowPolicy is "dropNewest", "dropOldest" or "block". The platform thread is
+  // never blocked: under "block" a request that finds the queue full fails with "Queue full".
+  static Future setExecutorOptions(
+      {int numWorkers = 0,
+      int queueSize = 128,
+      String overflowPolicy = "dropNewest",
+      bool pipelined = false}) async {
+    return await _channel.invokeMethod(
+      'setExecutorOptions',
+      {
+        "numWorkers": numWorkers,
+        "queueSize": queueSize,
+        "overflowPolicy": overflowPolicy,
+        "pipelined": pipelined,
+      },
+    );
+  }
+
+  static Future<Map?> getStats() async {
+    return await _channel.invokeMethod('getStats');
+  }
+
+  // Android only. Results of the frames pushed into frame streams, as maps with the "stream" id,
+  // the "sequence" number returned by pushFrame and the "result" of the frame, or "error" and
+  // "message" when it failed. The result is null for frames dropped by the executor.
+  static Stream<Map> get frameResults => _frameResults ??=
+      _resultChannel.receiveBroadcastStream().map((event) => event as Map);
+
+  // Android only. Opens a stream running method, one of the *OnFrame methods, on every frame pushed
+  // into it. options takes the arguments of method other than the frame itself, and the method's
+  // defaults apply to the ones left out. Returns the stream id.
+  static Future<int?> openFrameStream(
+      {required String method,
+      Map<String, dynamic> options = const {},
+      int? handle}) async {
+    return await _channel.invokeMethod(
+      'openFrameStream',
+      {
+        "method": method,
+        "options": {..._frameStreamDefaults(method), ...options},
+        if (handle != null) "handle": handle,
+      },
+    );
+  }
+
+  // Android only. Queues a frame of a stream and returns its sequence number without waiting for
+  // the result, which arrives on frameResults.
+  static Future<int?> pushFrame(
+      {required int stream,
+      required List<Uint8List> bytesList,
+      int imageHeight = 1280,
+      int imageWidth = 720,
+      List<int>? bytesPerRow,
+      List<int?>? bytesPerPixel}) async {
+    return await _channel.invokeMethod(
+      'pushFrame',
+      {
+        "stream": stream,
+        "bytesList": bytesList,
+        "imageHeight": imageHeight,
+        "imageWidth": imageWidth,
+        if (bytesPerRow != null) "bytesPerRow": bytesPerRow,
+        if (bytesPerPixel != null) "bytesPerPixel": bytesPerPixel,
+      },
+    );
+  }
+
+  // Android only. Frames pushed before closing still deliver their results.
+  static Future closeFrameStream(int stream) async {
+    return await _channel.invokeMethod(
+      'closeFrameStream',
+      {
+        "stream": stream,
       },
     );
   }
 
-  static Future close() async {
-    return await _channel.invokeMethod('close');
+  // Same defaults as the *OnFrame methods.
+  static Map<String, dynamic> _frameStreamDefaults(String method) {
+    switch (method) {
+      case 'runModelOnFrame':
+        return {
+          "imageMean": 127.5,
+          "imageStd": 127.5,
+          "rotation": 90,
+          "numResults": 5,
+          "threshold": 0.1,
+        };
+      case 'detectObjectOnFrame':
+        return {
+          "model": "SSDMobileNet",
+          "imageMean": 127.5,
+          "imageStd": 127.5,
+          "rotation": 90,
+          "threshold": 0.1,
+          "numResultsPerClass": 5,
+          "anchors": anchors,
+          "blockSize": 32,
+          "numBoxesPerBlock": 5,
+        };
+      case 'runPix2PixOnFrame':
+        return {
+          "imageMean": 0.0,
+          "imageStd": 255.0,
+          "rotation": 90,
+          "outputType": "png",
+        };
+      case 'runSegmentationOnFrame':
+        return {
+          "imageMean": 0.0,
+          "imageStd": 255.0,
+          "rotation": 90,
+          "labelColors": pascalVOCLabelColors,
+          "outputType": "png",
+        };
+      case 'runPoseNetOnFrame':
+        return {
+          "imageMean": 127.5,
+          "imageStd": 127.5,
+          "rotation": 90,
+          "numResults": 5,
+          "threshold": 0.5,
+          "nmsRadius": 20,
+        };
+      default:
+        return {};
+    }
+  }
+
+  static Future close({int? handle}) async {
+    return await _channel.invokeMethod(
+      'close',
+      {
+        if (handle != null) "handle": handle,
+      },
+    );
   }
 
   static Future<Uint8List?> runPix2PixOnImage(
@@ -200,6 +542,10 @@ class Tflite {
       double imageMean = 0,
       double imageStd = 255.0,
       String outputType = "png",
+      int? quality, // Android only, webpLossy and jpeg
+      Map<String, double>? roi, // Android only
+      bool maintainAspectRatio = false, // Android only
+      int? handle,
       bool asynch = true}) async {
     return await _channel.invokeMethod(
       'runPix2PixOnImage',
@@ -207,22 +553,34 @@ class Tflite {
         "path": path,
         "imageMean": imageMean,
         "imageStd": imageStd,
+        if (roi != null) "roi": roi,
+        if (maintainAspectRatio) "maintainAspectRatio": true,
         "asynch": asynch,
         "outputType": outputType,
+        if (quality != null) "quality": quality,
+        if (handle != null) "handle": handle,
       },
     );
   }
 
   static Future<Uint8List?> runPix2PixOnBinary(
-      {required Uint8List binary,
+      {required TypedData binary,
+      double imageMean = 0, // Android only, denormalizes the output
+      double imageStd = 255.0, // Android only, denormalizes the output
       String outputType = "png",
+      int? quality, // Android only, webpLossy and jpeg
+      int? handle,
       bool asynch = true}) async {
     return await _channel.invokeMethod(
       'runPix2PixOnBinary',
       {
-        "binary": binary,
+        "binary": _binary(binary),
+        "imageMean": imageMean,
+        "imageStd": imageStd,
         "asynch": asynch,
         "outputType": outputType,
+        if (quality != null) "quality": quality,
+        if (handle != null) "handle": handle,
       },
     );
   }
@@ -234,7 +592,13 @@ class Tflite {
     double imageMean = 0,
     double imageStd = 255.0,
     int rotation: 90, // Android only
+    List<int>? bytesPerRow, // Android only
+    List<int?>? bytesPerPixel, // Android only
     String outputType = "png",
+    int? quality, // Android only, webpLossy and jpeg
+    Map<String, double>? roi, // Android only
+    bool maintainAspectRatio = false, // Android only
+    int? handle,
     bool asynch = true,
   }) async {
     return await _channel.invokeMethod(
@@ -246,8 +610,14 @@ class Tflite {
         "imageMean": imageMean,
         "imageStd": imageStd,
         "rotation": rotation,
+        if (bytesPerRow != null) "bytesPerRow": bytesPerRow,
+        if (bytesPerPixel != null) "bytesPerPixel": bytesPerPixel,
+        if (roi != null) "roi": roi,
+        if (maintainAspectRatio) "maintainAspectRatio": true,
         "asynch": asynch,
         "outputType": outputType,
+        if (quality != null) "quality": quality,
+        if (handle != null) "handle": handle,
       },
     );
   }
@@ -277,12 +647,16 @@ class Tflite {
     Color.fromARGB(255, 0, 64, 128).value, // tv-monitor
   ];
 
-  static Future<Uint8List?> runSegmentationOnImage(
+  static Future<dynamic> runSegmentationOnImage(
       {required String path,
       double imageMean = 0,
       double imageStd = 255.0,
       List<int>? labelColors,
       String outputType = "png",
+      int? quality, // Android only, webpLossy and jpeg
+      Map<String, double>? roi, // Android only
+      bool maintainAspectRatio = false, // Android only
+      int? handle,
       bool asynch = true}) async {
     return await _channel.invokeMethod(
       'runSegmentationOnImage',
@@ -292,36 +666,76 @@ class Tflite {
         "imageStd": imageStd,
         "labelColors": labelColors ?? pascalVOCLabelColors,
         "outputType": outputType,
+        if (quality != null) "quality": quality,
+        if (roi != null) "roi": roi,
+        if (maintainAspectRatio) "maintainAspectRatio": true,
+        "asynch": asynch,
+        if (handle != null) "handle": handle,
+      },
+    );
+  }
+
+  // Android only. Segments overlapping tiles of a large image at the model's resolution and
+  // stitches them into one {"width", "height", "classes", "mask" or "rle"} result.
+  static Future<Map?> runSegmentationOnImageTiled(
+      {required String path,
+      double imageMean = 0,
+      double imageStd = 255.0,
+      String outputType = "mask", // "mask", "rle" or "stats"
+      int? tileSize, // in image pixels, defaults to the model input size
+      double tileOverlap = 0.2,
+      int? handle,
+      bool asynch = true}) async {
+    return await _channel.invokeMethod(
+      'runSegmentationOnImageTiled',
+      {
+        "path": path,
+        "imageMean": imageMean,
+        "imageStd": imageStd,
+        "outputType": outputType,
+        if (tileSize != null) "tileSize": tileSize,
+        "tileOverlap": tileOverlap,
         "asynch": asynch,
+        if (handle != null) "handle": handle,
       },
     );
   }
 
-  static Future<Uint8List?> runSegmentationOnBinary(
-      {required Uint8List binary,
+  static Future<dynamic> runSegmentationOnBinary(
+      {required TypedData binary,
       List<int>? labelColors,
       String outputType = "png",
+      int? quality, // Android only, webpLossy and jpeg
+      int? handle,
       bool asynch = true}) async {
     return await _channel.invokeMethod(
       'runSegmentationOnBinary',
       {
-        "binary": binary,
+        "binary": _binary(binary),
         "labelColors": labelColors ?? pascalVOCLabelColors,
         "outputType": outputType,
+        if (quality != null) "quality": quality,
         "asynch": asynch,
+        if (handle != null) "handle": handle,
       },
     );
   }
 
-  static Future<Uint8List?> runSegmentationOnFrame(
+  static Future<dynamic> runSegmentationOnFrame(
       {required List<Uint8List> bytesList,
       int imageHeight = 1280,
       int imageWidth = 720,
       double imageMean = 0,
       double imageStd = 255.0,
       int rotation: 90, // Android only
+      List<int>? bytesPerRow, // Android only
+      List<int?>? bytesPerPixel, // Android only
       List<int>? labelColors,
       String outputType = "png",
+      int? quality, // Android only, webpLossy and jpeg
+      Map<String, double>? roi, // Android only
+      bool maintainAspectRatio = false, // Android only
+      int? handle,
       bool asynch = true}) async {
     return await _channel.invokeMethod(
       'runSegmentationOnFrame',
@@ -332,9 +746,15 @@ class Tflite {
         "imageMean": imageMean,
         "imageStd": imageStd,
         "rotation": rotation,
+        if (bytesPerRow != null) "bytesPerRow": bytesPerRow,
+        if (bytesPerPixel != null) "bytesPerPixel": bytesPerPixel,
         "labelColors": labelColors ?? pascalVOCLabelColors,
         "outputType": outputType,
+        if (quality != null) "quality": quality,
+        if (roi != null) "roi": roi,
+        if (maintainAspectRatio) "maintainAspectRatio": true,
         "asynch": asynch,
+        if (handle != null) "handle": handle,
       },
     );
   }
@@ -346,6 +766,9 @@ class Tflite {
       int numResults = 5,
       double threshold = 0.5,
       int nmsRadius = 20,
+      Map<String, double>? roi, // Android only
+      bool maintainAspectRatio = false, // Android only
+      int? handle,
       bool asynch = true}) async {
     return await _channel.invokeMethod(
       'runPoseNetOnImage',
@@ -356,25 +779,30 @@ class Tflite {
         "numResults": numResults,
         "threshold": threshold,
         "nmsRadius": nmsRadius,
+        if (roi != null) "roi": roi,
+        if (maintainAspectRatio) "maintainAspectRatio": true,
         "asynch": asynch,
+        if (handle != null) "handle": handle,
       },
     );
   }
 
   static Future<List?> runPoseNetOnBinary(
-      {required Uint8List binary,
+      {required TypedData binary,
       int numResults = 5,
       double threshold = 0.5,
       int nmsRadius = 20,
+      int? handle,
       bool asynch = true}) async {
     return await _channel.invokeMethod(
       'runPoseNetOnBinary',
       {
-        "binary": binary,
+        "binary": _binary(binary),
         "numResults": numResults,
         "threshold": threshold,
         "nmsRadius": nmsRadius,
         "asynch": asynch,
+        if (handle != null) "handle": handle,
       },
     );
   }
@@ -386,9 +814,19 @@ class Tflite {
       double imageMean = 127.5,
       double imageStd = 127.5,
       int rotation: 90, // Android only
+      List<int>? bytesPerRow, // Android only
+      List<int?>? bytesPerPixel, // Android only
       int numResults = 5,
       double threshold = 0.5,
       int nmsRadius = 20,
+      bool track = false, // Android only
+      String? trackerId, // Android only
+      int redetectInterval = 10, // Android only
+      double smoothing = 0.5, // Android only
+      double cropPadding = 0.25, // Android only
+      Map<String, double>? roi, // Android only
+      bool maintainAspectRatio = false, // Android only
+      int? handle,
       bool asynch = true}) async {
     return await _channel.invokeMethod(
       'runPoseNetOnFrame',
@@ -399,10 +837,22 @@ class Tflite {
         "imageMean": imageMean,
         "imageStd": imageStd,
         "rotation": rotation,
+        if (bytesPerRow != null) "bytesPerRow": bytesPerRow,
+        if (bytesPerPixel != null) "bytesPerPixel": bytesPerPixel,
         "numResults": numResults,
         "threshold": threshold,
         "nmsRadius": nmsRadius,
+        if (track) ...{
+          "track": true,
+          if (trackerId != null) "trackerId": trackerId,
+          "redetectInterval": redetectInterval,
+          "smoothing": smoothing,
+          "cropPadding": cropPadding,
+        },
+        if (roi != null) "roi": roi,
+        if (maintainAspectRatio) "maintainAspectRatio": true,
         "asynch": asynch,
+        if (handle != null) "handle": handle,
       },
     );
   }
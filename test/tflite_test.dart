@@ -24,6 +24,7 @@ void main() {
       model: 'assets/mobilenet_v1_1.0_224.tflite',
       labels: 'assets/mobilenet_v1_1.0_224.txt',
       numThreads: 2,
+      numInterpreters: 4,
       isAsset: false,
       useGpuDelegate: true,
     );
@@ -36,6 +37,7 @@ void main() {
             'model': 'assets/mobilenet_v1_1.0_224.tflite',
             'labels': 'assets/mobilenet_v1_1.0_224.txt',
             'numThreads': 2,
+            'numInterpreters': 4,
             'isAsset': false,
             'useGpuDelegate': true,
           },
@@ -71,6 +73,151 @@ void main() {
     );
   });
 
+  test('runModelOnImage with handle', () async {
+    await Tflite.runModelOnImage(
+      path: '/image/path',
+      imageMean: 127.5,
+      imageStd: 0.5,
+      numResults: 6,
+      threshold: 0.1,
+      handle: 2,
+      asynch: false,
+    );
+    expect(
+      log,
+      <Matcher>[
+        isMethodCall(
+          'runModelOnImage',
+          arguments: <String, dynamic>{
+            'path': '/image/path',
+            'imageMean': 127.5,
+            'imageStd': 0.5,
+            'numResults': 6,
+            'threshold': 0.1,
+            'asynch': false,
+            'handle': 2,
+          },
+        ),
+      ],
+    );
+  });
+
+  test('close', () async {
+    await Tflite.close(handle: 2);
+    expect(
+      log,
+      <Matcher>[
+        isMethodCall(
+          'close',
+          arguments: <String, dynamic>{
+            'handle': 2,
+          },
+        ),
+      ],
+    );
+  });
+
+  test('setExecutorOptions', () async {
+    await Tflite.setExecutorOptions(
+      numWorkers: 3,
+      queueSize: 1,
+      overflowPolicy: 'dropOldest',
+      pipelined: true,
+    );
+    expect(
+      log,
+      <Matcher>[
+        isMethodCall(
+          'setExecutorOptions',
+          arguments: <String, dynamic>{
+            'numWorkers': 3,
+            'queueSize': 1,
+            'overflowPolicy': 'dropOldest',
+            'pipelined': true,
+          },
+        ),
+      ],
+    );
+  });
+
+  test('getStats', () async {
+    await Tflite.getStats();
+    expect(
+      log,
+      <Matcher>[
+        isMethodCall(
+          'getStats',
+          arguments: null,
+        ),
+      ],
+    );
+  });
+
+  test('openFrameStream', () async {
+    await Tflite.openFrameStream(
+      method: 'detectObjectOnFrame',
+      options: {'model': 'YOLO', 'threshold': 0.3},
+      handle: 1,
+    );
+    expect(
+      log,
+      <Matcher>[
+        isMethodCall(
+          'openFrameStream',
+          arguments: <String, dynamic>{
+            'method': 'detectObjectOnFrame',
+            'options': {
+              'model': 'YOLO',
+              'imageMean': 127.5,
+              'imageStd': 127.5,
+              'rotation': 90,
+              'threshold': 0.3,
+              'numResultsPerClass': 5,
+              'anchors': Tflite.anchors,
+              'blockSize': 32,
+              'numBoxesPerBlock': 5,
+            },
+            'handle': 1,
+          },
+        ),
+      ],
+    );
+  });
+
+  test('pushFrame', () async {
+    await Tflite.pushFrame(
+      stream: 0,
+      bytesList: [
+        Uint8List.fromList([0, 1, 2]),
+      ],
+      imageHeight: 100,
+      imageWidth: 200,
+    );
+    await Tflite.closeFrameStream(0);
+    expect(
+      log,
+      <Matcher>[
+        isMethodCall(
+          'pushFrame',
+          arguments: <String, dynamic>{
+            'stream': 0,
+            'bytesList': [
+              Uint8List.fromList([0, 1, 2]),
+            ],
+            'imageHeight': 100,
+            'imageWidth': 200,
+          },
+        ),
+        isMethodCall(
+          'closeFrameStream',
+          arguments: <String, dynamic>{
+            'stream': 0,
+          },
+        ),
+      ],
+    );
+  });
+
   test('runModelOnBinary', () async {
     await Tflite.runModelOnBinary(
       binary: Uint8List.fromList([
@@ -102,6 +249,38 @@ void main() {
     );
   });
 
+  test('runModelOnBinary with typed data', () async {
+    await Tflite.runModelOnBinary(
+      binary: Float32List.fromList([0.5, -1.0]),
+    );
+    await Tflite.runModelOnBinary(
+      binary: Int8List.fromList([-1, 2]),
+    );
+    expect(
+      log,
+      <Matcher>[
+        isMethodCall(
+          'runModelOnBinary',
+          arguments: <String, dynamic>{
+            'binary': Float32List.fromList([0.5, -1.0]),
+            'numResults': 5,
+            'threshold': 0.1,
+            'asynch': true,
+          },
+        ),
+        isMethodCall(
+          'runModelOnBinary',
+          arguments: <String, dynamic>{
+            'binary': Uint8List.fromList([255, 2]),
+            'numResults': 5,
+            'threshold': 0.1,
+            'asynch': true,
+          },
+        ),
+      ],
+    );
+  });
+
   test('runModelOnFrame', () async {
     await Tflite.runModelOnFrame(
       bytesList: [
@@ -157,6 +336,36 @@ void main() {
     );
   });
 
+  test('runModelOnImages', () async {
+    await Tflite.runModelOnImages(
+      paths: ['/image/1', '/image/2'],
+      imageMean: 127.5,
+      imageStd: 0.5,
+      numResults: 6,
+      threshold: 0.1,
+      batchSize: 2,
+      asynch: false,
+    );
+    expect(
+      log,
+      <Matcher>[
+        isMethodCall(
+          'runModelOnImages',
+          arguments: <String, dynamic>{
+            'paths': ['/image/1', '/image/2'],
+            'imageMean': 127.5,
+            'imageStd': 0.5,
+            'numResults': 6,
+            'threshold': 0.1,
+            'batchSize': 2,
+            'memoryBudget': 32 << 20,
+            'asynch': false,
+          },
+        ),
+      ],
+    );
+  });
+
   test('detectObjectOnImage', () async {
     await Tflite.detectObjectOnImage(
       path: '/image/path',
@@ -202,6 +411,98 @@ void main() {
     );
   });
 
+  test('detectObjectOnImage with NMS', () async {
+    await Tflite.detectObjectOnImage(
+      path: '/image/path',
+      nmsMode: 'agnostic',
+      iouThreshold: 0.45,
+    );
+    expect(
+      log,
+      <Matcher>[
+        isMethodCall(
+          'detectObjectOnImage',
+          arguments: <String, dynamic>{
+            'path': '/image/path',
+            'model': 'SSDMobileNet',
+            'imageMean': 127.5,
+            'imageStd': 127.5,
+            'threshold': 0.1,
+            'numResultsPerClass': 5,
+            'anchors': Tflite.anchors,
+            'blockSize': 32,
+            'numBoxesPerBlock': 5,
+            'nmsMode': 'agnostic',
+            'iouThreshold': 0.45,
+            'asynch': true,
+          },
+        ),
+      ],
+    );
+  });
+
+  test('detectObjectOnImage with roi', () async {
+    await Tflite.detectObjectOnImage(
+      path: '/image/path',
+      roi: {'x': 0.25, 'y': 0.0, 'w': 0.5, 'h': 1.0},
+      maintainAspectRatio: true,
+    );
+    expect(
+      log,
+      <Matcher>[
+        isMethodCall(
+          'detectObjectOnImage',
+          arguments: <String, dynamic>{
+            'path': '/image/path',
+            'model': 'SSDMobileNet',
+            'imageMean': 127.5,
+            'imageStd': 127.5,
+            'threshold': 0.1,
+            'numResultsPerClass': 5,
+            'anchors': Tflite.anchors,
+            'blockSize': 32,
+            'numBoxesPerBlock': 5,
+            'roi': {'x': 0.25, 'y': 0.0, 'w': 0.5, 'h': 1.0},
+            'maintainAspectRatio': true,
+            'asynch': true,
+          },
+        ),
+      ],
+    );
+  });
+
+  test('detectObjectOnImageTiled', () async {
+    await Tflite.detectObjectOnImageTiled(
+      path: '/image/path',
+      model: 'YOLOv5',
+      anchors: Tflite.multiScaleAnchors,
+      tileSize: 640,
+      tileOverlap: 0.25,
+    );
+    expect(
+      log,
+      <Matcher>[
+        isMethodCall(
+          'detectObjectOnImageTiled',
+          arguments: <String, dynamic>{
+            'path': '/image/path',
+            'model': 'YOLOv5',
+            'imageMean': 127.5,
+            'imageStd': 127.5,
+            'threshold': 0.1,
+            'numResultsPerClass': 5,
+            'anchors': Tflite.multiScaleAnchors,
+            'blockSize': 32,
+            'numBoxesPerBlock': 5,
+            'tileSize': 640,
+            'tileOverlap': 0.25,
+            'asynch': true,
+          },
+        ),
+      ],
+    );
+  });
+
   test('detectObjectOnBinary', () async {
     await Tflite.detectObjectOnBinary(
       binary: Uint8List.fromList([
@@ -370,6 +671,8 @@ void main() {
               1,
               2,
             ]),
+            'imageMean': 0.0,
+            'imageStd': 255.0,
             'outputType': 'png',
             'asynch': false,
           },
@@ -466,6 +769,77 @@ void main() {
     );
   });
 
+  test('runSegmentationOnImage with rle', () async {
+    await Tflite.runSegmentationOnImage(
+      path: '/image/path',
+      outputType: 'rle',
+    );
+    expect(
+      log,
+      <Matcher>[
+        isMethodCall(
+          'runSegmentationOnImage',
+          arguments: <String, dynamic>{
+            'path': '/image/path',
+            'imageMean': 0.0,
+            'imageStd': 255.0,
+            'labelColors': Tflite.pascalVOCLabelColors,
+            'outputType': 'rle',
+            'asynch': true,
+          },
+        ),
+      ],
+    );
+  });
+
+  test('runSegmentationOnImage with jpeg', () async {
+    await Tflite.runSegmentationOnImage(
+      path: '/image/path',
+      outputType: 'jpeg',
+      quality: 75,
+    );
+    expect(
+      log,
+      <Matcher>[
+        isMethodCall(
+          'runSegmentationOnImage',
+          arguments: <String, dynamic>{
+            'path': '/image/path',
+            'imageMean': 0.0,
+            'imageStd': 255.0,
+            'labelColors': Tflite.pascalVOCLabelColors,
+            'outputType': 'jpeg',
+            'quality': 75,
+            'asynch': true,
+          },
+        ),
+      ],
+    );
+  });
+
+  test('runSegmentationOnImageTiled', () async {
+    await Tflite.runSegmentationOnImageTiled(
+      path: '/image/path',
+      outputType: 'rle',
+    );
+    expect(
+      log,
+      <Matcher>[
+        isMethodCall(
+          'runSegmentationOnImageTiled',
+          arguments: <String, dynamic>{
+            'path': '/image/path',
+            'imageMean': 0.0,
+            'imageStd': 255.0,
+            'outputType': 'rle',
+            'tileOverlap': 0.2,
+            'asynch': true,
+          },
+        ),
+      ],
+    );
+  });
+
   test('runSegmentationOnBinary', () async {
     await Tflite.runSegmentationOnBinary(
       binary: Uint8List.fromList([
@@ -567,4 +941,50 @@ void main() {
       ],
     );
   });
+
+  test('runPoseNetOnFrame with tracking', () async {
+    await Tflite.runPoseNetOnFrame(
+      bytesList: [
+        Uint8List.fromList([
+          0,
+          1,
+          2,
+        ]),
+      ],
+      track: true,
+      trackerId: 'front',
+      redetectInterval: 5,
+    );
+    expect(
+      log,
+      <Matcher>[
+        isMethodCall(
+          'runPoseNetOnFrame',
+          arguments: <String, dynamic>{
+            'bytesList': [
+              Uint8List.fromList([
+                0,
+                1,
+                2,
+              ]),
+            ],
+            'imageHeight': 1280,
+            'imageWidth': 720,
+            'imageMean': 127.5,
+            'imageStd': 127.5,
+            'rotation': 90,
+            'numResults': 5,
+            'threshold': 0.5,
+            'nmsRadius': 20,
+            'track': true,
+            'trackerId': 'front',
+            'redetectInterval': 5,
+            'smoothing': 0.5,
+            'cropPadding': 0.25,
+            'asynch': true,
+          },
+        ),
+      ],
+    );
+  });
 }